@@ -0,0 +1,240 @@
+import java.util.Arrays;
+
+/**
+ * For every decade of a RankMatrix, the rows ranked in that decade sorted by
+ * their rank in it. Rows with equal ranks stay in row order. All decades share
+ * one int array of rows, so the rows take one int per ranked (row, decade)
+ * pair. <br>
+ * The k best ranked rows of a decade are simply the first k entries of its
+ * part of the array. <br>
+ * For every decade a dense table, indexed by rank, holds the position in that
+ * decade's part of the array where the rows with each rank start. The rows with
+ * a given rank, or within a range of ranks, are found with two table lookups,
+ * and a rank no row has shows up as an empty stretch.
+ *
+ * @author Ryan Parappuram
+ */
+public class DecadeRankIndex {
+
+    private final RankMatrix matrix;
+    // rows of decade d are rows[starts[d], starts[d + 1]), ascending by rank
+    private final int[] rows;
+    private final int[] starts;
+    // rankStarts[d][r] is the position in decade d of the first row ranked r or
+    // worse, for 1 <= r <= worst rank in d + 1
+    private final int[][] rankStarts;
+
+    /**
+     * Builds a new DecadeRankIndex over every row of matrix. Each decade is
+     * sorted with a counting sort on its ranks.
+     *
+     * @param rankMatrix: matrix whose ranks are indexed, rankMatrix != null
+     */
+    public DecadeRankIndex(RankMatrix rankMatrix) {
+        matrix = rankMatrix;
+        int numDecades = matrix.getNumDecades();
+        starts = new int[numDecades + 1];
+        for (int decade = 0; decade < numDecades; decade++) {
+            starts[decade + 1] = starts[decade] + countRanked(decade);
+        }
+        rows = new int[starts[numDecades]];
+        rankStarts = new int[numDecades][];
+        for (int decade = 0; decade < numDecades; decade++) {
+            rankStarts[decade] = sortDecade(decade, rows, starts[decade]);
+        }
+    }
+
+    /**
+     * Creates a DecadeRankIndex from arrays built earlier.
+     */
+    private DecadeRankIndex(RankMatrix rankMatrix, int[] sortedRows, int[] decadeStarts,
+            int[][] decadeRankStarts) {
+        matrix = rankMatrix;
+        rows = sortedRows;
+        starts = decadeStarts;
+        rankStarts = decadeRankStarts;
+    }
+
+    /**
+     * Gets the number of rows ranked in a decade.
+     *
+     * @param decade: 0 <= decade < number of decades
+     * @return number of rows with a non zero rank in decade.
+     */
+    public int numRanked(int decade) {
+        return starts[decade + 1] - starts[decade];
+    }
+
+    /**
+     * Gets the row at a position of a decade's rank order.
+     *
+     * @param decade:   0 <= decade < number of decades
+     * @param position: 0 <= position < numRanked(decade)
+     * @return the row with the position-th best rank in decade.
+     */
+    public int rowAt(int decade, int position) {
+        return rows[starts[decade] + position];
+    }
+
+    /**
+     * Gets the best ranked rows of a decade.
+     *
+     * @param decade: 0 <= decade < number of decades
+     * @param k:      k >= 0, maximum number of rows to return
+     * @return up to k rows ranked in decade, best rank first.
+     */
+    public int[] top(int decade, int k) {
+        int end = (int) Math.min(starts[decade + 1], (long) starts[decade] + k);
+        return Arrays.copyOfRange(rows, starts[decade], end);
+    }
+
+    /**
+     * Gets the rows whose rank in a decade is between lowRank and highRank,
+     * inclusive.
+     *
+     * @param decade:   0 <= decade < number of decades
+     * @param lowRank:  best rank to include
+     * @param highRank: worst rank to include
+     * @return the rows ranked from lowRank to highRank in decade, best rank first.
+     */
+    public int[] range(int decade, int lowRank, int highRank) {
+        int from = firstPositionOf(decade, lowRank);
+        int to = highRank == Integer.MAX_VALUE ? numRanked(decade)
+                : firstPositionOf(decade, highRank + 1);
+        return Arrays.copyOfRange(rows, starts[decade] + from, starts[decade] + Math.max(from, to));
+    }
+
+    /**
+     * Gets the rows with exactly the given rank in a decade.
+     *
+     * @param decade: 0 <= decade < number of decades
+     * @param rank:   rank to look up
+     * @return the rows ranked rank in decade, in row order. Empty if no row has
+     *         that rank.
+     */
+    public int[] rowsAtRank(int decade, int rank) {
+        if (rank < 1) {
+            return new int[0];
+        }
+        return range(decade, rank, rank);
+    }
+
+    /**
+     * Gets the worst rank any row has in a decade.
+     *
+     * @param decade: 0 <= decade < number of decades
+     * @return the largest rank in decade, 0 if no row is ranked in it.
+     */
+    public int worstRank(int decade) {
+        return rankStarts[decade].length - 2;
+    }
+
+    /**
+     * Gets the ranks between 1 and the worst rank of a decade that no row has.
+     *
+     * @param decade: 0 <= decade < number of decades
+     * @return the missing ranks of decade in ascending order.
+     */
+    public int[] missingRanks(int decade) {
+        int[] table = rankStarts[decade];
+        int count = 0;
+        for (int rank = 1; rank < table.length - 1; rank++) {
+            if (table[rank] == table[rank + 1]) {
+                count++;
+            }
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int rank = 1; rank < table.length - 1; rank++) {
+            if (table[rank] == table[rank + 1]) {
+                result[count++] = rank;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first position in a decade's rank order whose rank is at least
+     * rank.
+     *
+     * @param decade: 0 <= decade < number of decades
+     * @param rank:   rank to search for
+     * @return position of the first row ranked rank or worse in decade, or
+     *         numRanked(decade) if there is none.
+     */
+    public int firstPositionOf(int decade, int rank) {
+        int[] table = rankStarts[decade];
+        if (rank >= table.length) {
+            return numRanked(decade);
+        }
+        return table[Math.max(rank, 1)];
+    }
+
+    /**
+     * Creates a DecadeRankIndex over a matrix that holds every row of this
+     * index's matrix, moved to new rows, plus one more decade at the end. The
+     * existing decades are remapped, only the new decade is sorted.
+     *
+     * @param newMatrix: matrix with one more decade than the current matrix
+     * @param oldToNew:  row in newMatrix of each row of the current matrix, in
+     *                   ascending order
+     * @return DecadeRankIndex over newMatrix.
+     */
+    DecadeRankIndex remap(RankMatrix newMatrix, int[] oldToNew) {
+        int lastDecade = newMatrix.getNumDecades() - 1;
+        int[] newStarts = Arrays.copyOf(starts, starts.length + 1);
+        int[][] newRankStarts = Arrays.copyOf(rankStarts, rankStarts.length + 1);
+        DecadeRankIndex partial = new DecadeRankIndex(newMatrix, null, newStarts, newRankStarts);
+        newStarts[lastDecade + 1] = newStarts[lastDecade] + partial.countRanked(lastDecade);
+        int[] newRows = new int[newStarts[lastDecade + 1]];
+        for (int i = 0; i < rows.length; i++) {
+            newRows[i] = oldToNew[rows[i]];
+        }
+        newRankStarts[lastDecade] = partial.sortDecade(lastDecade, newRows, newStarts[lastDecade]);
+        return new DecadeRankIndex(newMatrix, newRows, newStarts, newRankStarts);
+    }
+
+    /**
+     * Counts the rows of the matrix ranked in a decade.
+     */
+    private int countRanked(int decade) {
+        int count = 0;
+        for (int row = 0; row < matrix.size(); row++) {
+            if (matrix.getRank(row, decade) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the rows ranked in a decade, sorted by rank, to target starting at
+     * index offset. Uses a counting sort, which keeps rows of equal rank in row
+     * order.
+     *
+     * @return the table of where each rank starts in the decade, see rankStarts.
+     */
+    private int[] sortDecade(int decade, int[] target, int offset) {
+        int maxRank = 0;
+        for (int row = 0; row < matrix.size(); row++) {
+            maxRank = Math.max(maxRank, matrix.getRank(row, decade));
+        }
+        int[] next = new int[maxRank + 2];
+        for (int row = 0; row < matrix.size(); row++) {
+            next[matrix.getRank(row, decade) + 1]++;
+        }
+        // rank 0 (unranked) is counted but not written
+        next[1] = 0;
+        for (int rank = 1; rank <= maxRank; rank++) {
+            next[rank + 1] += next[rank];
+        }
+        int[] table = next.clone();
+        for (int row = 0; row < matrix.size(); row++) {
+            int rank = matrix.getRank(row, decade);
+            if (rank != 0) {
+                target[offset + next[rank]++] = row;
+            }
+        }
+        return table;
+    }
+}
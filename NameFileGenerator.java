@@ -0,0 +1,325 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**
+ * Writes synthetic data files in the format the Names loaders read: the base
+ * decade, the number of decades, then one line per name holding the name and
+ * its rank in each decade, separated by single spaces. <br>
+ * Every name is different, made of two letter syllables picked by its line
+ * number. A name's rank follows a random walk across the decades, so its curve
+ * rises and falls smoothly like a real one, and each decade is unranked (0)
+ * with probability zeroDensity. A fraction of the lines is malformed on purpose,
+ * split between lines with the wrong number of ranks and lines whose ranks are
+ * all 0, which the loaders must discard. <br>
+ * Lines are written as they are made, so the size of the file is not limited
+ * by memory, and the same settings and seed always give the same file. <br>
+ * Usage: <tt>java NameFileGenerator [-n names] [-d decades] [-b baseDecade]
+ * [-r maxRank] [-z zeroDensity] [-m malformedFraction] [-s seed] outputFile</tt>
+ *
+ * @author Ryan Parappuram
+ */
+public class NameFileGenerator {
+
+    private static final String CONSONANTS = "bcdfghjklmnprstvwyz";
+    private static final String VOWELS = "aeiou";
+    // every syllable is a consonant and a vowel, so names of different lines
+    // never come out the same
+    private static final int NUM_SYLLABLES = CONSONANTS.length() * VOWELS.length();
+    // spread of the random walk of a rank, in log space per decade
+    private static final double RANK_STEP = 0.5;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private long numNames = 10_000;
+    private int numDecades = 11;
+    private int baseDecade = 1900;
+    private int maxRank = 1000;
+    private double zeroDensity = 0.3;
+    private double malformedFraction = 0.01;
+    private long seed = 1;
+
+    /**
+     * Creates a new NameFileGenerator with the default settings: 10,000 names,
+     * 11 decades from 1900, ranks up to 1000, 30% unranked decades, 1% malformed
+     * lines and seed 1.
+     */
+    public NameFileGenerator() {
+    }
+
+    /**
+     * Sets the number of name lines to write, malformed ones included.
+     *
+     * @param names >= 0
+     * @return this NameFileGenerator.
+     */
+    public NameFileGenerator numNames(long names) {
+        if (names < 0) {
+            throw new IllegalArgumentException("names may not be negative");
+        }
+        numNames = names;
+        return this;
+    }
+
+    /**
+     * Sets the number of decades.
+     *
+     * @param decades >= 1
+     * @return this NameFileGenerator.
+     */
+    public NameFileGenerator numDecades(int decades) {
+        if (decades < 1) {
+            throw new IllegalArgumentException("decades must be at least 1");
+        }
+        numDecades = decades;
+        return this;
+    }
+
+    /**
+     * Sets the first year of the first decade.
+     *
+     * @param year first year of the first decade, such as 1900
+     * @return this NameFileGenerator.
+     */
+    public NameFileGenerator baseDecade(int year) {
+        baseDecade = year;
+        return this;
+    }
+
+    /**
+     * Sets the worst rank a name can have.
+     *
+     * @param rank 1 <= rank <= RankMatrix.MAX_RANK
+     * @return this NameFileGenerator.
+     */
+    public NameFileGenerator maxRank(int rank) {
+        if (rank < 1 || rank > RankMatrix.MAX_RANK) {
+            throw new IllegalArgumentException(
+                    "rank must be between 1 and " + RankMatrix.MAX_RANK);
+        }
+        maxRank = rank;
+        return this;
+    }
+
+    /**
+     * Sets the chance that a name is unranked in a decade.
+     *
+     * @param density 0 <= density <= 1
+     * @return this NameFileGenerator.
+     */
+    public NameFileGenerator zeroDensity(double density) {
+        checkFraction(density);
+        zeroDensity = density;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of lines that the loaders must discard.
+     *
+     * @param fraction 0 <= fraction <= 1
+     * @return this NameFileGenerator.
+     */
+    public NameFileGenerator malformedFraction(double fraction) {
+        checkFraction(fraction);
+        malformedFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Sets the seed of the random numbers.
+     *
+     * @param randomSeed any value, the same seed gives the same file
+     * @return this NameFileGenerator.
+     */
+    public NameFileGenerator seed(long randomSeed) {
+        seed = randomSeed;
+        return this;
+    }
+
+    private static void checkFraction(double fraction) {
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("fractions must be between 0 and 1");
+        }
+    }
+
+    /**
+     * Writes a data file to path, replacing any file already there.
+     *
+     * @param path != null, path of the file to write
+     * @throws IOException if writing fails
+     */
+    public void generate(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("The parameter path cannot be null");
+        }
+
+        try (OutputStream out = Files.newOutputStream(path)) {
+            generate(out);
+        }
+    }
+
+    /**
+     * Writes a data file to out. out is flushed but not closed.
+     *
+     * @param out != null, where the data file is written
+     * @throws IOException if writing fails
+     */
+    public void generate(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("The parameter out cannot be null");
+        }
+
+        BufferedOutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+        String header = baseDecade + "\n" + numDecades + "\n";
+        buffered.write(header.getBytes(StandardCharsets.US_ASCII));
+        SplittableRandom random = new SplittableRandom(seed);
+        // a name has at most 10 syllables, then up to 2 extra ranks of 5 digits
+        byte[] line = new byte[2 * 10 + (numDecades + 2) * 6 + 1];
+        int[] ranks = new int[numDecades + 2];
+        for (long i = 0; i < numNames; i++) {
+            int length = writeName(i, line);
+            int count = makeRanks(random, ranks);
+            for (int decade = 0; decade < count; decade++) {
+                line[length++] = ' ';
+                length = writeNumber(ranks[decade], line, length);
+            }
+            line[length++] = '\n';
+            buffered.write(line, 0, length);
+        }
+        buffered.flush();
+    }
+
+    /**
+     * Fills ranks with the ranks of the next line, malformed or not.
+     *
+     * @return the number of ranks on the line.
+     */
+    private int makeRanks(SplittableRandom random, int[] ranks) {
+        boolean malformed = random.nextDouble() < malformedFraction;
+        if (malformed && random.nextBoolean()) {
+            // wrong number of ranks, too few or too many
+            int count = random.nextBoolean() ? random.nextInt(numDecades)
+                    : numDecades + 1 + random.nextInt(2);
+            for (int i = 0; i < count; i++) {
+                ranks[i] = 1 + random.nextInt(maxRank);
+            }
+            return count;
+        } else if (malformed) {
+            for (int i = 0; i < numDecades; i++) {
+                ranks[i] = 0;
+            }
+            return numDecades;
+        }
+
+        double logRank = Math.log(1 + random.nextInt(maxRank));
+        boolean anyRanked = false;
+        for (int i = 0; i < numDecades; i++) {
+            logRank += RANK_STEP * gaussian(random);
+            logRank = Math.max(0, Math.min(Math.log(maxRank), logRank));
+            boolean unranked = random.nextDouble() < zeroDensity;
+            ranks[i] = unranked ? 0 : (int) Math.min(maxRank, Math.round(Math.exp(logRank)));
+            anyRanked |= !unranked;
+        }
+        if (!anyRanked) {
+            // only malformed lines are all 0
+            ranks[random.nextInt(numDecades)] = 1 + random.nextInt(maxRank);
+        }
+        return numDecades;
+    }
+
+    /**
+     * Gets a normally distributed random number (Box-Muller).
+     */
+    private static double gaussian(SplittableRandom random) {
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble()))
+                * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    /**
+     * Writes the name of line i, its syllables picked by the digits of i in base
+     * NUM_SYLLABLES, with the first letter upper case.
+     *
+     * @return the length of the name.
+     */
+    private static int writeName(long i, byte[] line) {
+        int length = 0;
+        long rest = i;
+        do {
+            int syllable = (int) (rest % NUM_SYLLABLES);
+            line[length++] = (byte) CONSONANTS.charAt(syllable / VOWELS.length());
+            line[length++] = (byte) VOWELS.charAt(syllable % VOWELS.length());
+            rest /= NUM_SYLLABLES;
+        } while (rest > 0);
+        line[0] = (byte) Character.toUpperCase(line[0]);
+        return length;
+    }
+
+    /**
+     * Writes a non negative number in decimal.
+     *
+     * @return the position after the number.
+     */
+    private static int writeNumber(int value, byte[] line, int position) {
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        int rest = value;
+        for (int i = end - 1; i >= position; i--) {
+            line[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Writes a data file with the settings given on the command line.
+     *
+     * @param args options and output file, see the class comment
+     */
+    public static void main(String[] args) throws IOException {
+        NameFileGenerator generator = new NameFileGenerator();
+        String output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-n")) {
+                    generator.numNames(Long.parseLong(args[++i]));
+                } else if (args[i].equals("-d")) {
+                    generator.numDecades(Integer.parseInt(args[++i]));
+                } else if (args[i].equals("-b")) {
+                    generator.baseDecade(Integer.parseInt(args[++i]));
+                } else if (args[i].equals("-r")) {
+                    generator.maxRank(Integer.parseInt(args[++i]));
+                } else if (args[i].equals("-z")) {
+                    generator.zeroDensity(Double.parseDouble(args[++i]));
+                } else if (args[i].equals("-m")) {
+                    generator.malformedFraction(Double.parseDouble(args[++i]));
+                } else if (args[i].equals("-s")) {
+                    generator.seed(Long.parseLong(args[++i]));
+                } else if (output == null && !args[i].startsWith("-")) {
+                    output = args[i];
+                } else {
+                    throw new IllegalArgumentException("unexpected argument " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            output = null;
+        }
+        if (output == null) {
+            System.out.println("Usage: java NameFileGenerator [-n names] [-d decades] "
+                    + "[-b baseDecade] [-r maxRank] [-z zeroDensity] [-m malformedFraction] "
+                    + "[-s seed] outputFile");
+            return;
+        }
+
+        long start = System.nanoTime();
+        generator.generate(Paths.get(output));
+        System.out.println("wrote " + output + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,632 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads data sources in the name file format straight from bytes. The first two
+ * lines hold the base decade and the number of decades, every following line
+ * holds a name and its ranks separated by whitespace. <br>
+ * Ranks are parsed directly from the bytes into a RankMatrix, so the only String
+ * created for a line is its name. Lines are accepted and rejected by the same
+ * rules as NameRecord.buildRecord(): a line without exactly one rank per decade,
+ * with only 0 ranks, or with a rank that does not fit in a RankMatrix is
+ * dropped, and a rank that is not an int throws a NumberFormatException. <br>
+ * A NameFileParser object reads from an InputStream. readMapped() instead reads
+ * a file through memory mapped windows, parsing the lines in place, and can
+ * split the body of a large file into chunks parsed concurrently.
+ *
+ * @author Ryan Parappuram
+ */
+public class NameFileParser {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // largest part of a file mapped at once, a ByteBuffer is indexed by int
+    private static final int MAX_WINDOW = 1 << 30;
+    // files are split into chunks of at least this many bytes for parallel parsing
+    private static final int MIN_CHUNK = 1 << 20;
+    // bytes read at a time while looking for the end of a line
+    private static final int PROBE_SIZE = 256;
+
+    private final InputStream in;
+    private final int baseDecade;
+    private final int numDecades;
+    private final int[] ranks;
+    private final ParseBuffer scratch = new ParseBuffer();
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    // buffer[position, limit) holds bytes read but not yet parsed
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+    // for NamesMetrics, when this parser was created and how long it spent in
+    // in.read()
+    private final long loadStart;
+    private long readNanos;
+
+    /**
+     * Creates a new NameFileParser reading from in and reads the two header lines.
+     *
+     * @param input: stream positioned at the start of a data source, input != null.
+     *               Reads are done in large blocks, so it need not be buffered.
+     * @throws IOException if reading fails or the input ends before the header
+     */
+    public NameFileParser(InputStream input) throws IOException {
+        if (input == null) {
+            throw new IllegalArgumentException("The parameter input cannot be null");
+        }
+
+        in = input;
+        loadStart = NamesMetrics.start();
+        baseDecade = readHeaderLine();
+        numDecades = readHeaderLine();
+        ranks = new int[Math.max(numDecades, 0)];
+    }
+
+    /**
+     * Gets the base decade read from the header.
+     *
+     * @return base decade of the data source.
+     */
+    public int getBaseDecade() {
+        return baseDecade;
+    }
+
+    /**
+     * Gets the number of decades read from the header.
+     *
+     * @return number of ranks every line of the data source must hold.
+     */
+    public int getNumDecades() {
+        return numDecades;
+    }
+
+    /**
+     * Parses the next line of the data source, adding it to target if it is valid.
+     *
+     * @param target: RankMatrix valid lines are added to, its number of decades
+     *                must equal getNumDecades()
+     * @return row of the new record in target, -1 if the line was rejected.
+     * @throws EOFException if every line has already been read
+     * @throws IOException  if reading fails
+     */
+    public int readRecord(RankMatrix target) throws IOException {
+        int end = nextLineEnd();
+        if (end < 0) {
+            throw new EOFException("no lines left in the data source");
+        }
+        int row = parseLine(view, position, end, target, ranks, scratch);
+        position = Math.min(end + 1, limit);
+        return row;
+    }
+
+    /**
+     * Determines if there is another line to read.
+     *
+     * @return true if readRecord() has a line to parse, false otherwise.
+     * @throws IOException if reading fails
+     */
+    public boolean hasNextLine() throws IOException {
+        return nextLineEnd() >= 0;
+    }
+
+    /**
+     * Reads every remaining line of the data source into a new RankMatrix.
+     *
+     * @return RankMatrix holding every valid line in the order they were read.
+     * @throws IOException if reading fails
+     */
+    public RankMatrix readAll() throws IOException {
+        RankMatrix result = new RankMatrix(baseDecade, numDecades, 0);
+        while (hasNextLine()) {
+            readRecord(result);
+        }
+        NamesMetrics.loaded(loadStart, readNanos);
+        return result;
+    }
+
+    /**
+     * Gets the time spent waiting for the input while NamesMetrics was on.
+     *
+     * @return nanoseconds spent reading from the InputStream.
+     */
+    long getReadNanos() {
+        return readNanos;
+    }
+
+    /**
+     * Reads every valid line of a data file into a new RankMatrix by mapping the
+     * file into memory and parsing its lines in place. Files larger than a
+     * ByteBuffer can address are mapped one window at a time.
+     *
+     * @param path: path of the data file, path != null
+     * @return RankMatrix holding every valid line in the order they appear.
+     * @throws IOException if the file cannot be read or ends before its header
+     */
+    public static RankMatrix readMapped(Path path) throws IOException {
+        return readMapped(path, MAX_WINDOW);
+    }
+
+    /**
+     * Reads every valid line of a data file through windows of at most
+     * windowSize bytes. Separate from readMapped(Path) so small windows can be
+     * tested.
+     *
+     * @param path:       path of the data file
+     * @param windowSize: largest number of bytes mapped at once, must be larger
+     *                    than the longest line
+     * @return RankMatrix holding every valid line in the order they appear.
+     * @throws IOException if the file cannot be read, ends before its header, or
+     *                     holds a line longer than windowSize
+     */
+    static RankMatrix readMapped(Path path, int windowSize) throws IOException {
+        long start = NamesMetrics.start();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            MappedByteBuffer window = map(channel, 0, Math.min(fileSize, windowSize));
+            long readNanos = loadPages(window, start);
+            int[] header = new int[2];
+            int bodyStart = parseHeaderLines(window, header);
+            RankMatrix result = new RankMatrix(header[0], header[1], 0);
+            int[] ranks = new int[Math.max(header[1], 0)];
+            ParseBuffer scratch = new ParseBuffer();
+
+            long windowStart = 0;
+            int position = bodyStart;
+            while (true) {
+                boolean lastWindow = windowStart + window.limit() == fileSize;
+                int consumed = parseLines(window, position, window.limit(), lastWindow, result,
+                        ranks, scratch);
+                if (lastWindow) {
+                    NamesMetrics.loaded(start, readNanos);
+                    return result;
+                }
+                if (consumed == 0 && window.limit() == windowSize) {
+                    throw new IOException("line longer than " + windowSize + " bytes at byte "
+                            + windowStart);
+                }
+                windowStart += consumed;
+                window = map(channel, windowStart, Math.min(fileSize - windowStart, windowSize));
+                readNanos += loadPages(window, start);
+                position = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads every valid line of a data file into a new RankMatrix, parsing parts
+     * of the file concurrently. The body of the file (everything after the header
+     * lines) is split into byte ranges that end at line boundaries, each range is
+     * mapped and parsed into its own RankMatrix on pool, and the parts are joined
+     * in file order. Small files are parsed as a single range.
+     *
+     * @param path: path of the data file, path != null
+     * @param pool: pool the ranges are parsed on, pool != null
+     * @return RankMatrix holding every valid line in the order they appear.
+     * @throws IOException if the file cannot be read or ends before its header
+     */
+    public static RankMatrix readMapped(Path path, ForkJoinPool pool) throws IOException {
+        return readMapped(path, pool, MIN_CHUNK);
+    }
+
+    /**
+     * Reads every valid line of a data file like readMapped(Path, ForkJoinPool),
+     * splitting the body into chunks of at least minChunk bytes. Separate from
+     * readMapped(Path, ForkJoinPool) so small chunks, whose nominal boundaries
+     * fall inside lines, can be tested.
+     *
+     * @param path:     path of the data file
+     * @param pool:     pool the ranges are parsed on
+     * @param minChunk: smallest number of bytes in a chunk, minChunk >= 1
+     * @return RankMatrix holding every valid line in the order they appear.
+     * @throws IOException if the file cannot be read or ends before its header
+     */
+    static RankMatrix readMapped(Path path, ForkJoinPool pool, int minChunk) throws IOException {
+        long start = NamesMetrics.start();
+        LongAdder readNanos = new LongAdder();
+        LongAdder parseNanos = new LongAdder();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int[] header = new int[2];
+            long bodyStart = parseHeaderLines(map(channel, 0, Math.min(fileSize, BUFFER_SIZE)),
+                    header);
+            long[] bounds = chunkBounds(channel, bodyStart, fileSize, pool.getParallelism(),
+                    minChunk);
+
+            List<Callable<RankMatrix>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long chunkStart = bounds[i];
+                long end = bounds[i + 1];
+                tasks.add(() -> {
+                    long taskStart = NamesMetrics.start();
+                    RankMatrix part = new RankMatrix(header[0], header[1], 0);
+                    MappedByteBuffer chunk = map(channel, chunkStart, end - chunkStart);
+                    long chunkRead = loadPages(chunk, start);
+                    parseLines(chunk, 0, chunk.limit(), true, part,
+                            new int[Math.max(header[1], 0)], new ParseBuffer());
+                    readNanos.add(chunkRead);
+                    parseNanos.add(NamesMetrics.since(taskStart) - chunkRead);
+                    return part;
+                });
+            }
+            RankMatrix[] parts = new RankMatrix[tasks.size()];
+            List<Future<RankMatrix>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = results.get(i).get();
+            }
+            NamesMetrics.loaded(readNanos.sum(), parseNanos.sum(),
+                    start != NamesMetrics.NOT_TIMED);
+            return parts.length == 0 ? new RankMatrix(header[0], header[1], 0)
+                    : RankMatrix.concat(parts);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parsing " + path);
+        }
+    }
+
+    /**
+     * Splits file[bodyStart, fileSize) into ranges that each end just after a
+     * line terminator (or at the end of the file) and fit in one mapped window.
+     *
+     * @param channel:     channel reading the file
+     * @param bodyStart:   index of the first byte after the header
+     * @param fileSize:    size of the file
+     * @param parallelism: number of threads that will parse the ranges
+     * @param minChunk:    smallest number of bytes in a range
+     * @return ascending boundaries of the ranges, the first is bodyStart and the
+     *         last is fileSize.
+     */
+    private static long[] chunkBounds(FileChannel channel, long bodyStart, long fileSize,
+            int parallelism, int minChunk) throws IOException {
+        long bodySize = fileSize - bodyStart;
+        // a few chunks per thread balances uneven chunks, each fits in a window
+        long chunks = Math.max(parallelism * 4L, (bodySize + MAX_WINDOW / 2 - 1) / (MAX_WINDOW / 2));
+        chunks = Math.max(1, Math.min(chunks, bodySize / minChunk));
+        long[] bounds = new long[(int) chunks + 1];
+        bounds[0] = bodyStart;
+        for (int i = 1; i < chunks; i++) {
+            long nominal = Math.max(bodyStart + bodySize * i / chunks, bounds[i - 1]);
+            bounds[i] = nextLineStart(channel, nominal, fileSize);
+        }
+        bounds[bounds.length - 1] = fileSize;
+        return bounds;
+    }
+
+    /**
+     * Finds the first byte after the first '\n' at or after from.
+     *
+     * @return index just after the line terminator, or fileSize if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long from, long fileSize)
+            throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+        long position = from;
+        while (position < fileSize) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return fileSize;
+    }
+
+    /**
+     * Parses the lines held in buf[start, end), adding the valid ones to target.
+     *
+     * @param buf:        bytes holding the lines
+     * @param start:      index of the first byte of the first line
+     * @param end:        index one past the last byte to look at
+     * @param endOfInput: true if end is the end of the data source, so a final
+     *                    line without a terminator is complete
+     * @param target:     RankMatrix valid lines are added to
+     * @param ranks:      scratch array with room for target's number of decades
+     * @param scratch:    scratch space for decoding names
+     * @return index one past the last byte of the last complete line parsed.
+     */
+    static int parseLines(ByteBuffer buf, int start, int end, boolean endOfInput,
+            RankMatrix target, int[] ranks, ParseBuffer scratch) {
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (buf.get(i) == '\n') {
+                parseLine(buf, lineStart, i, target, ranks, scratch);
+                lineStart = i + 1;
+            }
+        }
+        if (endOfInput && lineStart < end) {
+            parseLine(buf, lineStart, end, target, ranks, scratch);
+            lineStart = end;
+        }
+        return lineStart;
+    }
+
+    /**
+     * Parses the two header lines at the start of buf.
+     *
+     * @param buf:    bytes holding the start of a data source
+     * @param header: array the base decade and number of decades are stored in
+     * @return index of the first byte after the header.
+     * @throws EOFException if buf ends before the header lines
+     */
+    static int parseHeaderLines(ByteBuffer buf, int[] header) throws EOFException {
+        int lineStart = 0;
+        for (int line = 0; line < header.length; line++) {
+            int i = lineStart;
+            while (i < buf.limit() && buf.get(i) != '\n') {
+                i++;
+            }
+            if (i == lineStart && i == buf.limit()) {
+                throw new EOFException("data source ended before its header lines");
+            }
+            header[line] = parseHeader(buf, lineStart, i);
+            lineStart = Math.min(i + 1, buf.limit());
+        }
+        return lineStart;
+    }
+
+    /**
+     * Maps part of a file into memory for reading.
+     */
+    private static MappedByteBuffer map(FileChannel channel, long start, long size)
+            throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    /**
+     * Brings every page of a mapped buffer into memory if the load it belongs to
+     * is timed, so NamesMetrics can tell reading the file apart from parsing it.
+     *
+     * @param buf:       part of a file mapped into memory
+     * @param loadStart: value NamesMetrics.start() returned when the load began
+     * @return nanoseconds spent, 0 if the load is not timed.
+     */
+    private static long loadPages(MappedByteBuffer buf, long loadStart) {
+        if (loadStart == NamesMetrics.NOT_TIMED) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        buf.load();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Parses one line of ranks held in buf[start, end) and adds it to target if
+     * it is valid. The line must not include its line terminator.
+     *
+     * @param buf:     bytes holding the line, read with absolute gets only
+     * @param start:   index of the first byte of the line
+     * @param end:     index one past the last byte of the line
+     * @param target:  RankMatrix valid lines are added to
+     * @param ranks:   scratch array with room for target's number of decades
+     * @param scratch: scratch space for decoding the name
+     * @return row of the new record in target, -1 if the line was rejected.
+     */
+    static int parseLine(ByteBuffer buf, int start, int end, RankMatrix target, int[] ranks,
+            ParseBuffer scratch) {
+        // the name is everything before the first whitespace, like split("\\s+")
+        int i = start;
+        while (i < end && !isWhitespace(buf.get(i))) {
+            i++;
+        }
+        int nameEnd = i;
+
+        int numRanks = target.getNumDecades();
+        int count = 0;
+        boolean notAllZeroes = false;
+        boolean inRange = true;
+        while (true) {
+            while (i < end && isWhitespace(buf.get(i))) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            int tokenStart = i;
+            while (i < end && !isWhitespace(buf.get(i))) {
+                i++;
+            }
+            int rank = parseInt(buf, tokenStart, i);
+            if (count < numRanks) {
+                ranks[count] = rank;
+            }
+            count++;
+            notAllZeroes = notAllZeroes || rank != 0;
+            inRange = inRange && rank >= 0 && rank <= RankMatrix.MAX_RANK;
+        }
+
+        if (count == numRanks && notAllZeroes && inRange) {
+            return target.addRow(scratch.decode(buf, start, nameEnd), ranks);
+        } else {
+            NamesMetrics.rejected(count != numRanks ? NamesMetrics.Rejection.WRONG_DECADE_COUNT
+                    : !notAllZeroes ? NamesMetrics.Rejection.ALL_ZEROS
+                            : NamesMetrics.Rejection.RANK_OUT_OF_RANGE);
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a header line held in buf[start, end), ignoring surrounding
+     * whitespace.
+     *
+     * @param buf:   bytes holding the line
+     * @param start: index of the first byte of the line
+     * @param end:   index one past the last byte of the line
+     * @return int value of the line.
+     */
+    static int parseHeader(ByteBuffer buf, int start, int end) {
+        while (start < end && isWhitespace(buf.get(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(buf.get(end - 1))) {
+            end--;
+        }
+        return parseInt(buf, start, end);
+    }
+
+    /**
+     * Parses the decimal int held in buf[start, end), with the same rules as
+     * Integer.parseInt().
+     *
+     * @param buf:   bytes holding the number
+     * @param start: index of the first byte of the number
+     * @param end:   index one past the last byte of the number
+     * @return value of the number.
+     * @throws NumberFormatException if the bytes are not an int
+     */
+    private static int parseInt(ByteBuffer buf, int start, int end) {
+        boolean negative = false;
+        int i = start;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            throw numberFormatError(buf, start, end);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberFormatError(buf, start, end);
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw numberFormatError(buf, start, end);
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw numberFormatError(buf, start, end);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Creates the exception thrown for a token that is not an int.
+     */
+    private static NumberFormatException numberFormatError(ByteBuffer buf, int start, int end) {
+        return new NumberFormatException(
+                "For input string: \"" + new ParseBuffer().decode(buf, start, end) + "\"");
+    }
+
+    /**
+     * Determines if b is whitespace as matched by the regular expression \s.
+     */
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == 0x0B || b == '\f';
+    }
+
+    /**
+     * Reads one of the header lines.
+     *
+     * @return int value of the line.
+     */
+    private int readHeaderLine() throws IOException {
+        int end = nextLineEnd();
+        if (end < 0) {
+            throw new EOFException("data source ended before its header lines");
+        }
+        int value = parseHeader(view, position, end);
+        position = Math.min(end + 1, limit);
+        return value;
+    }
+
+    /**
+     * Finds the end of the next line, reading more of the input as needed.
+     *
+     * @return index of the '\n' ending the next line, or of the end of the input
+     *         if the last line has no terminator. Returns -1 if there are no lines
+     *         left.
+     */
+    private int nextLineEnd() throws IOException {
+        int searchFrom = position;
+        while (true) {
+            for (int i = searchFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            if (endOfInput) {
+                return position < limit ? limit : -1;
+            }
+            searchFrom = limit - position;
+            fill();
+        }
+    }
+
+    /**
+     * Moves the unparsed bytes to the front of the buffer, growing it if it is
+     * full, and reads as much of the input as fits after them.
+     */
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        if (remaining == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            view = ByteBuffer.wrap(buffer);
+        } else {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+        long readStart = NamesMetrics.start();
+        int read = in.read(buffer, limit, buffer.length - limit);
+        readNanos += NamesMetrics.since(readStart);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    /**
+     * Scratch space for decoding names from a ByteBuffer that may not be backed
+     * by an array.
+     */
+    static class ParseBuffer {
+        private byte[] bytes = new byte[64];
+
+        /**
+         * Decodes buf[start, end) as UTF-8.
+         */
+        String decode(ByteBuffer buf, int start, int end) {
+            if (buf.hasArray()) {
+                return new String(buf.array(), buf.arrayOffset() + start, end - start,
+                        StandardCharsets.UTF_8);
+            }
+            int length = end - start;
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buf.get(start, bytes, 0, length);
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * A case-insensitive index over the names stored in a RankMatrix. Keeps the
+ * rows of the matrix sorted by name ignoring case, so exact lookups are a
+ * binary search that compares the query against the stored names in place
+ * without creating any new Strings. Names sharing a prefix are next to each
+ * other in this order, so prefix completions only visit the matching names.
+ *
+ * @author Ryan Parappuram
+ */
+public class NameIndex {
+
+    private final RankMatrix matrix;
+    // rows of matrix in case-insensitive order of name, ties in row order
+    private final int[] order;
+
+    /**
+     * Builds a new NameIndex over every row of matrix.
+     *
+     * @param rankMatrix: matrix whose names are indexed, rankMatrix != null
+     */
+    public NameIndex(RankMatrix rankMatrix) {
+        matrix = rankMatrix;
+        order = new int[matrix.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // sortRows is stable, so equal names stay in row order
+        RankMatrix.sortRows(order, (a, b) -> String.CASE_INSENSITIVE_ORDER
+                .compare(matrix.getName(a), matrix.getName(b)));
+    }
+
+    /**
+     * Creates a NameIndex over rankMatrix from an order built earlier.
+     *
+     * @param rankMatrix: matrix whose names are indexed
+     * @param rowOrder:   rows of rankMatrix in case-insensitive order of name
+     */
+    private NameIndex(RankMatrix rankMatrix, int[] rowOrder) {
+        matrix = rankMatrix;
+        order = rowOrder;
+    }
+
+    /**
+     * Creates a NameIndex over a matrix that holds every row of this index's
+     * matrix, moved to new rows, plus some added rows. The existing order is
+     * remapped and merged with the added rows, so old names are not sorted again.
+     *
+     * @param newMatrix:  matrix the new index is over
+     * @param oldToNew:   row in newMatrix of each row of the current matrix, in
+     *                    ascending order
+     * @param addedRows:  rows of newMatrix that are not in the current matrix
+     * @return NameIndex over newMatrix.
+     */
+    NameIndex remap(RankMatrix newMatrix, int[] oldToNew, int[] addedRows) {
+        IntBinaryOperator byName = (a, b) -> String.CASE_INSENSITIVE_ORDER
+                .compare(newMatrix.getName(a), newMatrix.getName(b));
+        int[] added = addedRows.clone();
+        RankMatrix.sortRows(added, (a, b) -> {
+            int compare = byName.applyAsInt(a, b);
+            return compare != 0 ? compare : Integer.compare(a, b);
+        });
+
+        int[] newOrder = new int[order.length + added.length];
+        int i = 0;
+        int j = 0;
+        for (int out = 0; out < newOrder.length; out++) {
+            boolean takeExisting;
+            if (j == added.length) {
+                takeExisting = true;
+            } else if (i == order.length) {
+                takeExisting = false;
+            } else {
+                // ties go to the lower row, as in the constructor
+                int compare = byName.applyAsInt(oldToNew[order[i]], added[j]);
+                takeExisting = compare < 0 || (compare == 0 && oldToNew[order[i]] < added[j]);
+            }
+            newOrder[out] = takeExisting ? oldToNew[order[i++]] : added[j++];
+        }
+        return new NameIndex(newMatrix, newOrder);
+    }
+
+    /**
+     * Gets the number of bytes writeTo() writes for this NameIndex.
+     *
+     * @return size of the binary form of this NameIndex in bytes.
+     */
+    long binarySize() {
+        return Integer.BYTES + (long) order.length * Integer.BYTES;
+    }
+
+    /**
+     * Writes this NameIndex in the binary form readFrom() reads.
+     *
+     * @param out: stream to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(order.length);
+        for (int row : order) {
+            out.writeInt(row);
+        }
+    }
+
+    /**
+     * Reads a NameIndex written by writeTo(), leaving in positioned after it.
+     *
+     * @param in:         buffer positioned at the start of the index
+     * @param rankMatrix: matrix the index was built over
+     * @return the NameIndex read.
+     */
+    static NameIndex readFrom(ByteBuffer in, RankMatrix rankMatrix) {
+        int[] rowOrder = new int[in.getInt()];
+        if (rowOrder.length != rankMatrix.size()) {
+            throw new IllegalArgumentException("index does not match the matrix");
+        }
+        in.asIntBuffer().get(rowOrder);
+        in.position(in.position() + rowOrder.length * Integer.BYTES);
+        return new NameIndex(rankMatrix, rowOrder);
+    }
+
+    /**
+     * Finds the row holding the given name, ignoring case.
+     *
+     * Pre: name != null
+     *
+     * @param name: name to search for
+     * @return the lowest row whose name equals name ignoring case, or -1 if there
+     *         is no such row.
+     */
+    public int find(String name) {
+        int position = lowerBound(name);
+        if (position < order.length && matrix.getName(order[position]).equalsIgnoreCase(name)) {
+            return order[position];
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first limit rows whose names start with prefix, ignoring case.
+     *
+     * Pre: prefix != null, limit >= 0
+     *
+     * @param prefix: start of the names to search for
+     * @param limit:  maximum number of rows to return
+     * @return up to limit rows whose names start with prefix, in case-insensitive
+     *         order of name.
+     */
+    public int[] withPrefix(String prefix, int limit) {
+        int position = lowerBound(prefix);
+        int end = (int) Math.min(order.length, (long) position + limit);
+        int found = 0;
+        while (position + found < end && startsWithIgnoreCase(order[position + found], prefix)) {
+            found++;
+        }
+        return Arrays.copyOfRange(order, position, position + found);
+    }
+
+    /**
+     * Counts the rows whose names start with prefix, ignoring case, without
+     * visiting them.
+     *
+     * Pre: prefix != null
+     *
+     * @param prefix: start of the names to count
+     * @return number of rows whose names start with prefix.
+     */
+    public int countWithPrefix(String prefix) {
+        int start = lowerBound(prefix);
+        // names starting with prefix follow each other in the order
+        int low = start;
+        int high = order.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (startsWithIgnoreCase(order[mid], prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - start;
+    }
+
+    /**
+     * Finds the limit most popular rows whose names start with prefix, ignoring
+     * case. A row is more popular than another if its best rank is lower.
+     *
+     * Pre: prefix != null, limit >= 0
+     *
+     * @param prefix: start of the names to search for
+     * @param limit:  maximum number of rows to return
+     * @return up to limit rows whose names start with prefix, ordered by best rank
+     *         and then case-insensitive order of name.
+     */
+    public int[] mostPopularWithPrefix(String prefix, int limit) {
+        if (limit == 0) {
+            return new int[0];
+        }
+
+        // max-heap of (best rank, position) keeps the limit best seen so far
+        PriorityQueue<Long> best = new PriorityQueue<>(Collections.reverseOrder());
+        for (int position = lowerBound(prefix); position < order.length
+                && startsWithIgnoreCase(order[position], prefix); position++) {
+            int row = order[position];
+            long key = ((long) matrix.getRank(row, matrix.bestDecadeIndex(row)) << Integer.SIZE)
+                    | position;
+            if (best.size() < limit) {
+                best.add(key);
+            } else if (key < best.peek()) {
+                best.poll();
+                best.add(key);
+            }
+        }
+        int[] result = new int[best.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = order[(int) (long) best.poll()];
+        }
+        return result;
+    }
+
+    /**
+     * Determines if the name stored in row starts with prefix, ignoring case.
+     *
+     * @param row:    row of the matrix
+     * @param prefix: start of the name to check for
+     * @return true if the name of row starts with prefix ignoring case.
+     */
+    private boolean startsWithIgnoreCase(int row, String prefix) {
+        return matrix.getName(row).regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    /**
+     * Finds the first position in the case-insensitive order whose name is not
+     * less than key, ignoring case.
+     *
+     * @param key: String to search for
+     * @return position of the first name >= key ignoring case, or the number of
+     *         rows if every name is less than key.
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(matrix.getName(order[mid]), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Merges several data files, which may have different base decades and numbers
+ * of decades, into one RankMatrix on a shared decade axis. The axis runs from
+ * the earliest base decade to the latest decade of any file. <br>
+ * Every file is opened once: its header is read to find the shared decade
+ * axis, then its records are streamed one at a time straight into the merged
+ * matrix, so apart from the merged matrix only a map from name to row is held
+ * in memory. Each line is parsed into the same one row matrix, so reading a
+ * line allocates nothing beyond its name. <br>
+ * Within one file the first line of a name is used and later lines with the
+ * same name are skipped, since getName() on a Names object loaded from that
+ * file only ever finds the first one. Across files a rank of 0 only means the
+ * name was unranked in that file, so any non zero rank for the same name and
+ * decade from another file wins over it. When two files give different non
+ * zero ranks the ConflictPolicy picks one. A name that appears in several files
+ * ends up in one row.
+ *
+ * @author Ryan Parappuram
+ */
+public class NameMerger {
+
+    private static final int DECADE_INCREMENT = 10;
+
+    /**
+     * How to choose between two different non zero ranks that files give for the
+     * same name and decade.
+     */
+    public static enum ConflictPolicy {
+        /** Keep the rank from the file listed first. */
+        FIRST,
+        /** Keep the rank from the file listed last. */
+        LAST,
+        /** Keep the better (lower) rank. */
+        BEST,
+        /** Keep the worse (higher) rank. */
+        WORST;
+
+        /**
+         * Chooses between two non zero ranks.
+         *
+         * @param existing: rank from the files merged so far
+         * @param incoming: rank from the file being merged
+         * @return the rank to keep.
+         */
+        private int resolve(int existing, int incoming) {
+            if (this == FIRST) {
+                return existing;
+            } else if (this == LAST) {
+                return incoming;
+            } else if (this == BEST) {
+                return Math.min(existing, incoming);
+            } else {
+                return Math.max(existing, incoming);
+            }
+        }
+    }
+
+    /**
+     * Private constructor, NameMerger only has static methods.
+     */
+    private NameMerger() {
+    }
+
+    /**
+     * Merges the valid records of every file into one RankMatrix.
+     *
+     * Pre: paths is not empty and the base decades of every file are a whole
+     * number of decades apart
+     *
+     * @param paths:  paths of the data files, in priority order for
+     *                ConflictPolicy.FIRST and LAST
+     * @param policy: how to choose between conflicting non zero ranks
+     * @return RankMatrix holding one row for every name found in any file, in the
+     *         order the names were first seen.
+     * @throws IOException if a file cannot be read
+     */
+    public static RankMatrix merge(List<Path> paths, ConflictPolicy policy) throws IOException {
+        if (paths == null || paths.isEmpty() || policy == null) {
+            throw new IllegalArgumentException(
+                    "paths may not be null or empty and policy may not be null");
+        }
+
+        // every file is opened up front so its header gives the shared decade
+        // axis before any record is read
+        ArrayList<InputStream> streams = new ArrayList<>(paths.size());
+        try {
+            long start = NamesMetrics.start();
+            ArrayList<NameFileParser> parsers = new ArrayList<>(paths.size());
+            int firstDecade = Integer.MAX_VALUE;
+            int endDecade = Integer.MIN_VALUE;
+            for (Path path : paths) {
+                InputStream in = Files.newInputStream(path);
+                streams.add(in);
+                NameFileParser parser = new NameFileParser(in);
+                parsers.add(parser);
+                firstDecade = Math.min(firstDecade, parser.getBaseDecade());
+                endDecade = Math.max(endDecade,
+                        parser.getBaseDecade() + DECADE_INCREMENT * parser.getNumDecades());
+            }
+            for (NameFileParser parser : parsers) {
+                if ((parser.getBaseDecade() - firstDecade) % DECADE_INCREMENT != 0) {
+                    throw new IllegalArgumentException("base decades of the files must be "
+                            + DECADE_INCREMENT + " years apart, found " + firstDecade + " and "
+                            + parser.getBaseDecade());
+                }
+            }
+
+            RankMatrix merged = new RankMatrix(firstDecade,
+                    (endDecade - firstDecade) / DECADE_INCREMENT, 0);
+            HashMap<String, Integer> rows = new HashMap<>();
+            int[] mergedRanks = new int[merged.getNumDecades()];
+            long readNanos = 0;
+            for (NameFileParser parser : parsers) {
+                mergeFile(parser, merged, rows, mergedRanks, policy);
+                readNanos += parser.getReadNanos();
+            }
+            NamesMetrics.loaded(start, readNanos);
+            return merged;
+        } finally {
+            for (InputStream in : streams) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Merges the valid records read by parser into merged.
+     *
+     * @param parser:      parser positioned after the header of a file
+     * @param merged:      matrix the records are merged into
+     * @param rows:        row of every name in merged
+     * @param mergedRanks: scratch array with room for merged's number of decades
+     * @param policy:      how to choose between conflicting non zero ranks
+     */
+    private static void mergeFile(NameFileParser parser, RankMatrix merged,
+            HashMap<String, Integer> rows, int[] mergedRanks, ConflictPolicy policy)
+            throws IOException {
+        int offset = (parser.getBaseDecade() - merged.getBaseDecade()) / DECADE_INCREMENT;
+        // rows of merged this file has already given ranks to
+        BitSet seen = new BitSet();
+        // every line is parsed into this one row, cleared before each line
+        RankMatrix line = new RankMatrix(parser.getBaseDecade(), parser.getNumDecades(), 1);
+        while (parser.hasNextLine()) {
+            line.clear();
+            if (parser.readRecord(line) < 0) {
+                continue;
+            }
+
+            String name = line.getName(0);
+            Integer row = rows.get(name);
+            if (row != null && seen.get(row)) {
+                // a later line for a name this file already gave
+                continue;
+            }
+            for (int i = 0; i < mergedRanks.length; i++) {
+                mergedRanks[i] = row == null ? 0 : merged.getRank(row, i);
+            }
+            for (int i = 0; i < line.getNumDecades(); i++) {
+                int incoming = line.getRank(0, i);
+                int existing = mergedRanks[offset + i];
+                if (incoming != 0) {
+                    mergedRanks[offset + i] = existing == 0 ? incoming
+                            : policy.resolve(existing, incoming);
+                }
+            }
+            if (row == null) {
+                row = merged.addRow(name, mergedRanks);
+                rows.put(name, row);
+            } else {
+                merged.setRow(row, mergedRanks);
+            }
+            seen.set(row);
+        }
+    }
+}
@@ -0,0 +1,722 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * A set of conditions a NameRecord must all pass, run against a Names object
+ * with Names.select() or Names.count(). Conditions are added one method call at
+ * a time, for example <br>
+ * <tt>new NameQuery().decadesRanked(5, 11).bestDecade(1950).nameContains("ann")</tt>
+ * <br>
+ * or parsed from text with parse(), for example <br>
+ * <tt>NameQuery.parse("decades_ranked >= 5 AND best_decade = 1950 AND name ~ \"ann\"")</tt>
+ * <br>
+ * Running a query asks every condition how many rows its index in the Names
+ * object would give (the name index, the trigram index, the trend flag BitSets,
+ * the per-decade rank index or the spike index). The condition with the fewest
+ * rows is looked up in its index, and every other condition is checked in a
+ * single pass over those rows only. If no condition has an index every row is
+ * checked, in parallel if the Names object is a parallel view.
+ *
+ * @author Ryan Parappuram
+ */
+public class NameQuery {
+
+    private static final int DECADE_INCREMENT = 10;
+    private static final int ALL_TREND_FLAGS = NameRecord.RANKED_EVERY_DECADE
+            | NameRecord.RANKED_ONE_DECADE | NameRecord.MORE_POPULAR_EACH_DECADE
+            | NameRecord.LESS_POPULAR_EACH_DECADE;
+
+    private final ArrayList<Condition> conditions;
+
+    /**
+     * Creates a new NameQuery with no conditions, which every NameRecord passes.
+     */
+    public NameQuery() {
+        conditions = new ArrayList<>();
+    }
+
+    /**
+     * Adds the condition that the name equals name, ignoring case.
+     *
+     * @param name != null
+     * @return this NameQuery.
+     */
+    public NameQuery nameEquals(String name) {
+        checkText(name);
+        conditions.add(new NameCondition(NameCondition.EQUALS, name));
+        return this;
+    }
+
+    /**
+     * Adds the condition that the name starts with prefix, ignoring case.
+     *
+     * @param prefix != null
+     * @return this NameQuery.
+     */
+    public NameQuery nameStartsWith(String prefix) {
+        checkText(prefix);
+        conditions.add(new NameCondition(NameCondition.STARTS_WITH, prefix));
+        return this;
+    }
+
+    /**
+     * Adds the condition that the name contains partialName, ignoring case.
+     *
+     * @param partialName != null, partialName.length() > 0
+     * @return this NameQuery.
+     */
+    public NameQuery nameContains(String partialName) {
+        checkText(partialName);
+        if (partialName.length() == 0) {
+            throw new IllegalArgumentException("partialName may not have length of 0");
+        }
+        conditions.add(new NameCondition(NameCondition.CONTAINS, partialName));
+        return this;
+    }
+
+    /**
+     * Adds the condition that the name is ranked in between min and max decades,
+     * inclusive.
+     *
+     * @param min fewest decades ranked
+     * @param max >= min, most decades ranked
+     * @return this NameQuery.
+     */
+    public NameQuery decadesRanked(int min, int max) {
+        checkRange(min, max);
+        conditions.add(new DecadesRankedCondition(min, max));
+        return this;
+    }
+
+    /**
+     * Adds the condition that the best decade of the name, as
+     * NameRecord.bestDecade() gives it, is decadeYear.
+     *
+     * @param decadeYear first year of a decade, such as 1950
+     * @return this NameQuery.
+     */
+    public NameQuery bestDecade(int decadeYear) {
+        conditions.add(new BestDecadeCondition(decadeYear));
+        return this;
+    }
+
+    /**
+     * Adds the condition that the name is ranked between lowRank and highRank,
+     * inclusive, in a decade.
+     *
+     * @param decadeYear first year of a decade, such as 1950
+     * @param lowRank    >= 1, best rank allowed
+     * @param highRank   >= lowRank, worst rank allowed
+     * @return this NameQuery.
+     */
+    public NameQuery rankBetween(int decadeYear, int lowRank, int highRank) {
+        if (lowRank < 1) {
+            throw new IllegalArgumentException("lowRank must be at least 1");
+        }
+        checkRange(lowRank, highRank);
+        conditions.add(new RankCondition(decadeYear, lowRank, highRank));
+        return this;
+    }
+
+    /**
+     * Adds the condition that the name has every trend flag in trendFlags.
+     *
+     * @param trendFlags bit mask of NameRecord trend flags, such as
+     *                   NameRecord.RANKED_EVERY_DECADE, with no other bits set
+     * @return this NameQuery.
+     */
+    public NameQuery trend(int trendFlags) {
+        if ((trendFlags & ~ALL_TREND_FLAGS) != 0) {
+            throw new IllegalArgumentException("trendFlags may only hold NameRecord trend flags");
+        }
+        conditions.add(new TrendCondition(trendFlags));
+        return this;
+    }
+
+    /**
+     * Adds the condition that NameRecord.suddenPopularity(threshold, maxWidth)
+     * is true for the name.
+     *
+     * @param threshold worst rank the name may have while ranked
+     * @param maxWidth  >= 1, most decades in a row the name may be ranked
+     * @return this NameQuery.
+     */
+    public NameQuery suddenlyPopular(int threshold, int maxWidth) {
+        if (maxWidth < 1) {
+            throw new IllegalArgumentException("maxWidth must be at least 1");
+        }
+        conditions.add(new SpikeCondition(threshold, maxWidth));
+        return this;
+    }
+
+    /**
+     * Parses a query written as conditions joined by AND, for example <br>
+     * <tt>decades_ranked >= 5 AND best_decade = 1950 AND name ~ "ann"</tt> <br>
+     * Each condition is a field, an operator and a value:
+     * <ul>
+     * <li><tt>name = x</tt>, <tt>name ^= x</tt>, <tt>name ~ x</tt>: name equals,
+     * starts with or contains x, ignoring case. x is a word or a quoted String,
+     * in which \" stands for a quote and \\ for a backslash.</li>
+     * <li><tt>decades_ranked op n</tt>: op is one of = &lt; &lt;= &gt; &gt;=</li>
+     * <li><tt>best_decade = year</tt></li>
+     * <li><tt>rank_year op n</tt>, such as <tt>rank_1950 &lt;= 100</tt>: the
+     * name is ranked in that decade and its rank compares to n by op</li>
+     * <li><tt>trend = t</tt>: t is ranked_every_decade, ranked_one_decade,
+     * more_popular or less_popular</li>
+     * <li><tt>sudden &lt;= n</tt> or <tt>sudden_w &lt;= n</tt>: the name had a
+     * spike of at most w decades (1 if not given) within rank n</li>
+     * </ul>
+     * AND and the field names are not case sensitive.
+     *
+     * @param text != null, the query
+     * @return a new NameQuery holding the conditions of text.
+     * @throws IllegalArgumentException if text is not a valid query
+     */
+    public static NameQuery parse(String text) {
+        if (text == null) {
+            throw new IllegalArgumentException("The parameter text cannot be null");
+        }
+
+        ArrayList<String> tokens = tokenize(text);
+        NameQuery query = new NameQuery();
+        int position = 0;
+        while (position < tokens.size()) {
+            if (position > 0) {
+                if (!tokens.get(position).equalsIgnoreCase("AND")) {
+                    throw new IllegalArgumentException("expected AND but found "
+                            + tokens.get(position) + " in query: " + text);
+                }
+                position++;
+            }
+            if (position + 3 > tokens.size()) {
+                throw new IllegalArgumentException("incomplete condition in query: " + text);
+            }
+            query.addParsed(tokens.get(position), tokens.get(position + 1),
+                    tokens.get(position + 2), text);
+            position += 3;
+        }
+        return query;
+    }
+
+    /**
+     * Adds the condition written as field, operator and value.
+     */
+    private void addParsed(String field, String operator, String value, String text) {
+        String lowerField = field.toLowerCase();
+        if (lowerField.equals("name")) {
+            String name = unquote(value);
+            if (operator.equals("=")) {
+                nameEquals(name);
+            } else if (operator.equals("^=")) {
+                nameStartsWith(name);
+            } else if (operator.equals("~")) {
+                nameContains(name);
+            } else {
+                throw badOperator(field, operator, text);
+            }
+        } else if (lowerField.equals("decades_ranked")) {
+            int[] range = range(operator, parseNumber(value, text), field, text);
+            decadesRanked(range[0], range[1]);
+        } else if (lowerField.equals("best_decade")) {
+            if (!operator.equals("=")) {
+                throw badOperator(field, operator, text);
+            }
+            bestDecade(parseNumber(value, text));
+        } else if (lowerField.startsWith("rank_")) {
+            int decadeYear = parseNumber(field.substring("rank_".length()), text);
+            int[] range = range(operator, parseNumber(value, text), field, text);
+            rankBetween(decadeYear, Math.max(1, range[0]), range[1]);
+        } else if (lowerField.equals("trend")) {
+            if (!operator.equals("=")) {
+                throw badOperator(field, operator, text);
+            }
+            trend(parseTrend(value, text));
+        } else if (lowerField.equals("sudden") || lowerField.startsWith("sudden_")) {
+            if (!operator.equals("<=")) {
+                throw badOperator(field, operator, text);
+            }
+            int maxWidth = lowerField.equals("sudden") ? 1
+                    : parseNumber(field.substring("sudden_".length()), text);
+            suddenlyPopular(parseNumber(value, text), maxWidth);
+        } else {
+            throw new IllegalArgumentException("unknown field " + field + " in query: " + text);
+        }
+    }
+
+    /**
+     * Converts a comparison with n into an inclusive range.
+     */
+    private static int[] range(String operator, int n, String field, String text) {
+        if (operator.equals("=")) {
+            return new int[] { n, n };
+        } else if (operator.equals("<")) {
+            return new int[] { Integer.MIN_VALUE, (int) Math.max(Integer.MIN_VALUE, n - 1L) };
+        } else if (operator.equals("<=")) {
+            return new int[] { Integer.MIN_VALUE, n };
+        } else if (operator.equals(">")) {
+            return new int[] { (int) Math.min(Integer.MAX_VALUE, n + 1L), Integer.MAX_VALUE };
+        } else if (operator.equals(">=")) {
+            return new int[] { n, Integer.MAX_VALUE };
+        }
+        throw badOperator(field, operator, text);
+    }
+
+    /**
+     * Converts the name of a trend in a query into its NameRecord trend flag.
+     */
+    private static int parseTrend(String value, String text) {
+        String trend = unquote(value).toLowerCase();
+        if (trend.equals("ranked_every_decade")) {
+            return NameRecord.RANKED_EVERY_DECADE;
+        } else if (trend.equals("ranked_one_decade")) {
+            return NameRecord.RANKED_ONE_DECADE;
+        } else if (trend.equals("more_popular")) {
+            return NameRecord.MORE_POPULAR_EACH_DECADE;
+        } else if (trend.equals("less_popular")) {
+            return NameRecord.LESS_POPULAR_EACH_DECADE;
+        }
+        throw new IllegalArgumentException("unknown trend " + value + " in query: " + text);
+    }
+
+    private static int parseNumber(String value, String text) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected a number but found " + value
+                    + " in query: " + text);
+        }
+    }
+
+    private static IllegalArgumentException badOperator(String field, String operator,
+            String text) {
+        return new IllegalArgumentException("operator " + operator + " cannot be used with "
+                + field + " in query: " + text);
+    }
+
+    /**
+     * Removes the quotes around a quoted String token, and the backslash before
+     * each quote or backslash inside it.
+     */
+    private static String unquote(String token) {
+        if (token.length() < 2 || token.charAt(0) != '"') {
+            return token;
+        }
+        StringBuilder result = new StringBuilder(token.length() - 2);
+        for (int i = 1; i < token.length() - 1; i++) {
+            char c = token.charAt(i);
+            result.append(c == '\\' ? token.charAt(++i) : c);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes text as a quoted String token that unquote() reads back.
+     */
+    private static String quote(String text) {
+        StringBuilder result = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\');
+            }
+            result.append(c);
+        }
+        return result.append('"').toString();
+    }
+
+    /**
+     * Splits a query into words, quoted Strings (kept with their quotes) and
+     * operators.
+     */
+    private static ArrayList<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            } else if (c == '"') {
+                // a backslash keeps the character after it, even a quote
+                i++;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    i += text.charAt(i) == '\\' ? 2 : 1;
+                }
+                if (i >= text.length()) {
+                    throw new IllegalArgumentException("unclosed quote in query: " + text);
+                }
+                i++;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+                while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i))
+                        || text.charAt(i) == '_' || text.charAt(i) == '-')) {
+                    i++;
+                }
+            } else if ("<>^".indexOf(c) >= 0 && i + 1 < text.length()
+                    && text.charAt(i + 1) == '=') {
+                i += 2;
+            } else if ("<>=~".indexOf(c) >= 0) {
+                i++;
+            } else {
+                throw new IllegalArgumentException("unexpected character " + c
+                        + " in query: " + text);
+            }
+            tokens.add(text.substring(start, i));
+        }
+        return tokens;
+    }
+
+    private static void checkText(String text) {
+        if (text == null) {
+            throw new IllegalArgumentException("name parameters may not be null");
+        }
+    }
+
+    private static void checkRange(int min, int max) {
+        if (max < min) {
+            throw new IllegalArgumentException("the maximum may not be less than the minimum");
+        }
+    }
+
+    /**
+     * Finds the rows of a Names object that pass every condition.
+     *
+     * @param names: Names object to run the query against
+     * @return a BitSet of the matching rows.
+     */
+    BitSet rows(Names names) {
+        Condition[] all = conditions.toArray(new Condition[0]);
+        Condition driver = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Condition condition : all) {
+            int estimate = condition.estimate(names);
+            if (estimate < fewest) {
+                fewest = estimate;
+                driver = condition;
+            }
+        }
+
+        Condition[] rest = new Condition[all.length - (driver == null ? 0 : 1)];
+        int count = 0;
+        for (Condition condition : all) {
+            if (condition != driver) {
+                rest[count++] = condition;
+            }
+        }
+        RankMatrix matrix = names.matrix();
+        if (driver == null) {
+            return names.scanRows(row -> passesAll(rest, matrix, row));
+        }
+        BitSet result = driver.candidates(names);
+        for (int row = result.nextSetBit(0); row >= 0; row = result.nextSetBit(row + 1)) {
+            if (!passesAll(rest, matrix, row)) {
+                result.clear(row);
+            }
+        }
+        return result;
+    }
+
+    private static boolean passesAll(Condition[] conditions, RankMatrix matrix, int row) {
+        for (Condition condition : conditions) {
+            if (!condition.test(matrix, row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets this query in the text form parse() reads.
+     *
+     * @return the conditions of this query joined by AND, an empty String if
+     *         there are none.
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Condition condition : conditions) {
+            String text = condition.toString();
+            if (result.length() > 0 && text.length() > 0) {
+                result.append(" AND ");
+            }
+            result.append(text);
+        }
+        return result.toString();
+    }
+
+    /**
+     * One condition of a query. A condition whose rows can be read from an index
+     * of the Names object says how many rows that gives and returns them
+     * from it, every condition can check a single row.
+     */
+    private abstract static class Condition {
+
+        /**
+         * Gets about how many rows candidates() returns, and checks the
+         * condition's parameters against names.
+         *
+         * @return number of rows from the index, Integer.MAX_VALUE if the
+         *         condition has no index.
+         */
+        abstract int estimate(Names names);
+
+        /**
+         * Gets the rows passing this condition. Conditions with an index read
+         * them from it, the others check every row of names.
+         */
+        BitSet candidates(Names names) {
+            RankMatrix matrix = names.matrix();
+            return names.scanRows(row -> test(matrix, row));
+        }
+
+        /**
+         * Determines if a row passes this condition.
+         */
+        abstract boolean test(RankMatrix matrix, int row);
+    }
+
+    private static class NameCondition extends Condition {
+
+        private static final String EQUALS = "=";
+        private static final String STARTS_WITH = "^=";
+        private static final String CONTAINS = "~";
+
+        private final String operator;
+        private final String text;
+
+        private NameCondition(String nameOperator, String nameText) {
+            operator = nameOperator;
+            text = nameText;
+        }
+
+        @Override
+        int estimate(Names names) {
+            if (!operator.equals(CONTAINS)) {
+                // an exact name is found through the prefix range it starts
+                return names.nameIndex().countWithPrefix(text);
+            } else if (text.length() >= NgramIndex.GRAM_LENGTH) {
+                return names.ngramIndex().estimate(text);
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        BitSet candidates(Names names) {
+            int[] rows = operator.equals(CONTAINS) ? names.ngramIndex().matches(text)
+                    : names.nameIndex().withPrefix(text, Integer.MAX_VALUE);
+            BitSet result = new BitSet(names.matrix().size());
+            for (int row : rows) {
+                if (!operator.equals(EQUALS)
+                        || names.matrix().getName(row).equalsIgnoreCase(text)) {
+                    result.set(row);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        boolean test(RankMatrix matrix, int row) {
+            String name = matrix.getName(row);
+            if (operator.equals(EQUALS)) {
+                return name.equalsIgnoreCase(text);
+            } else if (operator.equals(STARTS_WITH)) {
+                return name.regionMatches(true, 0, text, 0, text.length());
+            }
+            return NgramIndex.containsIgnoreCase(name, text);
+        }
+
+        @Override
+        public String toString() {
+            return "name " + operator + " " + quote(text);
+        }
+    }
+
+    private static class DecadesRankedCondition extends Condition {
+
+        private final int min;
+        private final int max;
+
+        private DecadesRankedCondition(int minDecades, int maxDecades) {
+            min = minDecades;
+            max = maxDecades;
+        }
+
+        @Override
+        int estimate(Names names) {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        boolean test(RankMatrix matrix, int row) {
+            int decades = matrix.numDecadesRanked(row);
+            return decades >= min && decades <= max;
+        }
+
+        @Override
+        public String toString() {
+            return rangeText("decades_ranked", min, max);
+        }
+    }
+
+    private static class BestDecadeCondition extends Condition {
+
+        private final int decadeYear;
+
+        private BestDecadeCondition(int year) {
+            decadeYear = year;
+        }
+
+        @Override
+        int estimate(Names names) {
+            names.decadeOf(decadeYear);
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        boolean test(RankMatrix matrix, int row) {
+            return matrix.bestDecadeIndex(row) == decadeIndex(matrix, decadeYear);
+        }
+
+        @Override
+        public String toString() {
+            return "best_decade = " + decadeYear;
+        }
+    }
+
+    private static class RankCondition extends Condition {
+
+        private final int decadeYear;
+        private final int lowRank;
+        private final int highRank;
+
+        private RankCondition(int year, int low, int high) {
+            decadeYear = year;
+            lowRank = low;
+            highRank = high;
+        }
+
+        @Override
+        int estimate(Names names) {
+            int decade = names.decadeOf(decadeYear);
+            DecadeRankIndex index = names.decadeIndex();
+            int end = highRank == Integer.MAX_VALUE ? index.numRanked(decade)
+                    : index.firstPositionOf(decade, highRank + 1);
+            return Math.max(0, end - index.firstPositionOf(decade, lowRank));
+        }
+
+        @Override
+        BitSet candidates(Names names) {
+            BitSet result = new BitSet(names.matrix().size());
+            int decade = names.decadeOf(decadeYear);
+            for (int row : names.decadeIndex().range(decade, lowRank, highRank)) {
+                result.set(row);
+            }
+            return result;
+        }
+
+        @Override
+        boolean test(RankMatrix matrix, int row) {
+            int rank = matrix.getRank(row, decadeIndex(matrix, decadeYear));
+            return rank != 0 && rank >= lowRank && rank <= highRank;
+        }
+
+        @Override
+        public String toString() {
+            return rangeText("rank_" + decadeYear, lowRank, highRank);
+        }
+    }
+
+    private static class TrendCondition extends Condition {
+
+        private final int trendFlags;
+
+        private TrendCondition(int flags) {
+            trendFlags = flags;
+        }
+
+        @Override
+        int estimate(Names names) {
+            // trend() has already checked the flags
+            return names.rowsWithTrends(trendFlags).cardinality();
+        }
+
+        @Override
+        BitSet candidates(Names names) {
+            return names.rowsWithTrends(trendFlags);
+        }
+
+        @Override
+        boolean test(RankMatrix matrix, int row) {
+            return (matrix.getFlags(row) & trendFlags) == trendFlags;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            String[] trendNames = { "ranked_every_decade", "ranked_one_decade", "more_popular",
+                "less_popular" };
+            for (int i = 0; i < trendNames.length; i++) {
+                if ((trendFlags & (1 << i)) != 0) {
+                    if (result.length() > 0) {
+                        result.append(" AND ");
+                    }
+                    result.append("trend = ").append(trendNames[i]);
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    private static class SpikeCondition extends Condition {
+
+        private final int threshold;
+        private final int maxWidth;
+
+        private SpikeCondition(int spikeThreshold, int spikeWidth) {
+            threshold = spikeThreshold;
+            maxWidth = spikeWidth;
+        }
+
+        @Override
+        int estimate(Names names) {
+            return names.spikeIndex().countWithin(threshold, maxWidth);
+        }
+
+        @Override
+        BitSet candidates(Names names) {
+            return names.spikeIndex().rowsWithin(threshold, maxWidth);
+        }
+
+        @Override
+        boolean test(RankMatrix matrix, int row) {
+            return matrix.suddenPopularity(row, threshold, maxWidth);
+        }
+
+        @Override
+        public String toString() {
+            return "sudden_" + maxWidth + " <= " + threshold;
+        }
+    }
+
+    /**
+     * Converts the first year of a decade into its index in matrix. Only used
+     * after Names.decadeOf() has checked decadeYear in estimate().
+     */
+    private static int decadeIndex(RankMatrix matrix, int decadeYear) {
+        return (decadeYear - matrix.getBaseDecade()) / DECADE_INCREMENT;
+    }
+
+    /**
+     * Writes min <= field <= max in the text form parse() reads.
+     */
+    private static String rangeText(String field, int min, int max) {
+        if (min == max) {
+            return field + " = " + min;
+        } else if (min == Integer.MIN_VALUE || (field.startsWith("rank_") && min == 1)) {
+            return field + " <= " + max;
+        } else if (max == Integer.MAX_VALUE) {
+            return field + " >= " + min;
+        }
+        return field + " >= " + min + " AND " + field + " <= " + max;
+    }
+}
@@ -1,76 +1,103 @@
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-
 /**
  * A record of a name. Stores the data for an individual name, including the
  * name itself (a String), the base decade (decade of the first rank), and the
  * rank of the name for each decade. *
  * 
+ * A NameRecord is a lightweight view over one row of a RankMatrix, so the ranks
+ * of every name in a Names object live in a single primitive array.
+ * 
  * @author Ryan Parappuram
  *
  */
 public class NameRecord implements Comparable<NameRecord> {
 
-    private int baseDecade;
-    private String name;
-    private ArrayList<Integer> ranks;
+    private final RankMatrix matrix;
+    private final int row;
 
     private static final int DECADE_INCREMENT = 10;
 
+    /** Trend flag set if the name has been ranked in every decade. */
+    public static final int RANKED_EVERY_DECADE = 1;
+    /** Trend flag set if the name has been ranked in exactly one decade. */
+    public static final int RANKED_ONE_DECADE = 1 << 1;
+    /** Trend flag set if the name has been getting more popular every decade. */
+    public static final int MORE_POPULAR_EACH_DECADE = 1 << 2;
+    /** Trend flag set if the name has been getting less popular every decade. */
+    public static final int LESS_POPULAR_EACH_DECADE = 1 << 3;
+
     /**
-     * Private constructor which is only called by static method buildRecord() if
-     * valid input. Creates a new NameRecord object with a baseDecade, name, and
-     * list of ranks for each decade after baseDecade (inclusive).
+     * Constructor which is only called by buildRecord() if valid input, by
+     * Names for each row of its RankMatrix and by NameStream for each record it
+     * streams. Creates a new NameRecord object that
+     * views the name and ranks stored in one row of a RankMatrix.
      * 
-     * @param firstDecade:  baseDecade of input file
-     * @param nameOfPerson: name or this NameRecord
-     * @param personsRanks: ranks for each decade starting from firstDecade
+     * @param rankMatrix: matrix holding the data for this NameRecord
+     * @param matrixRow:  row of rankMatrix this NameRecord views
      */
-    private NameRecord(int firstDecade, String nameOfPerson, int[] personsRanks) {
-        baseDecade = firstDecade;
-        name = nameOfPerson;
-        ranks = new ArrayList<>();
-        for (int i = 0; i < personsRanks.length; i++) {
-            ranks.add(personsRanks[i]);
-        }
+    NameRecord(RankMatrix rankMatrix, int matrixRow) {
+        matrix = rankMatrix;
+        row = matrixRow;
     }
 
     /**
      * Called by client first, checks if input is valid for a new creation of a
      * NameRecord according to below preconditions. <br>
-     * Second, (if valid input) creates new NameRecord by calling private
-     * constructor.
+     * Second, (if valid input) creates new NameRecord by calling the package
+     * private constructor over a one row RankMatrix.
      * 
-     * Pre: ranks in input == numRanks and not every rank is a 0
+     * Pre: ranks in input == numRanks, not every rank is a 0, and every rank is
+     * between 0 and RankMatrix.MAX_RANK
      * 
      * Returns null if preconditions not met.
      * 
      * @param firstDecade: baseDecade for this NameRecord
-     * @param numRanks:    number of ranks to be held in this NameRecord's
-     *                     ArrayList<Integer> ranks
+     * @param numRanks:    number of ranks to be held in this NameRecord
      * @param input:       line containing name followed by numRanks number of ranks
      *                     for each decade
      * @return new NameRecord with name and ranks if input valid, otherwise returns
      *         null.
      */
     public static NameRecord buildRecord(int firstDecade, int numRanks, String input) {
+        RankMatrix single = new RankMatrix(firstDecade, numRanks, 1);
+        int newRow = addRecord(single, input);
+        return newRow < 0 ? null : new NameRecord(single, newRow);
+    }
+
+    /**
+     * Checks if input is valid according to the preconditions of buildRecord()
+     * and, if so, appends its name and ranks to the end of matrix. Used by Names
+     * to load a whole data source into one RankMatrix.
+     * 
+     * @param matrix: RankMatrix the record is added to, its number of decades is
+     *                the number of ranks input must contain
+     * @param input:  line containing name followed by a rank for each decade
+     * @return row of the new record in matrix if input valid, otherwise returns
+     *         -1.
+     */
+    static int addRecord(RankMatrix matrix, String input) {
         // check conditions for input
         String[] parsedData = input.split("\\s+");
-        boolean correctSize = parsedData.length == numRanks + 1;
+        boolean correctSize = parsedData.length == matrix.getNumDecades() + 1;
         boolean notAllZeroes = false;
+        boolean inRange = true;
         int[] rankByDecade = new int[parsedData.length - 1];
         for (int i = 1; i < parsedData.length; i++) {
             rankByDecade[i - 1] = Integer.parseInt(parsedData[i]);
             if (!notAllZeroes) {
                 notAllZeroes = rankByDecade[i - 1] != 0;
             }
+            if (rankByDecade[i - 1] < 0 || rankByDecade[i - 1] > RankMatrix.MAX_RANK) {
+                inRange = false;
+            }
         }
 
-        if (correctSize && notAllZeroes) {
-            return new NameRecord(firstDecade, parsedData[0], rankByDecade);
+        if (correctSize && notAllZeroes && inRange) {
+            return matrix.addRow(parsedData[0], rankByDecade);
         } else {
-            return null;
+            NamesMetrics.rejected(!correctSize ? NamesMetrics.Rejection.WRONG_DECADE_COUNT
+                    : !notAllZeroes ? NamesMetrics.Rejection.ALL_ZEROS
+                            : NamesMetrics.Rejection.RANK_OUT_OF_RANGE);
+            return -1;
         }
     }
 
@@ -80,7 +107,7 @@ public class NameRecord implements Comparable<NameRecord> {
      * @return name for this NameRecord.
      */
     public String getName() {
-        return name;
+        return matrix.getName(row);
     }
 
     /**
@@ -89,7 +116,7 @@ public class NameRecord implements Comparable<NameRecord> {
      * @return base decade for this NameRecord.
      */
     public int getBaseDecade() {
-        return baseDecade;
+        return matrix.getBaseDecade();
     }
 
     /**
@@ -105,12 +132,32 @@ public class NameRecord implements Comparable<NameRecord> {
      *         returns 0 if the name is unranked.
      */
     public int getRank(int decade) {
-        if (decade < 0 || decade >= ranks.size()) {
+        if (decade < 0 || decade >= matrix.getNumDecades()) {
             throw new IllegalArgumentException(
                     "decade parameter must be between 0 and (max number of ranks - 1)");
         }
 
-        return ranks.get(decade);
+        return matrix.getRank(row, decade);
+    }
+
+    /**
+     * Gets the number of decades (ranks) stored for this NameRecord.
+     * 
+     * @return number of decades for this NameRecord.
+     */
+    public int getNumDecades() {
+        return matrix.getNumDecades();
+    }
+
+    /**
+     * Gets the trend flags of this NameRecord, computed once when it was built.
+     * 
+     * @return bit mask of RANKED_EVERY_DECADE, RANKED_ONE_DECADE,
+     *         MORE_POPULAR_EACH_DECADE and LESS_POPULAR_EACH_DECADE holding the
+     *         flags that apply to this NameRecord.
+     */
+    public int getTrendFlags() {
+        return matrix.getFlags(row);
     }
 
     /**
@@ -120,11 +167,9 @@ public class NameRecord implements Comparable<NameRecord> {
      *         most recent decade in the event of a tie.
      */
     public int bestDecade() {
-        Collections.replaceAll(ranks, 0, Integer.MAX_VALUE);
-        int index = ranks.lastIndexOf(Collections.min(ranks));
-        Collections.replaceAll(ranks, Integer.MAX_VALUE, 0);
+        int index = matrix.bestDecadeIndex(row);
         // convert index to decade
-        return baseDecade + (DECADE_INCREMENT * index);
+        return matrix.getBaseDecade() + (DECADE_INCREMENT * index);
     }
 
     /**
@@ -133,13 +178,7 @@ public class NameRecord implements Comparable<NameRecord> {
      * @return number of decades this names has been ranked in the top 1000.
      */
     public int numDecadesRanked() {
-        int count = 0;
-        for (int i : ranks) {
-            if (i > 0) {
-                count++;
-            }
-        }
-        return count;
+        return matrix.numDecadesRanked(row);
     }
 
     /**
@@ -149,7 +188,7 @@ public class NameRecord implements Comparable<NameRecord> {
      *         false otherwise.
      */
     public boolean rankedEveryDecade() {
-        return numDecadesRanked() == ranks.size();
+        return (getTrendFlags() & RANKED_EVERY_DECADE) != 0;
     }
 
     /**
@@ -159,7 +198,7 @@ public class NameRecord implements Comparable<NameRecord> {
      *         false otherwise.
      */
     public boolean rankedOnlyOneDecade() {
-        return numDecadesRanked() == 1;
+        return (getTrendFlags() & RANKED_ONE_DECADE) != 0;
     }
 
     /**
@@ -169,20 +208,7 @@ public class NameRecord implements Comparable<NameRecord> {
      *         decade, false otherwise.
      */
     public boolean morePopularEachDecade() {
-        boolean descending = Collections.frequency(ranks, 0) <= 1;
-        // only runs following checks if num 0s is not more than 1
-        if (descending) {
-            Collections.replaceAll(ranks, 0, Integer.MAX_VALUE);
-            Iterator<Integer> itr = ranks.iterator();
-            int lastDecade = itr.next();
-            while (descending && itr.hasNext()) {
-                int current = itr.next();
-                descending = current < lastDecade;
-                lastDecade = current;
-            }
-            Collections.replaceAll(ranks, Integer.MAX_VALUE, 0);
-        }
-        return descending;
+        return (getTrendFlags() & MORE_POPULAR_EACH_DECADE) != 0;
     }
 
     /**
@@ -192,20 +218,7 @@ public class NameRecord implements Comparable<NameRecord> {
      *         previous decade, false otherwise.
      */
     public boolean lessPopularEachDecade() {
-        boolean ascending = Collections.frequency(ranks, 0) <= 1;
-        // only runs following checks if num 0s is not more than 1
-        if (ascending) {
-            Collections.replaceAll(ranks, 0, Integer.MAX_VALUE);
-            Iterator<Integer> itr = ranks.iterator();
-            int lastDecade = itr.next();
-            while (ascending && itr.hasNext()) {
-                int current = itr.next();
-                ascending = current > lastDecade;
-                lastDecade = current;
-            }
-            Collections.replaceAll(ranks, Integer.MAX_VALUE, 0);
-        }
-        return ascending;
+        return (getTrendFlags() & LESS_POPULAR_EACH_DECADE) != 0;
     }
 
     /**
@@ -217,15 +230,32 @@ public class NameRecord implements Comparable<NameRecord> {
      *         false otherwise.
      */
     public boolean suddenPopularity(int threshold) {
-        for (int i = 1; i < ranks.size() - 1; i++) {
-            if (suddenPopularityCheck(ranks.get(i - 1), ranks.get(i), ranks.get(i + 1),
-                    threshold)) {
+        for (int i = 1; i < matrix.getNumDecades() - 1; i++) {
+            if (suddenPopularityCheck(matrix.getRank(row, i - 1), matrix.getRank(row, i),
+                    matrix.getRank(row, i + 1), threshold)) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Determines if this name was ranked within threshold for between 1 and
+     * maxWidth decades in a row, with an unranked decade right before and right
+     * after them. suddenPopularity(threshold) is the case maxWidth == 1.
+     * 
+     * @param threshold: worst rank allowed while ranked
+     * @param maxWidth:  maxWidth >= 1, most decades in a row that may be ranked
+     * @return true if such a run of ranked decades is found, false otherwise.
+     */
+    public boolean suddenPopularity(int threshold, int maxWidth) {
+        if (maxWidth < 1) {
+            throw new IllegalArgumentException("maxWidth must be at least 1");
+        }
+
+        return matrix.suddenPopularity(row, threshold, maxWidth);
+    }
+
     /**
      * Private helper method for sudden5Hundred()<br>
      * Checks if the rank in the previous decade is 0 (or unranked), the rank in the
@@ -249,7 +279,7 @@ public class NameRecord implements Comparable<NameRecord> {
      *         less than, equal to, or greater than the specified object.
      */
     public int compareTo(NameRecord other) {
-        return name.compareTo(other.name);
+        return getName().compareTo(other.getName());
     }
 
     /**
@@ -260,11 +290,11 @@ public class NameRecord implements Comparable<NameRecord> {
     public String toString() {
         final String newLine = "\n";
         final String colon = ": ";
-        StringBuilder result = new StringBuilder(name).append(newLine);
-        for (int i = 0; i < ranks.size(); i++) {
-            result.append(baseDecade + i * DECADE_INCREMENT);
+        StringBuilder result = new StringBuilder(getName()).append(newLine);
+        for (int i = 0; i < matrix.getNumDecades(); i++) {
+            result.append(matrix.getBaseDecade() + i * DECADE_INCREMENT);
             result.append(colon);
-            result.append(ranks.get(i));
+            result.append(matrix.getRank(row, i));
             result.append(newLine);
         }
         return result.toString();
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams the records of a data file one at a time instead of loading them into
+ * a Names object. Only the record being looked at is held in memory, so data
+ * sources far larger than the heap can be filtered and counted with the usual
+ * Stream operations and the NameRecord predicates, for example <br>
+ * <tt>NameStream.from(path).filter(r -> r.suddenPopularity(100)).count()</tt>
+ * <br>
+ * Lines are accepted and rejected by the same rules as the Names loaders, so a
+ * filter selects the same records the matching Names query does. Records come
+ * in the order they appear in the file rather than sorted by name.
+ *
+ * @author Ryan Parappuram
+ */
+public class NameStream {
+
+    /**
+     * Private constructor, NameStream only has static methods.
+     */
+    private NameStream() {
+    }
+
+    /**
+     * Opens a data file and streams its valid records. The file is closed when
+     * the Stream is closed, so use the Stream in a try-with-resources statement.
+     *
+     * @param path != null, path of a data file with baby names
+     * @return a sequential Stream of the valid records of the file, in file order.
+     * @throws IOException if the file cannot be opened or its header read
+     */
+    public static Stream<NameRecord> from(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("The parameter path cannot be null");
+        }
+
+        InputStream in = Files.newInputStream(path);
+        try {
+            return from(in).onClose(() -> {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Streams the valid records of the data source in is connected to. in is not
+     * closed by the Stream.
+     *
+     * @param in != null, connected to a data file with baby names and positioned
+     *           at the start of the data source
+     * @return a sequential Stream of the valid records of the data source, in the
+     *         order they appear. Reading errors are thrown from the Stream as
+     *         UncheckedIOExceptions.
+     * @throws IOException if the header of the data source cannot be read
+     */
+    public static Stream<NameRecord> from(InputStream in) throws IOException {
+        NameFileParser parser = new NameFileParser(in);
+        return StreamSupport.stream(new RecordSpliterator(parser), false);
+    }
+
+    /**
+     * Hands out the valid records of a NameFileParser one at a time. Each record
+     * gets its own one row RankMatrix so records kept by the caller stay valid.
+     */
+    private static class RecordSpliterator extends Spliterators.AbstractSpliterator<NameRecord> {
+
+        private final NameFileParser parser;
+
+        private RecordSpliterator(NameFileParser fileParser) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            parser = fileParser;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super NameRecord> action) {
+            try {
+                while (parser.hasNextLine()) {
+                    RankMatrix single = new RankMatrix(parser.getBaseDecade(),
+                            parser.getNumDecades(), 1);
+                    int row = parser.readRecord(single);
+                    if (row >= 0) {
+                        action.accept(new NameRecord(single, row));
+                        return true;
+                    }
+                }
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
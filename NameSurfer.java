@@ -1,19 +1,61 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * Main driver class for NameRecord objects and Names collections storing
  * NameRecord objects. Tests each of the methods in Names.java and
  * NameRecord.java whether directly or indirectly. Displays a menu and allows
- * the user to make various queries of the database.
+ * the user to make various queries of the database, or runs a file of the same
+ * queries without the menu (batch mode, see main()).
  * 
  * @author Ryan Parappuram
  *
  */
 public class NameSurfer {
 
+    // data file used when none is given on the command line
+    private static final String DEFAULT_NAME_FILE = "names4.txt";
+    // size of the buffer batch results are written through
+    private static final int BATCH_BUFFER = 1 << 16;
+    // data files the tests of the newer loaders and queries run on
+    private static final String[] TEST_FILES = { "names.txt", "names4.txt" };
+
     // Menu Option 7 Description:
     /*
      * Useful for finding interesting trends in names at certain points in history,
@@ -206,6 +248,1096 @@ public class NameSurfer {
         }
     }
 
+    /**
+     * Concurrent stress test for Names and NameRecord. Many threads share one
+     * Names object and repeatedly run the read only queries while checking every
+     * answer against the answer computed on a single thread first. Method is
+     * public to avoid the "never used locally" warning, like NameRecordTests().
+     */
+    public static void concurrentStressTest() {
+        System.out.println("**** Concurrent stress test for Names.java *****\n");
+        final int numThreads = 8;
+        final int rounds = 50;
+        Names names = new Names(getFileScannerForNames("names4.txt"));
+        ArrayList<NameRecord> records = names.getMatches("a");
+        int numDecades = records.get(0).getNumDecades();
+
+        // expected answers, computed before any other thread touches names
+        int[] bestDecades = new int[records.size()];
+        boolean[] morePopular = new boolean[records.size()];
+        boolean[] lessPopular = new boolean[records.size()];
+        NameRecord[] byName = new NameRecord[records.size()];
+        int[] ranks = new int[records.size() * numDecades];
+        for (int i = 0; i < records.size(); i++) {
+            bestDecades[i] = records.get(i).bestDecade();
+            morePopular[i] = records.get(i).morePopularEachDecade();
+            lessPopular[i] = records.get(i).lessPopularEachDecade();
+            byName[i] = names.getName(records.get(i).getName().toUpperCase());
+            for (int d = 0; d < numDecades; d++) {
+                ranks[i * numDecades + d] = records.get(i).getRank(d);
+            }
+        }
+        // short patterns are scanned, longer ones go through the trigram index
+        String[] patterns = { "a", "el", "ann", "ton", "zzz" };
+        ArrayList<ArrayList<NameRecord>> expectedMatches = new ArrayList<>();
+        for (String pattern : patterns) {
+            expectedMatches.add(names.getMatches(pattern));
+        }
+        ArrayList<String> expectedEvery = names.rankedEveryDecade();
+        ArrayList<String> expectedOnce = names.rankedOnlyOneDecade();
+        ArrayList<String> expectedMore = names.alwaysMorePopular();
+        ArrayList<String> expectedLess = names.alwaysLessPopular();
+        ArrayList<NameRecord> expectedSudden = names.suddenlyPopular(500);
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            results.add(pool.submit(() -> {
+                start.await();
+                boolean passed = true;
+                for (int round = 0; round < rounds && passed; round++) {
+                    for (int i = 0; i < records.size() && passed; i++) {
+                        NameRecord nameRecord = records.get(i);
+                        passed = nameRecord.bestDecade() == bestDecades[i]
+                                && nameRecord.morePopularEachDecade() == morePopular[i]
+                                && nameRecord.lessPopularEachDecade() == lessPopular[i]
+                                && names.getName(nameRecord.getName().toUpperCase()) == byName[i];
+                        for (int d = 0; d < numDecades && passed; d++) {
+                            passed = nameRecord.getRank(d) == ranks[i * numDecades + d];
+                        }
+                    }
+                    for (int p = 0; p < patterns.length && passed; p++) {
+                        passed = names.getMatches(patterns[p]).equals(expectedMatches.get(p));
+                    }
+                    passed = passed && names.rankedEveryDecade().equals(expectedEvery)
+                            && names.rankedOnlyOneDecade().equals(expectedOnce)
+                            && names.alwaysMorePopular().equals(expectedMore)
+                            && names.alwaysLessPopular().equals(expectedLess)
+                            && names.suddenlyPopular(500).equals(expectedSudden);
+                }
+                return passed;
+            }));
+        }
+        start.countDown();
+
+        boolean passed = true;
+        try {
+            for (Future<Boolean> result : results) {
+                passed = result.get() && passed;
+            }
+        } catch (Exception e) {
+            System.out.println("Error: " + e);
+            passed = false;
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println((passed ? "passed" : "**FAILED**") + " - " + numThreads
+                + " threads sharing one Names object see consistent results");
+        System.out.println("\n**** FINISHED concurrent stress test ****");
+    }
+
+    /**
+     * Tests the binary snapshot of Names.java on every test file: a snapshot
+     * read back, and a Names object loaded through a snapshot, must answer every
+     * menu query like the Names object parsed from the text file. A corrupt
+     * snapshot must be rejected by readSnapshot() and skipped by load(), and no
+     * temporary file may be left next to the snapshot. The size a snapshot is
+     * checked against before writing must be its real size, and a snapshot over
+     * the size limit must be rejected.
+     */
+    public static void snapshotTest() {
+        System.out.println("**** Testing snapshots of Names.java *****\n");
+        for (String fileName : TEST_FILES) {
+            Names names = new Names(getFileScannerForNames(fileName));
+            String expected = menuAnswers(names);
+            try {
+                Path directory = Files.createTempDirectory("names");
+                Path snapshot = directory.resolve(fileName + Names.SNAPSHOT_SUFFIX);
+                names.writeSnapshot(snapshot);
+                report(menuAnswers(Names.readSnapshot(snapshot)).equals(expected),
+                        fileName + " snapshot read back answers like the text file");
+                // the first load rewrites the snapshot for the text file, the
+                // second reads it
+                Names.load(Paths.get(fileName), snapshot);
+                report(menuAnswers(Names.load(Paths.get(fileName), snapshot)).equals(expected),
+                        fileName + " loaded through its snapshot answers like the text file");
+
+                byte[] bytes = Files.readAllBytes(snapshot);
+                bytes[bytes.length / 2] ^= 1;
+                Files.write(snapshot, bytes);
+                boolean rejected = false;
+                try {
+                    Names.readSnapshot(snapshot);
+                } catch (IOException e) {
+                    rejected = true;
+                }
+                report(rejected, fileName + " corrupt snapshot is rejected");
+                report(menuAnswers(Names.load(Paths.get(fileName), snapshot)).equals(expected),
+                        fileName + " corrupt snapshot falls back to the text file");
+
+                try (Stream<Path> files = Files.list(directory)) {
+                    report(files.count() == 1, fileName + " no temporary file is left behind");
+                }
+
+                RankMatrix matrix = NameFileParser.readMapped(Paths.get(fileName));
+                NameIndex nameIndex = new NameIndex(matrix);
+                NgramIndex ngramIndex = new NgramIndex(matrix);
+                NamesSnapshot.write(snapshot, matrix, nameIndex, ngramIndex, 0, 0);
+                report(Files.size(snapshot) == NamesSnapshot.size(matrix, nameIndex, ngramIndex),
+                        fileName + " snapshot size is known before writing");
+                Files.delete(snapshot);
+                Files.delete(directory);
+            } catch (IOException e) {
+                report(false, fileName + " snapshot test, error: " + e);
+            }
+        }
+
+        try {
+            Path directory = Files.createTempDirectory("names");
+            Path huge = directory.resolve("names.txt" + Names.SNAPSHOT_SUFFIX);
+            // a sparse file, so no disk space is used
+            try (RandomAccessFile file = new RandomAccessFile(huge.toFile(), "rw")) {
+                file.setLength(NamesSnapshot.MAX_SIZE + 1);
+            }
+            boolean rejected = false;
+            try {
+                Names.readSnapshot(huge);
+            } catch (IOException e) {
+                rejected = e.getMessage().contains("larger than");
+            }
+            report(rejected, "snapshot over the size limit is rejected");
+            report(menuAnswers(Names.load(Paths.get("names.txt"), huge))
+                    .equals(menuAnswers(new Names(getFileScannerForNames("names.txt"))))
+                    && Files.size(huge) < NamesSnapshot.MAX_SIZE,
+                    "snapshot over the size limit falls back to the text file and is replaced");
+            Files.delete(huge);
+            Files.delete(directory);
+        } catch (IOException e) {
+            report(false, "snapshot size limit test, error: " + e);
+        }
+        System.out.println("\n**** FINISHED testing snapshots ****");
+    }
+
+    /**
+     * Tests NameMerger.java. Merging one test file alone, or with itself, must
+     * answer every menu query like loading it, with every ConflictPolicy. Two
+     * small files with different base decades check that each policy picks the
+     * expected rank and that only the first line of a name within a file counts.
+     */
+    public static void mergeTest() {
+        System.out.println("**** Testing NameMerger.java *****\n");
+        try {
+            for (String fileName : TEST_FILES) {
+                Path path = Paths.get(fileName);
+                String expected = menuAnswers(Names.fromPath(path));
+                for (NameMerger.ConflictPolicy policy : NameMerger.ConflictPolicy.values()) {
+                    report(menuAnswers(Names.merge(List.of(path), policy)).equals(expected)
+                            && menuAnswers(Names.merge(List.of(path, path), policy))
+                                    .equals(expected),
+                            fileName + " merged alone and with itself with " + policy
+                                    + " answers like the file");
+                }
+            }
+
+            // Ann conflicts in 1910 (8 first, 4 last) and Bob (6 first, 9 last),
+            // the second Ann line of the first file must be ignored
+            Path directory = Files.createTempDirectory("names");
+            Path first = directory.resolve("first.txt");
+            Path second = directory.resolve("second.txt");
+            Files.write(first, List.of("1900", "2", "Ann 10 8", "Bob 5 6", "Ann 1 1"));
+            Files.write(second, List.of("1910", "2", "Ann 4 30", "Bob 9 0", "Cal 0 7"));
+            String[] expectedAnn = { "10 8 30", "10 4 30", "10 4 30", "10 8 30" };
+            String[] expectedBob = { "5 6 0", "5 9 0", "5 6 0", "5 9 0" };
+            NameMerger.ConflictPolicy[] policies = NameMerger.ConflictPolicy.values();
+            for (int i = 0; i < policies.length; i++) {
+                Names merged = Names.merge(List.of(first, second), policies[i]);
+                report(merged.getName("Ann").getBaseDecade() == 1900
+                        && ranksOf(merged.getName("Ann")).equals(expectedAnn[i])
+                        && ranksOf(merged.getName("Bob")).equals(expectedBob[i])
+                        && ranksOf(merged.getName("Cal")).equals("0 0 7"),
+                        policies[i] + " picks the expected ranks across files");
+            }
+            Files.delete(first);
+            Files.delete(second);
+            Files.delete(directory);
+        } catch (IOException e) {
+            report(false, "merge test, error: " + e);
+        }
+        System.out.println("\n**** FINISHED testing NameMerger.java ****");
+    }
+
+    // Get the ranks of a NameRecord separated by spaces. pre: nameRecord != null
+    private static String ranksOf(NameRecord nameRecord) {
+        StringBuilder result = new StringBuilder();
+        for (int decade = 0; decade < nameRecord.getNumDecades(); decade++) {
+            result.append(decade == 0 ? "" : " ").append(nameRecord.getRank(decade));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Tests NameQuery.java on every test file. Queries covering one condition
+     * must give what the matching Names method gives, queries combining
+     * conditions must give what checking every NameRecord with the NameRecord
+     * methods gives, and every query must survive toString() and parse().
+     */
+    public static void queryTest() {
+        System.out.println("**** Testing NameQuery.java *****\n");
+        for (String fileName : TEST_FILES) {
+            Names names = new Names(getFileScannerForNames(fileName));
+            ArrayList<NameRecord> all = names.recordsAt(names.trendRows(0));
+            NameRecord first = all.get(0);
+            int middleIndex = first.getNumDecades() / 2;
+            int middle = first.getBaseDecade() + 10 * middleIndex;
+
+            report(names.select(NameQuery.parse("name ~ \"ann\"")).equals(names.getMatches("ann"))
+                    && names.select(NameQuery.parse("name ~ an")).equals(names.getMatches("an")),
+                    fileName + " name ~ matches getMatches()");
+            report(names.select(NameQuery.parse("name = emma"))
+                    .equals(List.of(names.getName("Emma"))),
+                    fileName + " name = matches getName()");
+            report(namesOf(names.select(NameQuery.parse("trend = ranked_every_decade")))
+                    .equals(names.rankedEveryDecade())
+                    && namesOf(names.select(NameQuery.parse("trend = ranked_one_decade")))
+                            .equals(names.rankedOnlyOneDecade())
+                    && namesOf(names.select(NameQuery.parse("trend = more_popular")))
+                            .equals(names.alwaysMorePopular())
+                    && namesOf(names.select(NameQuery.parse("trend = less_popular")))
+                            .equals(names.alwaysLessPopular()),
+                    fileName + " trend = matches the trend queries");
+            report(names.select(NameQuery.parse("sudden <= 500"))
+                    .equals(names.suddenlyPopular(500))
+                    && names.select(NameQuery.parse("sudden_2 <= 300"))
+                            .equals(names.suddenlyPopular(300, 2)),
+                    fileName + " sudden matches suddenlyPopular()");
+
+            String[] queries = { "decades_ranked >= 5 AND name ~ \"el\"",
+                "rank_" + middle + " <= 100 AND decades_ranked < 8",
+                "best_decade = " + middle + " AND trend = ranked_every_decade",
+                "name ^= jo AND sudden_3 <= 800", "decades_ranked = 1" };
+            ArrayList<Predicate<NameRecord>> scans = new ArrayList<>();
+            scans.add(r -> r.numDecadesRanked() >= 5 && r.getName().toLowerCase().contains("el"));
+            scans.add(r -> r.getRank(middleIndex) != 0 && r.getRank(middleIndex) <= 100
+                    && r.numDecadesRanked() < 8);
+            scans.add(r -> r.bestDecade() == middle && r.rankedEveryDecade());
+            scans.add(r -> r.getName().toLowerCase().startsWith("jo")
+                    && r.suddenPopularity(800, 3));
+            scans.add(r -> r.numDecadesRanked() == 1);
+            for (int i = 0; i < queries.length; i++) {
+                NameQuery query = NameQuery.parse(queries[i]);
+                ArrayList<NameRecord> expected = new ArrayList<>();
+                for (NameRecord nameRecord : all) {
+                    if (scans.get(i).test(nameRecord)) {
+                        expected.add(nameRecord);
+                    }
+                }
+                ArrayList<NameRecord> actual = names.select(query);
+                report(actual.equals(expected) && names.count(query) == expected.size()
+                        && names.parallel().select(query).equals(expected)
+                        && names.select(NameQuery.parse(query.toString())).equals(expected),
+                        fileName + " " + queries[i] + " matches a scan of every name");
+            }
+        }
+
+        NameQuery quoted = new NameQuery().nameEquals("O\"Neil \\ Jr").nameContains("a\" AND b");
+        report(NameQuery.parse(quoted.toString()).toString().equals(quoted.toString())
+                && !new NameQuery().nameContains("ab\"").toString()
+                        .equals(new NameQuery().nameContains("ab").toString()),
+                "quotes and backslashes in names survive toString() and parse()");
+        boolean rejected = false;
+        try {
+            NameQuery.parse("name = \"unclosed");
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        report(rejected, "an unclosed quote is rejected");
+        rejected = false;
+        try {
+            new NameQuery().trend(1 << 5);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        report(rejected, "a trend bit that is not a trend flag is rejected");
+        System.out.println("\n**** FINISHED testing NameQuery.java ****");
+    }
+
+    // Get the names of a list of NameRecords, in the same order.
+    private static ArrayList<String> namesOf(List<NameRecord> records) {
+        ArrayList<String> result = new ArrayList<>(records.size());
+        for (NameRecord nameRecord : records) {
+            result.add(nameRecord.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Tests NamesServer.java on every test file. Each query endpoint must answer
+     * with the JSON form of what the matching Names method gives, and bad
+     * requests must get the documented error status.
+     */
+    public static void serverTest() {
+        System.out.println("**** Testing NamesServer.java *****\n");
+        HttpClient client = HttpClient.newHttpClient();
+        for (String fileName : TEST_FILES) {
+            Names names = new Names(getFileScannerForNames(fileName));
+            NamesServer server = null;
+            try {
+                server = new NamesServer(names,
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                server.start();
+                String base = "http://localhost:" + server.getPort();
+
+                StringBuilder search = new StringBuilder();
+                ArrayList<NameRecord> matches = names.getMatches("ann");
+                for (NameRecord match : matches) {
+                    search.append(search.length() == 0 ? "" : ",").append("{\"name\":");
+                    NamesServer.appendString(search, match.getName())
+                            .append(",\"bestDecade\":").append(match.bestDecade()).append('}');
+                }
+                report(request(client, "GET", base + "/search?partial=ann").equals("200 {\"count\":"
+                        + matches.size() + ",\"matches\":[" + search + "]}"),
+                        fileName + " /search answers like getMatches()");
+                report(request(client, "GET", base + "/name?name=emma").equals("200 "
+                        + NamesServer.appendRecord(new StringBuilder(), names.getName("Emma"))),
+                        fileName + " /name answers like getName()");
+                report(request(client, "GET", base + "/appear-once")
+                        .equals("200 " + nameListJson(names.rankedOnlyOneDecade()))
+                        && request(client, "GET", base + "/appear-always")
+                                .equals("200 " + nameListJson(names.rankedEveryDecade()))
+                        && request(client, "GET", base + "/more-popular")
+                                .equals("200 " + nameListJson(names.alwaysMorePopular()))
+                        && request(client, "GET", base + "/less-popular")
+                                .equals("200 " + nameListJson(names.alwaysLessPopular())),
+                        fileName + " the trend endpoints answer like the trend queries");
+                StringBuilder sudden = new StringBuilder();
+                ArrayList<NameRecord> spikes = names.suddenlyPopular(300, 2);
+                for (NameRecord spike : spikes) {
+                    NamesServer.appendRecord(sudden.append(sudden.length() == 0 ? "" : ","), spike);
+                }
+                report(request(client, "GET", base + "/sudden?threshold=300&maxWidth=2")
+                        .equals("200 {\"count\":" + spikes.size() + ",\"names\":[" + sudden + "]}"),
+                        fileName + " /sudden answers like suddenlyPopular()");
+
+                report(request(client, "GET", base + "/name?name=Nobodyxyz").startsWith("404 ")
+                        && request(client, "GET", base + "/search/extra").startsWith("404 "),
+                        fileName + " unknown names and paths get 404");
+                report(request(client, "GET", base + "/search").startsWith("400 ")
+                        && request(client, "GET", base + "/sudden?threshold=x").startsWith("400 ")
+                        && request(client, "GET", base + "/sudden?threshold=5&maxWidth=0")
+                                .startsWith("400 "),
+                        fileName + " missing and bad parameters get 400");
+                report(request(client, "POST", base + "/appear-once").startsWith("405 "),
+                        fileName + " methods other than GET get 405");
+            } catch (IOException e) {
+                report(false, fileName + " server test, error: " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                report(false, fileName + " server test interrupted");
+            } finally {
+                if (server != null) {
+                    server.stop(0);
+                }
+            }
+        }
+        System.out.println("\n**** FINISHED testing NamesServer.java ****");
+    }
+
+    /*
+     * Send one request and return the status code and body of the response
+     * separated by a space. pre: client != null, method and uri != null
+     */
+    private static String request(HttpClient client, String method, String uri)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri))
+                .method(method, HttpRequest.BodyPublishers.noBody()).build();
+        HttpResponse<String> response = client.send(request,
+                HttpResponse.BodyHandlers.ofString());
+        return response.statusCode() + " " + response.body();
+    }
+
+    // Get the JSON NamesServer answers a list of names with.
+    private static String nameListJson(List<String> list) {
+        StringBuilder json = new StringBuilder("{\"count\":").append(list.size())
+                .append(",\"names\":[");
+        for (int i = 0; i < list.size(); i++) {
+            NamesServer.appendString(json.append(i == 0 ? "" : ","), list.get(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Tests NameSurferBatch.java on every test file. A query file using menu
+     * numbers, keywords, comments, malformed lines and quit must give the TSV
+     * lines of what the Names methods give, with one line for a query without
+     * results and an error line for each malformed query, on one thread or
+     * several. JSON output must hold one line per query.
+     */
+    public static void batchTest() {
+        System.out.println("**** Testing NameSurferBatch.java *****\n");
+        String queries = String.join("\n", "# comment", "search ann", "", "2 Emma",
+                "name Nobodyxyz", "3", "appear-always", "5", "less-popular", "sudden 500",
+                "7 300 2", "search", "bogus 1", "sudden x", "quit", "search el");
+        for (String fileName : TEST_FILES) {
+            Names names = new Names(getFileScannerForNames(fileName));
+            ArrayList<String> expected = new ArrayList<>();
+            addRecordLines(expected, "1\tsearch\tann", names.getMatches("ann"));
+            addRecordLines(expected, "2\tname\tEmma", List.of(names.getName("Emma")));
+            addRecordLines(expected, "3\tname\tNobodyxyz", List.of());
+            addNameLines(expected, "4\tappear-once\t", names.rankedOnlyOneDecade());
+            addNameLines(expected, "5\tappear-always\t", names.rankedEveryDecade());
+            addNameLines(expected, "6\tmore-popular\t", names.alwaysMorePopular());
+            addNameLines(expected, "7\tless-popular\t", names.alwaysLessPopular());
+            addRecordLines(expected, "8\tsudden\t500", names.suddenlyPopular(500));
+            addRecordLines(expected, "9\tsudden\t300 2", names.suddenlyPopular(300, 2));
+            // error lines end with a message, only their start is compared
+            expected.add("10\terror\tsearch\t");
+            expected.add("11\terror\tbogus 1\t");
+            expected.add("12\terror\tsudden x\t");
+
+            try {
+                NameSurferBatch batch = new NameSurferBatch(names, NameSurferBatch.Format.TSV, 1);
+                String[] lines = batchOutput(batch, queries).split("\n");
+                boolean passed = lines.length == expected.size();
+                for (int i = 0; i < lines.length && passed; i++) {
+                    passed = lines[i].equals(expected.get(i)) || (expected.get(i)
+                            .contains("\terror\t") && lines[i].startsWith(expected.get(i)));
+                }
+                report(passed, fileName + " batch TSV matches the Names methods");
+                report(batch.summary().startsWith("12 queries (3 errors)"),
+                        fileName + " batch summary counts queries and errors");
+                report(batchOutput(new NameSurferBatch(names, NameSurferBatch.Format.TSV, 4),
+                        queries).equals(String.join("\n", lines) + "\n"),
+                        fileName + " batch TSV on 4 threads matches 1 thread");
+                String[] json = batchOutput(new NameSurferBatch(names,
+                        NameSurferBatch.Format.JSON, 1), queries).split("\n");
+                passed = json.length == 12;
+                for (int i = 0; i < json.length && passed; i++) {
+                    passed = json[i].startsWith("{\"query\":" + (i + 1) + ",");
+                }
+                report(passed, fileName + " batch JSON holds one line per query");
+            } catch (IOException e) {
+                report(false, fileName + " batch test, error: " + e);
+            }
+        }
+        System.out.println("\n**** FINISHED testing NameSurferBatch.java ****");
+    }
+
+    /*
+     * Run queries with batch and return what it writes. pre: batch != null,
+     * queries != null
+     */
+    private static String batchOutput(NameSurferBatch batch, String queries) throws IOException {
+        StringWriter out = new StringWriter();
+        batch.run(new BufferedReader(new StringReader(queries)), out);
+        return out.toString();
+    }
+
+    /*
+     * Add the TSV lines NameSurferBatch writes for records to lines, columns
+     * being the query number, command and argument. pre: lines, columns and
+     * records != null
+     */
+    private static void addRecordLines(ArrayList<String> lines, String columns,
+            List<NameRecord> records) {
+        if (records.isEmpty()) {
+            lines.add(columns);
+        }
+        for (NameRecord nameRecord : records) {
+            lines.add(columns + "\t" + nameRecord.getName() + "\t" + nameRecord.bestDecade()
+                    + "\t" + ranksOf(nameRecord));
+        }
+    }
+
+    /*
+     * Add the TSV lines NameSurferBatch writes for a list of names to lines,
+     * columns being the query number, command and argument. pre: lines, columns
+     * and list != null
+     */
+    private static void addNameLines(ArrayList<String> lines, String columns, List<String> list) {
+        if (list.isEmpty()) {
+            lines.add(columns);
+        }
+        for (String name : list) {
+            lines.add(columns + "\t" + name);
+        }
+    }
+
+    /**
+     * Tests Names.appendDecade(). names4.txt is loaded without its last decade,
+     * that decade is appended along with a few new names, and the result must
+     * hold the same records (names, ranks and trend flags) and answer the same
+     * queries as loading the whole file with the new names in it. The Names
+     * object appended to must not change.
+     */
+    public static void appendDecadeTest() {
+        System.out.println("**** Testing Names.appendDecade() *****\n");
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("names4.txt"));
+            int baseDecade = Integer.parseInt(lines.get(0).trim());
+            int numDecades = Integer.parseInt(lines.get(1).trim());
+            StringBuilder cut = new StringBuilder(baseDecade + "\n" + (numDecades - 1) + "\n");
+            StringBuilder full = new StringBuilder(baseDecade + "\n" + numDecades + "\n");
+            HashMap<String, Integer> lastDecade = new HashMap<>();
+            for (String line : lines.subList(2, lines.size())) {
+                String[] parts = line.trim().split("\\s+");
+                cut.append(String.join(" ", Arrays.copyOf(parts, numDecades))).append('\n');
+                full.append(line).append('\n');
+                lastDecade.put(parts[0], Integer.parseInt(parts[numDecades]));
+            }
+            String zeros = " 0".repeat(numDecades - 1);
+            String[] newNames = { "Aaaanew", "Mnew", "Zzzznew" };
+            for (int i = 0; i < newNames.length; i++) {
+                lastDecade.put(newNames[i], 100 * (i + 1));
+                full.append(newNames[i]).append(zeros).append(' ').append(100 * (i + 1))
+                        .append('\n');
+            }
+            // unranked in the new decade, so not added
+            lastDecade.put("Neverranked", 0);
+
+            Names before = Names.fromStream(
+                    new ByteArrayInputStream(cut.toString().getBytes(StandardCharsets.UTF_8)));
+            Names expected = Names.fromStream(
+                    new ByteArrayInputStream(full.toString().getBytes(StandardCharsets.UTF_8)));
+            String beforeRecords = recordsDump(before);
+            String beforeAnswers = menuAnswers(before);
+            Names appended = before.appendDecade(lastDecade);
+
+            report(recordsDump(appended).equals(recordsDump(expected)),
+                    "appended names, ranks and trend flags match a full load");
+            report(menuAnswers(appended).equals(menuAnswers(expected)),
+                    "appended menu queries match a full load");
+            int lastYear = baseDecade + 10 * (numDecades - 1);
+            boolean passed = true;
+            for (int year : new int[] { baseDecade, lastYear - 10, lastYear }) {
+                passed = passed && appended.topK(year, 20).toString()
+                        .equals(expected.topK(year, 20).toString())
+                        && appended.rankRange(year, 50, 150).toString()
+                                .equals(expected.rankRange(year, 50, 150).toString());
+            }
+            report(passed, "appended topK() and rankRange() match a full load");
+            report(appended.getName("MNEW") != null && appended.getName("Neverranked") == null
+                    && appended.getMatches("new").toString()
+                            .equals(expected.getMatches("new").toString())
+                    && appended.completions("zzz", 5).toString()
+                            .equals(expected.completions("zzz", 5).toString()),
+                    "new names are found and unranked new names are not added");
+            report(recordsDump(before).equals(beforeRecords)
+                    && menuAnswers(before).equals(beforeAnswers),
+                    "the Names object appended to is unchanged");
+        } catch (IOException e) {
+            report(false, "appendDecade test, error: " + e);
+        }
+        System.out.println("\n**** FINISHED testing Names.appendDecade() ****");
+    }
+
+    /**
+     * Tests topK(), rankRange(), nameAtRank() and missingRanks() of Names.java
+     * on every test file and in every decade against sorting every NameRecord
+     * by its rank, and that bad decades and ranks are rejected.
+     */
+    public static void rankIndexTest() {
+        System.out.println("**** Testing the decade rank queries of Names.java *****\n");
+        for (String fileName : TEST_FILES) {
+            Names names = new Names(getFileScannerForNames(fileName));
+            ArrayList<NameRecord> all = names.recordsAt(names.trendRows(0));
+            int baseDecade = all.get(0).getBaseDecade();
+            int numDecades = all.get(0).getNumDecades();
+            boolean topPassed = true;
+            boolean rangePassed = true;
+            boolean atRankPassed = true;
+            for (int decade = 0; decade < numDecades; decade++) {
+                final int index = decade;
+                int year = baseDecade + 10 * decade;
+                // all is in sorted order based on name and the sort is stable
+                ArrayList<NameRecord> byRank = new ArrayList<>();
+                for (NameRecord nameRecord : all) {
+                    if (nameRecord.getRank(decade) != 0) {
+                        byRank.add(nameRecord);
+                    }
+                }
+                byRank.sort((a, b) -> a.getRank(index) - b.getRank(index));
+
+                topPassed = topPassed && names.topK(year, 20).equals(byRank.subList(0, 20))
+                        && names.topK(year, 0).isEmpty()
+                        && names.topK(year, byRank.size() + 5).equals(byRank);
+                for (int[] range : new int[][] { { 1, 1 }, { 100, 200 }, { 990, 5000 } }) {
+                    ArrayList<NameRecord> expected = new ArrayList<>();
+                    for (NameRecord nameRecord : byRank) {
+                        int rank = nameRecord.getRank(decade);
+                        if (rank >= range[0] && rank <= range[1]) {
+                            expected.add(nameRecord);
+                        }
+                    }
+                    rangePassed = rangePassed
+                            && names.rankRange(year, range[0], range[1]).equals(expected);
+                }
+
+                int worstRank = byRank.get(byRank.size() - 1).getRank(decade);
+                ArrayList<Integer> missing = new ArrayList<>();
+                for (int rank = 1; rank <= worstRank; rank++) {
+                    ArrayList<NameRecord> atRank = names.nameAtRank(year, rank);
+                    if (atRank.isEmpty()) {
+                        missing.add(rank);
+                    }
+                    atRankPassed = atRankPassed && atRank.equals(names.rankRange(year, rank, rank));
+                }
+                atRankPassed = atRankPassed && names.missingRanks(year).equals(missing)
+                        && names.nameAtRank(year, worstRank + 1).isEmpty();
+            }
+            report(topPassed, fileName + " topK() matches sorting every name by rank");
+            report(rangePassed, fileName + " rankRange() matches sorting every name by rank");
+            report(atRankPassed, fileName + " missingRanks() lists the ranks nameAtRank() has"
+                    + " no names for");
+
+            int lastYear = baseDecade + 10 * (numDecades - 1);
+            ArrayList<Runnable> badCalls = new ArrayList<>();
+            badCalls.add(() -> names.topK(baseDecade + 5, 10));
+            badCalls.add(() -> names.topK(baseDecade - 10, 10));
+            badCalls.add(() -> names.topK(lastYear + 10, 10));
+            badCalls.add(() -> names.topK(baseDecade, -1));
+            badCalls.add(() -> names.rankRange(baseDecade, 0, 10));
+            badCalls.add(() -> names.rankRange(baseDecade, 10, 9));
+            badCalls.add(() -> names.rankRange(lastYear + 10, 1, 10));
+            badCalls.add(() -> names.nameAtRank(baseDecade, 0));
+            badCalls.add(() -> names.nameAtRank(baseDecade + 1, 1));
+            badCalls.add(() -> names.missingRanks(lastYear + 10));
+            int rejected = 0;
+            for (Runnable badCall : badCalls) {
+                try {
+                    badCall.run();
+                } catch (IllegalArgumentException e) {
+                    rejected++;
+                }
+            }
+            report(rejected == badCalls.size(), fileName + " bad decades and ranks are rejected");
+        }
+        System.out.println("\n**** FINISHED testing the decade rank queries of Names.java ****");
+    }
+
+    /**
+     * Tests Names.similarTo() on every test file for a few names and every
+     * TrendSimilarity.Distance against measuring the distance to every other
+     * NameRecord. Distances are compared, not names, as names at the same
+     * distance may be cut off at k in either order.
+     */
+    public static void similarityTest() {
+        System.out.println("**** Testing Names.similarTo() *****\n");
+        for (String fileName : TEST_FILES) {
+            Names names = new Names(getFileScannerForNames(fileName));
+            ArrayList<NameRecord> all = names.recordsAt(names.trendRows(0));
+            for (TrendSimilarity.Distance distance : TrendSimilarity.Distance.values()) {
+                float[][] series = trendSeries(all,
+                        distance == TrendSimilarity.Distance.CORRELATION);
+                boolean passed = true;
+                for (String name : new String[] { "Elvis", "Emma", "Jennifer", "Linda" }) {
+                    int queryIndex = all.indexOf(names.getName(name));
+                    double[] expected = new double[all.size() - 1];
+                    int size = 0;
+                    for (int i = 0; i < all.size(); i++) {
+                        if (i != queryIndex) {
+                            expected[size++] = trendDistance(series[queryIndex], series[i],
+                                    distance);
+                        }
+                    }
+                    Arrays.sort(expected);
+                    ArrayList<NameRecord> actual = names.similarTo(name.toUpperCase(), 10,
+                            distance);
+                    passed = passed && actual.size() == 10
+                            && !actual.contains(names.getName(name));
+                    for (int i = 0; passed && i < actual.size(); i++) {
+                        double found = trendDistance(series[queryIndex],
+                                series[all.indexOf(actual.get(i))], distance);
+                        passed = Math.abs(found - expected[i]) < 1e-6;
+                    }
+                }
+                report(passed, fileName + " " + distance
+                        + " similarTo() matches measuring every name");
+            }
+            report(names.similarTo("Emma", 0).isEmpty() && names.similarTo("Zzzz", 5).isEmpty()
+                    && names.similarTo("Emma", all.size() + 5).size() == all.size() - 1,
+                    fileName + " similarTo() handles k of 0, k past the end and unknown names");
+        }
+        System.out.println("\n**** FINISHED testing Names.similarTo() ****");
+    }
+
+    /*
+     * Get the popularity series TrendSimilarity compares for each of records,
+     * rank r becoming (worst + 1 - r) / worst and unranked 0. If shape, each
+     * series is scaled to mean 0 and standard deviation 1. pre: records not empty
+     */
+    private static float[][] trendSeries(List<NameRecord> records, boolean shape) {
+        int numDecades = records.get(0).getNumDecades();
+        int worst = 1;
+        for (NameRecord nameRecord : records) {
+            for (int decade = 0; decade < numDecades; decade++) {
+                worst = Math.max(worst, nameRecord.getRank(decade));
+            }
+        }
+        float[][] result = new float[records.size()][numDecades];
+        for (int i = 0; i < records.size(); i++) {
+            float[] values = result[i];
+            for (int decade = 0; decade < numDecades; decade++) {
+                int rank = records.get(i).getRank(decade);
+                values[decade] = rank == 0 ? 0 : (float) (worst + 1 - rank) / worst;
+            }
+            if (shape) {
+                double mean = 0;
+                for (float value : values) {
+                    mean += value;
+                }
+                mean /= numDecades;
+                double variance = 0;
+                for (float value : values) {
+                    variance += (value - mean) * (value - mean);
+                }
+                double deviation = Math.sqrt(variance / numDecades);
+                for (int decade = 0; decade < numDecades; decade++) {
+                    values[decade] = deviation == 0 ? 0
+                            : (float) ((values[decade] - mean) / deviation);
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Get the distance between two series the way TrendSimilarity measures it:
+     * the squared Euclidean distance, or for DTW the cheapest warping path with
+     * squared costs matching decades at most DTW_WINDOW apart.
+     * pre: a.length == b.length
+     */
+    private static double trendDistance(float[] a, float[] b, TrendSimilarity.Distance distance) {
+        int n = a.length;
+        if (distance != TrendSimilarity.Distance.DTW) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += (double) (a[i] - b[i]) * (a[i] - b[i]);
+            }
+            return sum;
+        }
+        double[][] cost = new double[n + 1][n + 1];
+        for (double[] row : cost) {
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+        }
+        cost[0][0] = 0;
+        for (int i = 1; i <= n; i++) {
+            for (int j = 1; j <= n; j++) {
+                if (Math.abs(i - j) <= TrendSimilarity.DTW_WINDOW) {
+                    double difference = a[i - 1] - b[j - 1];
+                    cost[i][j] = difference * difference + Math.min(cost[i - 1][j - 1],
+                            Math.min(cost[i - 1][j], cost[i][j - 1]));
+                }
+            }
+        }
+        return cost[n][n];
+    }
+
+    /**
+     * Tests NamesCache.java: repeated queries are hits that return the kept
+     * result, the least recently used results are dropped at maxEntries and at
+     * maxElements, kept results cannot be changed, and many threads sharing a
+     * small cache get the same answers as the Names object.
+     */
+    public static void cacheTest() {
+        System.out.println("**** Testing NamesCache.java *****\n");
+        Names names = new Names(getFileScannerForNames("names4.txt"));
+        int year = names.getMatches("a").get(0).getBaseDecade();
+
+        NamesCache cache = new NamesCache(names, 3, 1_000_000);
+        List<NameRecord> matches = cache.getMatches("ann");
+        List<NameRecord> sudden = cache.suddenlyPopular(500);
+        report(cache.getMisses() == 2 && cache.getHits() == 0
+                && cache.getMatches("ann") == matches && cache.suddenlyPopular(500) == sudden
+                && cache.suddenlyPopular(500, 1) == sudden && cache.getMisses() == 2
+                && cache.getHits() == 3 && matches.equals(names.getMatches("ann"))
+                && sudden.equals(names.suddenlyPopular(500)),
+                "repeated queries are hits returning the kept result");
+        cache.getMatches("ANN");
+        cache.suddenlyPopular(500, 2);
+        report(cache.getMisses() == 4 && cache.getEvictions() == 1 && cache.size() == 3,
+                "different parameters are misses");
+
+        cache.clear();
+        List<NameRecord> first = cache.topK(year, 1);
+        cache.topK(year, 2);
+        cache.topK(year, 3);
+        // first is now the most recently used, so topK(year, 2) is dropped
+        cache.topK(year, 1);
+        long evictions = cache.getEvictions();
+        cache.topK(year, 4);
+        long misses = cache.getMisses();
+        report(cache.size() == 3 && cache.getEvictions() == evictions + 1
+                && cache.topK(year, 1) == first && cache.getMisses() == misses
+                && cache.topK(year, 2) != null && cache.getMisses() == misses + 1,
+                "the least recently used result is dropped at maxEntries");
+
+        cache = new NamesCache(names, 100, 25);
+        first = cache.topK(year, 10);
+        cache.topK(year + 10, 10);
+        cache.topK(year, 10);
+        cache.topK(year + 20, 10);
+        misses = cache.getMisses();
+        boolean passed = cache.size() == 2 && cache.getEvictions() == 1
+                && cache.topK(year, 10) == first && cache.getMisses() == misses;
+        cache.topK(year + 10, 10);
+        passed = passed && cache.getMisses() == misses + 1;
+        int size = cache.size();
+        cache.topK(year, 30);
+        cache.topK(year, 30);
+        report(passed && cache.size() == size && cache.getMisses() == misses + 3,
+                "the least recently used results are dropped at maxElements and a result"
+                        + " over maxElements is never kept");
+
+        int rejected = 0;
+        ArrayList<Runnable> changes = new ArrayList<>();
+        List<NameRecord> kept = cache.getMatches("el");
+        List<String> keptNames = cache.rankedEveryDecade();
+        changes.add(() -> kept.add(kept.get(0)));
+        changes.add(() -> kept.set(0, kept.get(1)));
+        changes.add(() -> keptNames.add("Zzzz"));
+        changes.add(() -> keptNames.set(0, "Zzzz"));
+        for (Runnable change : changes) {
+            try {
+                change.run();
+            } catch (UnsupportedOperationException e) {
+                rejected++;
+            }
+        }
+        report(rejected == changes.size() && cache.getMatches("el").equals(names.getMatches("el"))
+                && cache.rankedEveryDecade().equals(names.rankedEveryDecade()),
+                "cached lists reject add() and set()");
+
+        // few entries, so the threads keep missing and dropping each other's results
+        final int numThreads = 8;
+        final int rounds = 50;
+        NamesCache shared = new NamesCache(names, 4, 100_000);
+        String[] patterns = { "a", "el", "ann", "ton", "zzz" };
+        ArrayList<List<NameRecord>> expectedMatches = new ArrayList<>();
+        for (String pattern : patterns) {
+            expectedMatches.add(names.getMatches(pattern));
+        }
+        List<NameRecord> expectedTop = names.topK(year, 50);
+        List<NameRecord> expectedSudden = names.suddenlyPopular(500);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            results.add(pool.submit(() -> {
+                start.await();
+                boolean answered = true;
+                for (int round = 0; round < rounds && answered; round++) {
+                    for (int p = 0; p < patterns.length && answered; p++) {
+                        answered = shared.getMatches(patterns[p]).equals(expectedMatches.get(p));
+                    }
+                    answered = answered && shared.topK(year, 50).equals(expectedTop)
+                            && shared.suddenlyPopular(500).equals(expectedSudden);
+                }
+                return answered;
+            }));
+        }
+        start.countDown();
+
+        passed = true;
+        try {
+            for (Future<Boolean> result : results) {
+                passed = result.get() && passed;
+            }
+        } catch (Exception e) {
+            System.out.println("Error: " + e);
+            passed = false;
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report(passed && shared.getHits() + shared.getMisses() == numThreads * rounds
+                * (patterns.length + 2) && shared.size() <= 4 && shared.getEvictions() > 0,
+                numThreads + " threads sharing one small NamesCache get consistent results");
+        System.out.println("\n**** FINISHED testing NamesCache.java ****");
+    }
+
+    /**
+     * Tests NameStream.java on every test file: filtering the stream with the
+     * NameRecord predicates must select as many records as the matching Names
+     * query, and closing the stream must close the file.
+     */
+    public static void streamTest() {
+        System.out.println("**** Testing NameStream.java *****\n");
+        try {
+            for (String fileName : TEST_FILES) {
+                Path path = Paths.get(fileName);
+                Names names = new Names(getFileScannerForNames(fileName));
+                long everyDecade;
+                long sudden;
+                long suddenWide;
+                ArrayList<String> matches = new ArrayList<>();
+                try (Stream<NameRecord> records = NameStream.from(path)) {
+                    everyDecade = records.filter(NameRecord::rankedEveryDecade).count();
+                }
+                try (Stream<NameRecord> records = NameStream.from(path)) {
+                    sudden = records.filter(r -> r.suddenPopularity(500)).count();
+                }
+                try (Stream<NameRecord> records = NameStream.from(path)) {
+                    suddenWide = records.filter(r -> r.suddenPopularity(300, 2)).count();
+                }
+                try (Stream<NameRecord> records = NameStream.from(path)) {
+                    records.filter(r -> r.getName().toLowerCase().contains("ann"))
+                            .forEach(r -> matches.add(r.getName()));
+                }
+                matches.sort(null);
+                report(everyDecade == names.rankedEveryDecade().size()
+                        && sudden == names.suddenlyPopular(500).size()
+                        && suddenWide == names.suddenlyPopular(300, 2).size()
+                        && matches.equals(namesOf(names.getMatches("ann"))),
+                        fileName + " stream filters match the Names queries");
+            }
+
+            // names4.txt is larger than one read, so reading on after close fails
+            Stream<NameRecord> records = NameStream.from(Paths.get("names4.txt"));
+            Iterator<NameRecord> iterator = records.iterator();
+            iterator.next();
+            records.close();
+            boolean closed = false;
+            try {
+                while (iterator.hasNext()) {
+                    iterator.next();
+                }
+            } catch (UncheckedIOException e) {
+                closed = true;
+            }
+            report(closed, "closing the stream closes the file");
+        } catch (IOException e) {
+            report(false, "NameStream test, error: " + e);
+        }
+        System.out.println("\n**** FINISHED testing NameStream.java ****");
+    }
+
+    /**
+     * Tests that every loader of Names.java reads the same records: the Scanner
+     * constructor, fromStream(), fromPath() and fromPath() with a pool, and
+     * below them NameFileParser with small mapped windows and with small
+     * parallel chunks whose nominal boundaries fall inside lines. Runs on
+     * names4.txt and on a copy of names.txt with bad lines mixed in.
+     */
+    public static void loaderTest() {
+        System.out.println("**** Testing the Names loaders *****\n");
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            Path directory = Files.createTempDirectory("names");
+            Path badLines = directory.resolve("badLines.txt");
+            List<String> lines = Files.readAllLines(Paths.get("names.txt"));
+            String[] bad = { "Wrong 1 2 3", "Zeros 0 0 0 0 0 0 0 0 0 0 0", "",
+                "Huge 1 2 3 4 5 6 7 8 9 10 99999", "Tabs\t1\t2 3 4 5 6 7 8 9 10 11  ",
+                "Crlf 5 0 0 0 0 0 0 0 0 0 1\r" };
+            StringBuilder text = new StringBuilder(lines.get(0) + "\n" + lines.get(1) + "\n");
+            for (int i = 2; i < lines.size(); i++) {
+                text.append(lines.get(i)).append('\n');
+                if (i % 7 == 0) {
+                    text.append(bad[i % bad.length]).append('\n');
+                }
+            }
+            // the last line has no line terminator
+            text.append("Last 1 2 3 4 5 6 7 8 9 10 11");
+            Files.write(badLines, text.toString().getBytes(StandardCharsets.UTF_8));
+
+            for (Path path : new Path[] { Paths.get("names4.txt"), badLines }) {
+                String name = path.getFileName().toString();
+                String expected = recordsDump(new Names(new Scanner(path.toFile())));
+                String fromStream;
+                RankMatrix streamed;
+                try (InputStream in = Files.newInputStream(path)) {
+                    fromStream = recordsDump(Names.fromStream(in));
+                }
+                try (InputStream in = Files.newInputStream(path)) {
+                    streamed = new NameFileParser(in).readAll();
+                }
+                report(fromStream.equals(expected)
+                        && recordsDump(Names.fromPath(path)).equals(expected)
+                        && recordsDump(Names.fromPath(path, pool)).equals(expected),
+                        name + " stream, mapped and parallel loaders match the Scanner");
+
+                String rows = matrixDump(streamed);
+                boolean passed = matrixDump(NameFileParser.readMapped(path)).equals(rows);
+                for (int windowSize : new int[] { 100, 173, 4096 }) {
+                    passed = passed && matrixDump(NameFileParser.readMapped(path, windowSize))
+                            .equals(rows);
+                }
+                report(passed, name + " small mapped windows read the same rows");
+                passed = true;
+                for (int minChunk : new int[] { 1, 61, 1000 }) {
+                    passed = passed && matrixDump(NameFileParser.readMapped(path, pool, minChunk))
+                            .equals(rows);
+                }
+                report(passed, name + " small parallel chunks read the same rows");
+            }
+            Files.delete(badLines);
+            Files.delete(directory);
+        } catch (IOException e) {
+            report(false, "loader test, error: " + e);
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println("\n**** FINISHED testing the Names loaders ****");
+    }
+
+    /*
+     * Get every row of matrix, in order, with its ranks and trend flags as
+     * text. pre: matrix != null
+     */
+    private static String matrixDump(RankMatrix matrix) {
+        StringBuilder result = new StringBuilder();
+        for (int row = 0; row < matrix.size(); row++) {
+            result.append(matrix.getName(row));
+            for (int decade = 0; decade < matrix.getNumDecades(); decade++) {
+                result.append(' ').append(matrix.getRank(row, decade));
+            }
+            result.append(' ').append(matrix.getFlags(row)).append('\n');
+        }
+        return result.toString();
+    }
+
+    /*
+     * Get every NameRecord of names with its trend flags as text, so the
+     * records of two Names objects can be compared. pre: names != null
+     */
+    private static String recordsDump(Names names) {
+        StringBuilder result = new StringBuilder();
+        for (NameRecord nameRecord : names.recordsAt(names.trendRows(0))) {
+            result.append(nameRecord).append(nameRecord.getTrendFlags()).append('\n');
+        }
+        return result.toString();
+    }
+
+    // Print the result of one check the way the tests above do.
+    private static void report(boolean passed, String test) {
+        System.out.println((passed ? "passed" : "**FAILED**") + " - " + test);
+    }
+
+    /*
+     * Get the answers of the menu queries, and a few more, as text so two Names
+     * objects can be compared. pre: names != null
+     */
+    private static String menuAnswers(Names names) {
+        StringBuilder result = new StringBuilder();
+        for (String partialName : new String[] { "a", "el", "ann", "ton", "zzz" }) {
+            result.append(names.getMatches(partialName));
+        }
+        result.append(names.rankedEveryDecade()).append(names.rankedOnlyOneDecade())
+                .append(names.alwaysMorePopular()).append(names.alwaysLessPopular())
+                .append(names.suddenlyPopular(500)).append(names.suddenlyPopular(300, 2));
+        for (String name : new String[] { "Emma", "emma", "Isabelle", "ZZ" }) {
+            result.append(names.getName(name));
+        }
+        return result.toString();
+    }
+
     // Checks if given name is present in Names.
     private static void performGetNameTest(Names names, String name, boolean expectNull) {
 
@@ -223,14 +1355,97 @@ public class NameSurfer {
         }
     }
 
-    // main method. Driver for the whole program
+    // main method. Driver for the whole program. Usage:
+    // java NameSurfer [-q queryFile [-o outputFile] [-json] [-t threads]
+    // [-timings timingsFile]] [dataFile]
+    // With -q the queries in queryFile are run instead of showing the menu, see
+    // NameSurferBatch for their format. Results go to outputFile (standard
+    // output if not given) as TSV, or as JSON with -json, and the time of each
+    // query goes to timingsFile.
     public static void main(String[] args) {
-        // Alter name of file to try different data sources.
-        final String NAME_FILE = "names4.txt";
-        Scanner fileScanner = getFileScannerForNames(NAME_FILE);
-        Names namesDatabase = new Names(fileScanner);
-        fileScanner.close();
-        runOptions(namesDatabase);
+        String nameFile = DEFAULT_NAME_FILE;
+        String queryFile = null;
+        String outputFile = null;
+        String timingsFile = null;
+        NameSurferBatch.Format format = NameSurferBatch.Format.TSV;
+        int threads = 1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-q")) {
+                    queryFile = args[++i];
+                } else if (args[i].equals("-o")) {
+                    outputFile = args[++i];
+                } else if (args[i].equals("-json")) {
+                    format = NameSurferBatch.Format.JSON;
+                } else if (args[i].equals("-t")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-timings")) {
+                    timingsFile = args[++i];
+                } else if (!args[i].startsWith("-")) {
+                    nameFile = args[i];
+                } else {
+                    throw new IllegalArgumentException("unexpected argument " + args[i]);
+                }
+            }
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1");
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.out.println("Usage: java NameSurfer [-q queryFile [-o outputFile] [-json] "
+                    + "[-t threads] [-timings timingsFile]] [dataFile]");
+            return;
+        }
+
+        long loadStart = System.nanoTime();
+        Names namesDatabase = loadNames(nameFile);
+        long loadNanos = System.nanoTime() - loadStart;
+        if (namesDatabase == null) {
+            return;
+        }
+        if (queryFile == null) {
+            runOptions(namesDatabase);
+        } else {
+            NameSurferBatch batch = new NameSurferBatch(namesDatabase, format, threads);
+            // keep standard output for the results when they are written there
+            PrintStream report = outputFile == null ? System.err : System.out;
+            report.println("loaded " + nameFile + " in " + loadNanos / 1_000_000 + " ms");
+            if (runBatch(batch, queryFile, outputFile, timingsFile)) {
+                report.print(batch.summary());
+            }
+        }
+    }
+
+    /*
+     * Run every query in queryFile with batch, writing the results to outputFile,
+     * or to System.out if outputFile is null, and the time of each query to
+     * timingsFile if it is not null. pre: batch != null, queryFile != null post:
+     * return true if the queries ran, false if a file could not be read or
+     * written.
+     */
+    private static boolean runBatch(NameSurferBatch batch, String queryFile, String outputFile,
+            String timingsFile) {
+        try (BufferedReader queries = Files.newBufferedReader(Paths.get(queryFile))) {
+            if (outputFile == null) {
+                // System.out is flushed but not closed
+                Writer out = new BufferedWriter(
+                        new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BATCH_BUFFER);
+                batch.run(queries, out);
+            } else {
+                try (Writer out = Files.newBufferedWriter(Paths.get(outputFile))) {
+                    batch.run(queries, out);
+                }
+            }
+            if (timingsFile != null) {
+                try (Writer out = Files.newBufferedWriter(Paths.get(timingsFile))) {
+                    batch.writeTimings(out);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("\n***** ERROR IN BATCH ***** ");
+            System.out.println("Error: " + e);
+            return false;
+        }
     }
 
     /*
@@ -286,6 +1501,28 @@ public class NameSurfer {
         return sc;
     }
 
+    /*
+     * Load the Names object stored in the File with the given name, through the
+     * snapshot next to it when that snapshot is up to date. pre: fileName != null
+     * post: Return the Names object or null if the File does not exist in the
+     * current directory or cannot be read.
+     */
+    private static Names loadNames(String fileName) {
+        Names result = null;
+        try {
+            result = Names.load(Paths.get(fileName));
+        } catch (IOException e) {
+            System.out.println("\n***** ERROR IN READING FILE ***** ");
+            System.out.println("Can't read this file " + fileName + " in the current directory.");
+            System.out.println("Error: " + e);
+            String currentDir = System.getProperty("user.dir");
+            System.out.println("Be sure " + fileName + " is in this directory: ");
+            System.out.println(currentDir);
+            System.out.println("\nReturning null from method.");
+        }
+        return result;
+    }
+
     /**
      * Display the names that have appeared in every decade. <br>
      * pre: n != null <br>
@@ -0,0 +1,476 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a file of NameSurfer menu queries against one Names object without the
+ * interactive menu. Each line of the query file holds one query: a menu option
+ * given by its number or its name, followed by its argument. <br>
+ * <tt>1</tt> or <tt>search partialName</tt> <br>
+ * <tt>2</tt> or <tt>name name</tt> <br>
+ * <tt>3</tt> or <tt>appear-once</tt> <br>
+ * <tt>4</tt> or <tt>appear-always</tt> <br>
+ * <tt>5</tt> or <tt>more-popular</tt> <br>
+ * <tt>6</tt> or <tt>less-popular</tt> <br>
+ * <tt>7</tt> or <tt>sudden threshold [maxWidth]</tt> <br>
+ * <tt>8</tt> or <tt>quit</tt> ends the batch. Blank lines and lines starting
+ * with # are skipped. <br>
+ * Results are written in the order of the queries, as TSV (one line per result
+ * holding the query number, command, argument and the result, or one line
+ * holding only the number, command and argument for a query with no results)
+ * or as JSON (one object per query holding its results and its time). A query
+ * that cannot be parsed or that fails while running is written as an error and
+ * the batch goes on. <br>
+ * Queries are run in blocks. With more than one thread the queries of a block
+ * run concurrently, which is safe because a Names object is never modified,
+ * and the block is written once all of its queries are done. <br>
+ * The time of every query is kept for the summary, and written per query with
+ * writeTimings(). The results themselves are dropped once written, so memory
+ * does not grow with the size of the output.
+ *
+ * @author Ryan Parappuram
+ */
+public class NameSurferBatch {
+
+    /**
+     * Output formats.
+     */
+    public enum Format {
+        TSV, JSON
+    }
+
+    /**
+     * The menu options a query may run, in menu order.
+     */
+    private enum Command {
+        SEARCH("search"), NAME("name"), APPEAR_ONCE("appear-once"),
+        APPEAR_ALWAYS("appear-always"), MORE_POPULAR("more-popular"),
+        LESS_POPULAR("less-popular"), SUDDEN("sudden");
+
+        private final String keyword;
+
+        private Command(String word) {
+            keyword = word;
+        }
+    }
+
+    // queries read, run and written at a time
+    private static final int BLOCK_SIZE = 1024;
+    private static final String QUIT = "quit";
+    private static final int QUIT_CHOICE = Command.values().length + 1;
+    private static final double NANOS_PER_MICRO = 1e3;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final Names names;
+    private final Format format;
+    private final int threads;
+    // time of every query, overall and for each command
+    private final NamesMetrics.Histogram times = new NamesMetrics.Histogram();
+    private final NamesMetrics.Histogram[] commandTimes;
+    // the time of every query that ran, for writeTimings()
+    private final ArrayList<Timing> timings = new ArrayList<>();
+    private int numQueries;
+    private int errors;
+    private long elapsedNanos;
+
+    /**
+     * One line of the query file.
+     */
+    private static class Query {
+        private final int number;
+        private final String line;
+        private Command command;
+        private String argument = "";
+        private int threshold;
+        private int maxWidth = 1;
+        // why the line cannot be run, null if it can
+        private String error;
+
+        private Query(int queryNumber, String text) {
+            number = queryNumber;
+            line = text;
+        }
+    }
+
+    /**
+     * The output of one query and how long it took.
+     */
+    private static class Result {
+        private final Query query;
+        private final String text;
+        private final int count;
+        private final long nanos;
+
+        private Result(Query source, String output, int resultCount, long queryNanos) {
+            query = source;
+            text = output;
+            count = resultCount;
+            nanos = queryNanos;
+        }
+    }
+
+    /**
+     * What writeTimings() needs to know about a query that ran.
+     */
+    private static class Timing {
+        private final int number;
+        private final Command command;
+        private final String argument;
+        private final int count;
+        private final long nanos;
+
+        private Timing(Result result) {
+            number = result.query.number;
+            command = result.query.command;
+            argument = result.query.argument;
+            count = result.count;
+            nanos = result.nanos;
+        }
+    }
+
+    /**
+     * Creates a new NameSurferBatch running queries against a Names object.
+     *
+     * @param source       != null, Names object the queries run against
+     * @param outputFormat != null, how results are written
+     * @param numThreads   >= 1, number of queries to run at once
+     */
+    public NameSurferBatch(Names source, Format outputFormat, int numThreads) {
+        if (source == null || outputFormat == null || numThreads < 1) {
+            throw new IllegalArgumentException(
+                    "source and outputFormat may not be null and numThreads must be at least 1");
+        }
+
+        names = source;
+        format = outputFormat;
+        threads = numThreads;
+        commandTimes = new NamesMetrics.Histogram[Command.values().length];
+        for (int i = 0; i < commandTimes.length; i++) {
+            commandTimes[i] = new NamesMetrics.Histogram();
+        }
+    }
+
+    /**
+     * Runs every query read from queries and writes the results to out. out is
+     * flushed but not closed.
+     *
+     * @param queries != null, the query file
+     * @param out     != null, where the results are written, should be buffered
+     * @throws IOException if reading the queries or writing the results fails
+     */
+    public void run(BufferedReader queries, Writer out) throws IOException {
+        if (queries == null || out == null) {
+            throw new IllegalArgumentException("The parameters cannot be null");
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            ArrayList<Query> block = new ArrayList<>(BLOCK_SIZE);
+            int number = numQueries;
+            boolean quit = false;
+            while (!quit) {
+                String line = queries.readLine();
+                quit = line == null;
+                if (!quit && !line.isBlank() && !line.trim().startsWith("#")) {
+                    Query query = parse(++number, line);
+                    quit = query == null;
+                    if (!quit) {
+                        block.add(query);
+                    }
+                }
+                if (block.size() == BLOCK_SIZE || (quit && !block.isEmpty())) {
+                    writeBlock(runBlock(block, pool), out);
+                    block.clear();
+                }
+            }
+            out.flush();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Runs a block of queries, on pool if there is one.
+     *
+     * @return the results in the order of the queries.
+     */
+    private List<Result> runBlock(List<Query> block, ExecutorService pool) throws IOException {
+        ArrayList<Result> results = new ArrayList<>(block.size());
+        if (pool == null) {
+            for (Query query : block) {
+                results.add(execute(query));
+            }
+            return results;
+        }
+
+        ArrayList<Callable<Result>> tasks = new ArrayList<>(block.size());
+        for (Query query : block) {
+            tasks.add(() -> execute(query));
+        }
+        try {
+            for (Future<Result> result : pool.invokeAll(tasks)) {
+                results.add(result.get());
+            }
+        } catch (ExecutionException e) {
+            // execute() turns every RuntimeException of a query into an error
+            // row, so only an Error gets here
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running queries", e);
+        }
+        return results;
+    }
+
+    /**
+     * Writes the results of a block and adds their times to the summary. Only
+     * the times are kept, the results are dropped with the block.
+     */
+    private void writeBlock(List<Result> results, Writer out) throws IOException {
+        for (Result result : results) {
+            out.write(result.text);
+            numQueries++;
+            if (result.query.error != null) {
+                errors++;
+            } else {
+                timings.add(new Timing(result));
+                times.record(result.nanos);
+                commandTimes[result.query.command.ordinal()].record(result.nanos);
+            }
+        }
+    }
+
+    /**
+     * Parses one line of the query file.
+     *
+     * @param number: number of the query, counting from 1
+     * @param line:   the line, not blank
+     * @return the query, with error set if the line is not a valid query, or
+     *         null if the line ends the batch.
+     */
+    private static Query parse(int number, String line) {
+        Query query = new Query(number, line);
+        String[] parts = line.trim().split("\\s+");
+        String word = parts[0].toLowerCase(Locale.ROOT);
+        Command[] commands = Command.values();
+        if (word.equals(QUIT) || word.equals(String.valueOf(QUIT_CHOICE))) {
+            return null;
+        }
+        for (int i = 0; i < commands.length; i++) {
+            if (word.equals(commands[i].keyword) || word.equals(String.valueOf(i + 1))) {
+                query.command = commands[i];
+            }
+        }
+        if (query.command == null) {
+            query.error = "unknown command " + parts[0];
+            return query;
+        }
+
+        boolean takesArgument = query.command == Command.SEARCH
+                || query.command == Command.NAME || query.command == Command.SUDDEN;
+        int maxParts = query.command == Command.SUDDEN ? 3 : takesArgument ? 2 : 1;
+        if (takesArgument && parts.length < 2) {
+            query.error = query.command.keyword + " needs an argument";
+        } else if (parts.length > maxParts) {
+            query.error = "too many arguments for " + query.command.keyword;
+        } else if (takesArgument) {
+            query.argument = parts[1];
+        }
+        if (query.command == Command.SUDDEN && query.error == null) {
+            try {
+                query.threshold = Integer.parseInt(parts[1]);
+                if (parts.length == 3) {
+                    query.maxWidth = Integer.parseInt(parts[2]);
+                    query.argument += " " + parts[2];
+                }
+            } catch (NumberFormatException e) {
+                query.error = "sudden needs an int threshold and maxWidth";
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Runs one query and formats its results.
+     */
+    private Result execute(Query query) {
+        if (query.error != null) {
+            return new Result(query, formatError(query), 0, 0);
+        }
+
+        List<NameRecord> records = null;
+        List<String> list = null;
+        long start = System.nanoTime();
+        try {
+            if (query.command == Command.SEARCH) {
+                records = names.getMatches(query.argument);
+            } else if (query.command == Command.NAME) {
+                NameRecord record = names.getName(query.argument);
+                records = record == null ? List.of() : List.of(record);
+            } else if (query.command == Command.APPEAR_ONCE) {
+                list = names.rankedOnlyOneDecade();
+            } else if (query.command == Command.APPEAR_ALWAYS) {
+                list = names.rankedEveryDecade();
+            } else if (query.command == Command.MORE_POPULAR) {
+                list = names.alwaysMorePopular();
+            } else if (query.command == Command.LESS_POPULAR) {
+                list = names.alwaysLessPopular();
+            } else {
+                records = names.suddenlyPopular(query.threshold, query.maxWidth);
+            }
+        } catch (IllegalArgumentException e) {
+            query.error = e.getMessage();
+            return new Result(query, formatError(query), 0, 0);
+        } catch (RuntimeException e) {
+            // a failing query is reported like a malformed one
+            query.error = e.toString();
+            return new Result(query, formatError(query), 0, 0);
+        }
+        long nanos = System.nanoTime() - start;
+
+        int count = records != null ? records.size() : list.size();
+        return new Result(query, format == Format.TSV ? formatTsv(query, records, list)
+                : formatJson(query, records, list, nanos), count, nanos);
+    }
+
+    /**
+     * Writes the results of a query as TSV lines: query number, command,
+     * argument, then the name, best decade and ranks of a NameRecord or just a
+     * name. A query with no results gets one line with only the query number,
+     * command and argument.
+     */
+    private static String formatTsv(Query query, List<NameRecord> records, List<String> list) {
+        String columns = query.number + "\t" + query.command.keyword + "\t" + query.argument;
+        if ((records != null ? records.size() : list.size()) == 0) {
+            return columns + "\n";
+        }
+        String prefix = columns + "\t";
+        StringBuilder text = new StringBuilder();
+        if (records != null) {
+            for (NameRecord record : records) {
+                text.append(prefix).append(record.getName()).append('\t')
+                        .append(record.bestDecade()).append('\t');
+                for (int decade = 0; decade < record.getNumDecades(); decade++) {
+                    text.append(decade == 0 ? "" : " ").append(record.getRank(decade));
+                }
+                text.append('\n');
+            }
+        } else {
+            for (String name : list) {
+                text.append(prefix).append(name).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the results of a query as one JSON object on one line.
+     */
+    private static String formatJson(Query query, List<NameRecord> records, List<String> list,
+            long nanos) {
+        StringBuilder json = new StringBuilder("{\"query\":").append(query.number)
+                .append(",\"command\":\"").append(query.command.keyword)
+                .append("\",\"argument\":");
+        NamesServer.appendString(json, query.argument);
+        int count = records != null ? records.size() : list.size();
+        json.append(",\"count\":").append(count);
+        json.append(",\"micros\":").append(String.format(Locale.ROOT, "%.1f",
+                nanos / NANOS_PER_MICRO));
+        json.append(",\"results\":[");
+        for (int i = 0; i < count; i++) {
+            json.append(i == 0 ? "" : ",");
+            if (records != null) {
+                NamesServer.appendRecord(json, records.get(i));
+            } else {
+                NamesServer.appendString(json, list.get(i));
+            }
+        }
+        return json.append("]}\n").toString();
+    }
+
+    /**
+     * Writes a query that could not be run.
+     */
+    private String formatError(Query query) {
+        if (format == Format.TSV) {
+            return query.number + "\terror\t" + query.line.trim().replace('\t', ' ') + "\t"
+                    + query.error + "\n";
+        }
+        StringBuilder json = new StringBuilder("{\"query\":").append(query.number)
+                .append(",\"line\":");
+        NamesServer.appendString(json, query.line.trim());
+        json.append(",\"error\":");
+        NamesServer.appendString(json, query.error);
+        return json.append("}\n").toString();
+    }
+
+    /**
+     * Writes the time of every query run so far as TSV lines: query number,
+     * command, argument, number of results and microseconds. Queries that could
+     * not be run are left out.
+     *
+     * @param out != null, where the times are written. out is flushed but not
+     *            closed.
+     * @throws IOException if writing fails
+     */
+    public void writeTimings(Writer out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("The parameter out cannot be null");
+        }
+
+        for (Timing timing : timings) {
+            out.write(timing.number + "\t" + timing.command.keyword + "\t" + timing.argument
+                    + "\t" + timing.count + "\t"
+                    + String.format(Locale.ROOT, "%.1f", timing.nanos / NANOS_PER_MICRO) + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Describes the queries run so far: how many, the total time and rate, and
+     * the count, mean, percentiles and maximum of the query times of each
+     * command.
+     *
+     * @return the summary as text.
+     */
+    public String summary() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT,
+                "%d queries (%d errors) in %.1f ms, %.0f queries/s on %d thread%s%n",
+                numQueries, errors, elapsedNanos / NANOS_PER_MILLI,
+                elapsedNanos == 0 ? 0 : numQueries * 1e9 / elapsedNanos, threads,
+                threads == 1 ? "" : "s"));
+        text.append(String.format(Locale.ROOT, "%-16s %8s %10s %10s %10s %10s%n",
+                "query time (us)", "count", "mean", "p50", "p99", "max"));
+        text.append(summaryLine("all", times));
+        for (Command command : Command.values()) {
+            if (commandTimes[command.ordinal()].getCount() > 0) {
+                text.append(summaryLine(command.keyword, commandTimes[command.ordinal()]));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Formats one line of the summary.
+     */
+    private static String summaryLine(String label, NamesMetrics.Histogram histogram) {
+        return String.format(Locale.ROOT, "%-16s %8d %10.1f %10.1f %10.1f %10.1f%n", label,
+                histogram.getCount(), histogram.getMean() / NANOS_PER_MICRO,
+                histogram.getValueAtPercentile(50) / NANOS_PER_MICRO,
+                histogram.getValueAtPercentile(99) / NANOS_PER_MICRO,
+                histogram.getMax() / NANOS_PER_MICRO);
+    }
+}
@@ -1,16 +1,71 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
 
 /**
  * A collection of NameRecords. Stores NameRecord objects and provides methods
  * to select NameRecords based on various criteria.
  * 
+ * The ranks of every name are stored in one RankMatrix whose rows are sorted by
+ * name, and the NameRecord at index i of this Names object views row i of that
+ * matrix. Queries scan the matrix directly and only hand out the NameRecords
+ * that match. <br>
+ * For each NameRecord trend flag a BitSet holds the indexes of the NameRecords
+ * the flag applies to, so the trend queries only visit matching NameRecords and
+ * can be combined with each other through trendRows(). <br>
+ * A DecadeRankIndex keeps the rows of every decade sorted by rank, so topK()
+ * and rankRange() only visit the NameRecords they return, and nameAtRank()
+ * finds the NameRecords holding a rank with a table lookup. A SpikeIndex
+ * answers suddenlyPopular() for any threshold without rescanning, and
+ * similarTo() searches a TrendSimilarity built on first use. select() and
+ * count() run a NameQuery, which combines several conditions and picks the
+ * cheapest of these indexes to start from. <br>
+ * A Names object is never modified after it has been constructed and none of
+ * its queries write to shared state, so one Names object may be shared by many
+ * threads without locking. <br>
+ * parallel() returns a view of a Names object that splits the queries still
+ * scanning every NameRecord across a ForkJoinPool once there are enough
+ * NameRecords to make that worthwhile; indexed queries are not affected. <br>
+ * writeSnapshot() saves a Names object in a binary form that readSnapshot()
+ * loads far faster than the text file it came from. <br>
+ * appendDecade() adds a decade by building a new Names object from this one, so
+ * readers still using this Names object keep seeing consistent data.
+ * 
  * @author Ryan Parappuram
  */
 public class Names {
 
-    private ArrayList<NameRecord> names;
+    private final RankMatrix matrix;
+    private final ArrayList<NameRecord> names;
+    private final NameIndex nameIndex;
+    private final NgramIndex ngramIndex;
+    private final DecadeRankIndex decadeIndex;
+    private final SpikeIndex spikeIndex;
+    private final TrendSimilarity similarity;
+    // trendIndex[i] holds the rows with trend flag 1 << i
+    private final BitSet[] trendIndex;
+    // pool to run scans on, null if this Names object scans sequentially
+    private final ForkJoinPool pool;
+
+    /** Suffix load(textPath) adds to a data file's name to find its snapshot. */
+    public static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final int NUM_TREND_FLAGS = 4;
+    private static final int DECADE_INCREMENT = 10;
+    // scans of fewer rows than this stay sequential even in parallel mode
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    // smallest number of rows a parallel scan gives to one task
+    private static final int MIN_SCAN_SPLIT = 1 << 11;
 
     /**
      * Construct a new Names object based on the data source the Scanner sc is
@@ -23,17 +78,406 @@ public class Names {
      *           start of the data source.
      */
     public Names(Scanner sc) {
-        names = new ArrayList<>();
+        this(readAll(sc));
+    }
+
+    /**
+     * Construct a new Names object holding every row of a RankMatrix. The rows are
+     * copied in sorted order based on name and the indexes are built.
+     * 
+     * @param loaded: every valid record of a data source, in any order
+     */
+    Names(RankMatrix loaded) {
+        this(sortByName(loaded), null, null, null);
+    }
+
+    /**
+     * Sorts the rows of a RankMatrix by name, timing the sort for NamesMetrics.
+     * 
+     * @param loaded: every valid record of a data source, in any order
+     * @return a copy of loaded sorted by name.
+     */
+    private static RankMatrix sortByName(RankMatrix loaded) {
+        long start = NamesMetrics.start();
+        RankMatrix sorted = loaded.sortedByName();
+        NamesMetrics.phase(NamesMetrics.LoadPhase.SORT, start);
+        return sorted;
+    }
+
+    /**
+     * Construct a new Names object from a RankMatrix already sorted by name and,
+     * if they were saved earlier, its indexes.
+     * 
+     * @param sorted:             rows sorted by name
+     * @param prebuiltNameIndex:  NameIndex over sorted, or null to build one
+     * @param prebuiltNgramIndex: NgramIndex over sorted, or null to build one
+     * @param prebuiltDecadeIndex: DecadeRankIndex over sorted, or null to build
+     *                             one
+     */
+    Names(RankMatrix sorted, NameIndex prebuiltNameIndex, NgramIndex prebuiltNgramIndex,
+            DecadeRankIndex prebuiltDecadeIndex) {
+        long start = NamesMetrics.start();
+        matrix = sorted;
+        names = new ArrayList<>(matrix.size());
+        for (int row = 0; row < matrix.size(); row++) {
+            names.add(new NameRecord(matrix, row));
+        }
+        nameIndex = prebuiltNameIndex != null ? prebuiltNameIndex : new NameIndex(matrix);
+        ngramIndex = prebuiltNgramIndex != null ? prebuiltNgramIndex : new NgramIndex(matrix);
+        decadeIndex = prebuiltDecadeIndex != null ? prebuiltDecadeIndex
+                : new DecadeRankIndex(matrix);
+        spikeIndex = new SpikeIndex(matrix);
+        similarity = new TrendSimilarity(matrix);
+        trendIndex = new BitSet[NUM_TREND_FLAGS];
+        for (int i = 0; i < NUM_TREND_FLAGS; i++) {
+            trendIndex[i] = new BitSet(matrix.size());
+        }
+        for (int row = 0; row < matrix.size(); row++) {
+            int flags = matrix.getFlags(row);
+            for (int i = 0; i < NUM_TREND_FLAGS; i++) {
+                if ((flags & (1 << i)) != 0) {
+                    trendIndex[i].set(row);
+                }
+            }
+        }
+        pool = null;
+        NamesMetrics.phase(NamesMetrics.LoadPhase.INDEX, start);
+    }
+
+    /**
+     * Construct a new Names object from a data source in the same format the
+     * Names(Scanner) constructor reads, with the same rules for discarding lines.
+     * The bytes of the data source are parsed directly by a NameFileParser rather
+     * than through a Scanner, which is much faster for large data sources.
+     * 
+     * @param in != null, connected to a data file with baby names and positioned
+     *           at the start of the data source. in is not closed.
+     * @return a new Names object holding the valid records of the data source.
+     * @throws IOException if reading from in fails
+     */
+    public static Names fromStream(InputStream in) throws IOException {
+        return new Names(new NameFileParser(in).readAll());
+    }
+
+    /**
+     * Construct a new Names object from a data file in the same format the
+     * Names(Scanner) constructor reads, with the same rules for discarding lines.
+     * The file is mapped into memory and parsed in place, without copying it
+     * through a Scanner or stream buffer first.
+     * 
+     * @param path != null, path of a data file with baby names
+     * @return a new Names object holding the valid records of the file.
+     * @throws IOException if the file cannot be read
+     */
+    public static Names fromPath(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("The parameter path cannot be null");
+        }
+
+        return new Names(NameFileParser.readMapped(path));
+    }
+
+    /**
+     * Construct a new Names object from a data file like fromPath(Path), but parse
+     * the file in chunks concurrently on pool and sort the records in parallel.
+     * The result is the same as fromPath(Path) returns for the same file.
+     * 
+     * @param path != null, path of a data file with baby names
+     * @param pool != null, pool the file is parsed on
+     * @return a new Names object holding the valid records of the file.
+     * @throws IOException if the file cannot be read
+     */
+    public static Names fromPath(Path path, ForkJoinPool pool) throws IOException {
+        if (path == null || pool == null) {
+            throw new IllegalArgumentException("The parameters cannot be null");
+        }
+
+        return new Names(NameFileParser.readMapped(path, pool));
+    }
+
+    /**
+     * Construct a new Names object holding the records of several data files that
+     * may start at different decades and cover different numbers of decades. The
+     * records are placed on one decade axis running from the earliest base decade
+     * to the latest decade of any file. Each name appears once; a non zero rank
+     * from any file replaces an unranked decade, and the policy chooses between
+     * different non zero ranks for the same decade.
+     * 
+     * @param paths  != null, not empty, paths of data files whose base decades are
+     *               a whole number of decades apart
+     * @param policy != null, how to resolve conflicting ranks
+     * @return a new Names object holding the merged records.
+     * @throws IOException if a file cannot be read
+     */
+    public static Names merge(List<Path> paths, NameMerger.ConflictPolicy policy)
+            throws IOException {
+        return new Names(NameMerger.merge(paths, policy));
+    }
+
+    /**
+     * Writes a binary snapshot of this Names object, including its indexes, to
+     * the given file. The snapshot replaces the file only once it has been
+     * completely written.
+     * 
+     * @param path != null, path of the snapshot file
+     * @throws IOException if the snapshot cannot be written, or would be larger
+     *                     than the 2 GB (Integer.MAX_VALUE bytes) a snapshot may
+     *                     have
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("The parameter path cannot be null");
+        }
+
+        NamesSnapshot.write(path, matrix, nameIndex, ngramIndex, 0, 0);
+    }
+
+    /**
+     * Construct a new Names object from a snapshot written by writeSnapshot().
+     * 
+     * @param path != null, path of the snapshot file
+     * @return a new Names object holding the same records as the Names object the
+     *         snapshot was written from.
+     * @throws IOException if the snapshot cannot be read, is corrupt, was written
+     *                     in a different format version, or is larger than 2 GB
+     */
+    public static Names readSnapshot(Path path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("The parameter path cannot be null");
+        }
+
+        return NamesSnapshot.read(path, -1, -1);
+    }
+
+    /**
+     * Construct a new Names object from a data file, using the snapshot next to
+     * it (the data file's path followed by SNAPSHOT_SUFFIX) as load(textPath,
+     * snapshotPath) does.
+     * 
+     * @param textPath != null, path of a data file with baby names
+     * @return a new Names object holding the valid records of the data file.
+     * @throws IOException if the data file cannot be read
+     */
+    public static Names load(Path textPath) throws IOException {
+        if (textPath == null) {
+            throw new IllegalArgumentException("The parameter textPath cannot be null");
+        }
+
+        return load(textPath, textPath.resolveSibling(textPath.getFileName() + SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Construct a new Names object from a data file, using a snapshot of it when
+     * one is available. The snapshot is used only if it is intact and was made
+     * from the data file as it is now (same size and last modified time).
+     * Otherwise the data file is parsed with fromPath() and a new snapshot is
+     * written for next time. Failing to write the snapshot does not stop the
+     * data from loading. <br>
+     * A snapshot may be at most 2 GB (Integer.MAX_VALUE bytes). A larger snapshot
+     * is never read, and for data whose snapshot would be larger none is written,
+     * so such data is parsed on every load without rewriting the snapshot.
+     * 
+     * @param textPath     != null, path of a data file with baby names
+     * @param snapshotPath != null, path of the snapshot of the data file
+     * @return a new Names object holding the valid records of the data file.
+     * @throws IOException if the data file cannot be read
+     */
+    public static Names load(Path textPath, Path snapshotPath) throws IOException {
+        if (textPath == null || snapshotPath == null) {
+            throw new IllegalArgumentException("The parameters cannot be null");
+        }
+
+        long sourceSize = Files.size(textPath);
+        long sourceModified = Files.getLastModifiedTime(textPath).toMillis();
+        if (Files.exists(snapshotPath)) {
+            try {
+                return NamesSnapshot.read(snapshotPath, sourceSize, sourceModified);
+            } catch (IOException e) {
+                // stale or corrupt, fall back to the data file
+            }
+        }
+        Names result = fromPath(textPath);
+        try {
+            NamesSnapshot.write(snapshotPath, result.matrix, result.nameIndex,
+                    result.ngramIndex, sourceSize, sourceModified);
+        } catch (IOException e) {
+            // the snapshot is only a cache, the data loaded fine without it
+        }
+        return result;
+    }
+
+    /**
+     * Reads every line of the data source sc is connected to into a RankMatrix.
+     * 
+     * @param sc: connected to a data file with baby names and positioned at the
+     *            start of the data source
+     * @return RankMatrix holding every valid record of the data source.
+     */
+    private static RankMatrix readAll(Scanner sc) {
         int baseDecade = Integer.parseInt(sc.nextLine());
         int numRanks = Integer.parseInt(sc.nextLine());
+        RankMatrix loaded = new RankMatrix(baseDecade, numRanks, 0);
+        long start = NamesMetrics.start();
+        long readNanos = 0;
         while (sc.hasNextLine()) {
+            long readStart = NamesMetrics.start();
             String line = sc.nextLine();
-            NameRecord nameRecord = NameRecord.buildRecord(baseDecade, numRanks, line);
-            if (nameRecord != null) {
-                names.add(nameRecord);
+            readNanos += NamesMetrics.since(readStart);
+            NameRecord.addRecord(loaded, line);
+        }
+        NamesMetrics.loaded(start, readNanos);
+        return loaded;
+    }
+
+    /**
+     * Creates a view of source that shares all of its data and runs its scans on
+     * executor.
+     * 
+     * @param source:   Names object whose data is shared
+     * @param executor: pool to run scans on, null to scan sequentially
+     */
+    private Names(Names source, ForkJoinPool executor) {
+        matrix = source.matrix;
+        names = source.names;
+        nameIndex = source.nameIndex;
+        ngramIndex = source.ngramIndex;
+        decadeIndex = source.decadeIndex;
+        spikeIndex = source.spikeIndex;
+        similarity = source.similarity;
+        trendIndex = source.trendIndex;
+        pool = executor;
+    }
+
+    /**
+     * Returns a new Names object holding the data of this one plus one more
+     * decade after the last one. Every NameRecord gets the rank its name has in
+     * decadeRanks, or 0 if its name is not a key of decadeRanks. Names that are
+     * only in decadeRanks (with a non zero rank) are added, unranked in every
+     * earlier decade. <br>
+     * The trend flags and indexes of the existing names are updated from the
+     * ones already built rather than recomputed from scratch. This Names object
+     * is not changed, so it is safe to keep reading it while the append runs and
+     * then switch to the returned object (copy on write).
+     * 
+     * @param decadeRanks != null, rank of each name in the new decade. Names
+     *                    match exactly (case sensitive). Every rank is between 0
+     *                    and RankMatrix.MAX_RANK.
+     * @return a new Names object with one more decade.
+     */
+    public Names appendDecade(Map<String, Integer> decadeRanks) {
+        if (decadeRanks == null) {
+            throw new IllegalArgumentException("The parameter decadeRanks cannot be null");
+        }
+        for (Map.Entry<String, Integer> entry : decadeRanks.entrySet()) {
+            Integer rank = entry.getValue();
+            if (entry.getKey() == null || rank == null || rank < 0 || rank > RankMatrix.MAX_RANK) {
+                throw new IllegalArgumentException("decadeRanks must map names to ranks between 0 and "
+                        + RankMatrix.MAX_RANK);
             }
         }
-        Collections.sort(names);
+
+        int[] column = new int[matrix.size()];
+        for (int row = 0; row < matrix.size(); row++) {
+            column[row] = decadeRanks.getOrDefault(matrix.getName(row), 0);
+        }
+        ArrayList<String> added = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : decadeRanks.entrySet()) {
+            if (entry.getValue() != 0 && rowOf(entry.getKey()) < 0) {
+                added.add(entry.getKey());
+            }
+        }
+        Collections.sort(added);
+        String[] addedNames = added.toArray(new String[0]);
+        int[] addedRanks = new int[addedNames.length];
+        for (int i = 0; i < addedNames.length; i++) {
+            addedRanks[i] = decadeRanks.get(addedNames[i]);
+        }
+
+        int[] oldToNew = new int[matrix.size()];
+        int[] addedRows = new int[addedNames.length];
+        RankMatrix appended = matrix.appendDecade(column, addedNames, addedRanks, oldToNew,
+                addedRows);
+        Names result = new Names(appended, nameIndex.remap(appended, oldToNew, addedRows),
+                ngramIndex.remap(appended, oldToNew, addedRows),
+                decadeIndex.remap(appended, oldToNew));
+        return pool == null ? result : result.parallel(pool);
+    }
+
+    /**
+     * Finds the row holding exactly the given name.
+     * 
+     * @param name: name to search for, case sensitive
+     * @return a row whose name equals name, or -1 if there is none.
+     */
+    private int rowOf(String name) {
+        int low = 0;
+        int high = matrix.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = matrix.getName(mid).compareTo(name);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a view of this Names object whose queries split their scans across
+     * the common ForkJoinPool. The view shares all data with this Names object
+     * and returns the same results in the same (name sorted) order. Scans over
+     * fewer than a few thousand NameRecords stay sequential. <br>
+     * Only the queries that still visit every NameRecord are split: getMatches()
+     * with a partialName shorter than three characters, and select() and count()
+     * for a NameQuery none of whose conditions has an index. The trend queries,
+     * suddenlyPopular(), topK(), rankRange(), nameAtRank(), similarTo() and the
+     * other lookups read indexes built with this Names object, only visit the
+     * NameRecords they return, and run on the calling thread.
+     * 
+     * @return a parallel view of this Names object.
+     */
+    public Names parallel() {
+        return parallel(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns a view of this Names object whose queries split their scans across
+     * the given ForkJoinPool. The view shares all data with this Names object and
+     * returns the same results in the same (name sorted) order.
+     * 
+     * @param executor != null, pool the scans run on
+     * @return a parallel view of this Names object.
+     */
+    public Names parallel(ForkJoinPool executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("The parameter executor cannot be null");
+        }
+
+        return new Names(this, executor);
+    }
+
+    /**
+     * Returns a view of this Names object whose queries run on the calling thread.
+     * 
+     * @return a sequential view of this Names object, this if it is already
+     *         sequential.
+     */
+    public Names sequential() {
+        return pool == null ? this : new Names(this, null);
+    }
+
+    /**
+     * Determines if the queries of this Names object split their scans across a
+     * ForkJoinPool.
+     * 
+     * @return true if this is a parallel view, false otherwise.
+     */
+    public boolean isParallel() {
+        return pool != null;
     }
 
     /**
@@ -51,14 +495,161 @@ public class Names {
                     "partialName parameter may not be null or have length of 0");
         }
 
-        ArrayList<NameRecord> result = new ArrayList<>();
-        partialName = partialName.toLowerCase();
-        for (NameRecord nameRecord : names) {
-            if (nameRecord.getName().toLowerCase().contains(partialName)) {
-                result.add(nameRecord);
-            }
+        long start = NamesMetrics.start();
+        if (partialName.length() < NgramIndex.GRAM_LENGTH) {
+            // too short to use the trigram index
+            String shortName = partialName;
+            return timed("getMatches", start, recordsAt(scanRows(
+                    row -> NgramIndex.containsIgnoreCase(matrix.getName(row), shortName))));
         }
-        return result;
+        return timed("getMatches", start, toRecords(ngramIndex.matches(partialName)));
+    }
+
+    /**
+     * Returns an ArrayList of the first limit NameRecord objects whose names start
+     * with a given prefix, ignoring case. Only the names that start with prefix
+     * are visited, so this is suited to completing a name as it is typed.
+     * 
+     * @param prefix != null
+     * @param limit  >= 0, maximum number of NameRecords to return
+     * @return an ArrayList of up to limit NameRecords whose names start with
+     *         prefix, in order of name ignoring case. If there are no NameRecords
+     *         that meet this criteria returns an empty list.
+     */
+    public ArrayList<NameRecord> completions(String prefix, int limit) {
+        checkCompletionParameters(prefix, limit);
+        long start = NamesMetrics.start();
+        return timed("completions", start, toRecords(nameIndex.withPrefix(prefix, limit)));
+    }
+
+    /**
+     * Returns an ArrayList of the limit most popular NameRecord objects whose
+     * names start with a given prefix, ignoring case. Popularity is the rank of a
+     * name in its best decade.
+     * 
+     * @param prefix != null
+     * @param limit  >= 0, maximum number of NameRecords to return
+     * @return an ArrayList of up to limit NameRecords whose names start with
+     *         prefix, best ranked first. If there are no NameRecords that meet
+     *         this criteria returns an empty list.
+     */
+    public ArrayList<NameRecord> popularCompletions(String prefix, int limit) {
+        checkCompletionParameters(prefix, limit);
+        long start = NamesMetrics.start();
+        return timed("popularCompletions", start,
+                toRecords(nameIndex.mostPopularWithPrefix(prefix, limit)));
+    }
+
+    /**
+     * Checks the preconditions of the completion methods.
+     * 
+     * @param prefix != null
+     * @param limit  >= 0
+     */
+    private static void checkCompletionParameters(String prefix, int limit) {
+        if (prefix == null || limit < 0) {
+            throw new IllegalArgumentException(
+                    "prefix parameter may not be null and limit may not be negative");
+        }
+    }
+
+    /**
+     * Returns an ArrayList of the k NameRecords with the best ranks in a decade.
+     * Only the returned NameRecords are visited.
+     * 
+     * @param decadeYear first year of a decade in this Names object, such as 1950
+     * @param k          >= 0, maximum number of NameRecords to return
+     * @return an ArrayList of up to k NameRecords ranked in decadeYear, best rank
+     *         first. NameRecords with equal ranks are in sorted order based on
+     *         name.
+     */
+    public ArrayList<NameRecord> topK(int decadeYear, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k may not be negative");
+        }
+
+        long start = NamesMetrics.start();
+        return timed("topK", start, toRecords(decadeIndex.top(decadeOf(decadeYear), k)));
+    }
+
+    /**
+     * Returns an ArrayList of the NameRecords whose rank in a decade is between
+     * lowRank and highRank, inclusive, such as ranks 100 to 200 of the 1950s.
+     * 
+     * @param decadeYear first year of a decade in this Names object, such as 1950
+     * @param lowRank    >= 1, best rank to include
+     * @param highRank   >= lowRank, worst rank to include
+     * @return an ArrayList of the NameRecords ranked from lowRank to highRank in
+     *         decadeYear, best rank first. NameRecords with equal ranks are in
+     *         sorted order based on name. If there are none returns an empty list.
+     */
+    public ArrayList<NameRecord> rankRange(int decadeYear, int lowRank, int highRank) {
+        if (lowRank < 1 || highRank < lowRank) {
+            throw new IllegalArgumentException(
+                    "lowRank must be at least 1 and highRank may not be less than lowRank");
+        }
+
+        long start = NamesMetrics.start();
+        return timed("rankRange", start,
+                toRecords(decadeIndex.range(decadeOf(decadeYear), lowRank, highRank)));
+    }
+
+    /**
+     * Returns an ArrayList of the NameRecords holding a given rank in a decade,
+     * such as rank 1 in 1980. The data files rank boys and girls separately, so
+     * a rank is usually held by more than one name. Looking up a rank takes
+     * constant time.
+     *
+     * @param decadeYear first year of a decade in this Names object, such as 1980
+     * @param rank       >= 1, rank to look up
+     * @return an ArrayList of the NameRecords ranked rank in decadeYear, in sorted
+     *         order based on name. If no name has that rank, for example because
+     *         the data source skips it, returns an empty list; missingRanks()
+     *         lists those ranks.
+     */
+    public ArrayList<NameRecord> nameAtRank(int decadeYear, int rank) {
+        if (rank < 1) {
+            throw new IllegalArgumentException("rank must be at least 1");
+        }
+
+        long start = NamesMetrics.start();
+        return timed("nameAtRank", start,
+                toRecords(decadeIndex.rowsAtRank(decadeOf(decadeYear), rank)));
+    }
+
+    /**
+     * Returns the ranks between 1 and the worst rank of a decade that no name in
+     * this Names object has. These are holes in the data source, or ranks whose
+     * lines were discarded while loading.
+     *
+     * @param decadeYear first year of a decade in this Names object, such as 1980
+     * @return an ArrayList of the missing ranks of decadeYear in ascending order.
+     *         If no ranks are missing returns an empty list.
+     */
+    public ArrayList<Integer> missingRanks(int decadeYear) {
+        long start = NamesMetrics.start();
+        int[] missing = decadeIndex.missingRanks(decadeOf(decadeYear));
+        ArrayList<Integer> result = new ArrayList<>(missing.length);
+        for (int rank : missing) {
+            result.add(rank);
+        }
+        return timed("missingRanks", start, result);
+    }
+
+    /**
+     * Converts the first year of a decade into the index of that decade.
+     * 
+     * @param decadeYear: first year of a decade in this Names object
+     * @return index of the decade starting in decadeYear.
+     */
+    int decadeOf(int decadeYear) {
+        int offset = decadeYear - matrix.getBaseDecade();
+        if (offset < 0 || offset % DECADE_INCREMENT != 0
+                || offset / DECADE_INCREMENT >= matrix.getNumDecades()) {
+            throw new IllegalArgumentException("decadeYear must be the first year of one of the "
+                    + matrix.getNumDecades() + " decades starting in " + matrix.getBaseDecade());
+        }
+        return offset / DECADE_INCREMENT;
     }
 
     /**
@@ -71,13 +662,9 @@ public class Names {
      *         no NameRecords that meet this criteria returns an empty list.
      */
     public ArrayList<String> rankedEveryDecade() {
-        ArrayList<String> result = new ArrayList<>();
-        for (NameRecord nameRecord : names) {
-            if (nameRecord.rankedEveryDecade()) {
-                result.add(nameRecord.getName());
-            }
-        }
-        return result;
+        long start = NamesMetrics.start();
+        BitSet rows = trendIndex[Integer.numberOfTrailingZeros(NameRecord.RANKED_EVERY_DECADE)];
+        return timed("rankedEveryDecade", start, namesAt(rows));
     }
 
     /**
@@ -91,13 +678,9 @@ public class Names {
      *         list.
      */
     public ArrayList<String> rankedOnlyOneDecade() {
-        ArrayList<String> result = new ArrayList<>();
-        for (NameRecord nameRecord : names) {
-            if (nameRecord.rankedOnlyOneDecade()) {
-                result.add(nameRecord.getName());
-            }
-        }
-        return result;
+        long start = NamesMetrics.start();
+        BitSet rows = trendIndex[Integer.numberOfTrailingZeros(NameRecord.RANKED_ONE_DECADE)];
+        return timed("rankedOnlyOneDecade", start, namesAt(rows));
     }
 
     /**
@@ -109,13 +692,9 @@ public class Names {
      *         NameRecords that meet this criteria returns an empty list.
      */
     public ArrayList<String> alwaysMorePopular() {
-        ArrayList<String> result = new ArrayList<>();
-        for (NameRecord nameRecord : names) {
-            if (nameRecord.morePopularEachDecade()) {
-                result.add(nameRecord.getName());
-            }
-        }
-        return result;
+        long start = NamesMetrics.start();
+        BitSet rows = trendIndex[Integer.numberOfTrailingZeros(NameRecord.MORE_POPULAR_EACH_DECADE)];
+        return timed("alwaysMorePopular", start, namesAt(rows));
     }
 
     /**
@@ -127,15 +706,92 @@ public class Names {
      *         NameRecords that meet this criteria returns an empty list.
      */
     public ArrayList<String> alwaysLessPopular() {
-        ArrayList<String> result = new ArrayList<>();
-        for (NameRecord nameRecord : names) {
-            if (nameRecord.lessPopularEachDecade()) {
-                result.add(nameRecord.getName());
+        long start = NamesMetrics.start();
+        BitSet rows = trendIndex[Integer.numberOfTrailingZeros(NameRecord.LESS_POPULAR_EACH_DECADE)];
+        return timed("alwaysLessPopular", start, namesAt(rows));
+    }
+
+    /**
+     * Returns the indexes of the NameRecords in this Names object that have every
+     * trend flag in trendFlags. Indexes are positions in name order, the same
+     * order every query returns its results in. The BitSet returned is a copy, so
+     * it may be combined with other BitSets (for example through and() or or())
+     * and then passed to recordsAt().
+     * 
+     * @param trendFlags bit mask of NameRecord trend flags, such as
+     *                   NameRecord.RANKED_EVERY_DECADE |
+     *                   NameRecord.MORE_POPULAR_EACH_DECADE
+     * @return a new BitSet of the indexes of the NameRecords that have every flag
+     *         in trendFlags. If trendFlags is 0 every index is set.
+     */
+    public BitSet trendRows(int trendFlags) {
+        if ((trendFlags >>> NUM_TREND_FLAGS) != 0) {
+            throw new IllegalArgumentException("trendFlags may only hold NameRecord trend flags");
+        }
+
+        long start = NamesMetrics.start();
+        BitSet result = rowsWithTrends(trendFlags);
+        if (start != NamesMetrics.NOT_TIMED) {
+            NamesMetrics.query("trendRows", start, result.cardinality());
+        }
+        return result;
+    }
+
+    /**
+     * Does the work of trendRows() without recording it with NamesMetrics, for
+     * queries that use it as one of their steps. Does not check trendFlags, bits
+     * other than the trend flags are ignored.
+     * 
+     * @param trendFlags: bit mask of NameRecord trend flags
+     * @return a new BitSet of the rows that have every flag in trendFlags.
+     */
+    BitSet rowsWithTrends(int trendFlags) {
+        BitSet result = new BitSet(matrix.size());
+        result.set(0, matrix.size());
+        for (int i = 0; i < NUM_TREND_FLAGS; i++) {
+            if ((trendFlags & (1 << i)) != 0) {
+                result.and(trendIndex[i]);
             }
         }
         return result;
     }
 
+    /**
+     * Returns an ArrayList of the NameRecords at the given indexes, such as the
+     * indexes returned by trendRows().
+     * 
+     * @param rows != null, indexes of NameRecords in this Names object
+     * @return an ArrayList of the NameRecords at the indexes set in rows, in sorted
+     *         order based on name.
+     */
+    public ArrayList<NameRecord> recordsAt(BitSet rows) {
+        if (rows == null || rows.length() > matrix.size()) {
+            throw new IllegalArgumentException(
+                    "rows may not be null and may only hold indexes of NameRecords");
+        }
+
+        ArrayList<NameRecord> result = new ArrayList<>(rows.cardinality());
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            result.add(names.get(row));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the names at the indexes set in rows.
+     * 
+     * @param rows: indexes of NameRecords in this Names object
+     * @return an ArrayList of the names at the indexes set in rows, in sorted
+     *         order.
+     */
+    private ArrayList<String> namesAt(BitSet rows) {
+        ArrayList<String> result = new ArrayList<>(rows.cardinality());
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            result.add(matrix.getName(row));
+        }
+        return result;
+    }
+
     /**
      * Returns an ArrayList of NameRecords that have experienced a sudden increase
      * in popularity one decade. The NameRecords must be in sorted order based on
@@ -147,15 +803,220 @@ public class Names {
      *         criteria, returns an empty list.
      */
     public ArrayList<NameRecord> suddenlyPopular(int threshold) {
-        ArrayList<NameRecord> result = new ArrayList<>();
-        for (NameRecord nameRecord : names) {
-            if (nameRecord.suddenPopularity(threshold)) {
-                result.add(nameRecord);
+        return suddenlyPopular(threshold, 1);
+    }
+
+    /**
+     * Returns an ArrayList of NameRecords that were ranked for a few decades in a
+     * row, always within a threshold, and unranked right before and right after.
+     * The NameRecords must be in sorted order based on name. The spikes are
+     * indexed when this Names object is built, so each call only visits the
+     * NameRecords it returns.
+     * 
+     * @param threshold worst rank the name may have while ranked
+     * @param maxWidth  >= 1, most decades in a row the name may be ranked
+     * @return A list of the NameRecords that had between 1 and maxWidth decades
+     *         in a row ranked within threshold, with an unranked decade right
+     *         before and right after them. If there are no NameRecords that meet
+     *         this criteria, returns an empty list.
+     */
+    public ArrayList<NameRecord> suddenlyPopular(int threshold, int maxWidth) {
+        if (maxWidth < 1) {
+            throw new IllegalArgumentException("maxWidth must be at least 1");
+        }
+
+        long start = NamesMetrics.start();
+        return timed("suddenlyPopular", start,
+                recordsAt(spikeIndex.rowsWithin(threshold, maxWidth)));
+    }
+
+    /**
+     * Finds every row of the matrix that passes test. Runs on the pool of this
+     * Names object if it has one and there are enough rows, otherwise runs on the
+     * calling thread.
+     * 
+     * @param test: check each row must pass, safe to call from many threads
+     * @return a BitSet of the rows that pass test.
+     */
+    BitSet scanRows(IntPredicate test) {
+        if (pool == null || matrix.size() < PARALLEL_THRESHOLD) {
+            return RowScan.scan(test, 0, matrix.size());
+        }
+        int split = Math.max(MIN_SCAN_SPLIT, matrix.size() / (pool.getParallelism() * 4));
+        return pool.invoke(new RowScan(test, 0, matrix.size(), split));
+    }
+
+    /**
+     * Scans a range of rows by splitting it in half until each piece is small
+     * enough, then merging the results of the pieces.
+     */
+    private static class RowScan extends RecursiveTask<BitSet> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IntPredicate test;
+        private final int low;
+        private final int high;
+        private final int split;
+
+        private RowScan(IntPredicate rowTest, int lowRow, int highRow, int splitSize) {
+            test = rowTest;
+            low = lowRow;
+            high = highRow;
+            split = splitSize;
+        }
+
+        @Override
+        protected BitSet compute() {
+            if (high - low <= split) {
+                return scan(test, low, high);
+            }
+            int mid = (low + high) >>> 1;
+            RowScan upper = new RowScan(test, mid, high, split);
+            upper.fork();
+            BitSet result = new RowScan(test, low, mid, split).compute();
+            result.or(upper.join());
+            return result;
+        }
+
+        private static BitSet scan(IntPredicate test, int low, int high) {
+            BitSet result = new BitSet(high);
+            for (int row = low; row < high; row++) {
+                if (test.test(row)) {
+                    result.set(row);
+                }
             }
+            return result;
+        }
+    }
+
+    /**
+     * Returns an ArrayList of the NameRecords that pass every condition of a
+     * NameQuery. The query uses the cheapest index this Names object has for
+     * one of its conditions and checks the rest in one pass over what that
+     * index returns.
+     * 
+     * @param query != null, conditions the NameRecords must pass
+     * @return an ArrayList of the matching NameRecords in sorted order based on
+     *         name. If there are none returns an empty list.
+     */
+    public ArrayList<NameRecord> select(NameQuery query) {
+        if (query == null) {
+            throw new IllegalArgumentException("The parameter query cannot be null");
         }
+
+        long start = NamesMetrics.start();
+        return timed("select", start, recordsAt(query.rows(this)));
+    }
+
+    /**
+     * Counts the NameRecords that pass every condition of a NameQuery, without
+     * building a list of them.
+     * 
+     * @param query != null, conditions the NameRecords must pass
+     * @return the number of matching NameRecords.
+     */
+    public int count(NameQuery query) {
+        if (query == null) {
+            throw new IllegalArgumentException("The parameter query cannot be null");
+        }
+
+        long start = NamesMetrics.start();
+        int result = query.rows(this).cardinality();
+        NamesMetrics.query("count", start, result);
         return result;
     }
 
+    // the parts of this Names object NameQuery plans against
+
+    RankMatrix matrix() {
+        return matrix;
+    }
+
+    NameIndex nameIndex() {
+        return nameIndex;
+    }
+
+    NgramIndex ngramIndex() {
+        return ngramIndex;
+    }
+
+    DecadeRankIndex decadeIndex() {
+        return decadeIndex;
+    }
+
+    SpikeIndex spikeIndex() {
+        return spikeIndex;
+    }
+
+    /**
+     * Records a query with NamesMetrics and passes its result through.
+     * 
+     * @param method: name of the query method
+     * @param start:  value NamesMetrics.start() returned when the query began
+     * @param result: result of the query
+     * @return result.
+     */
+    private static <T extends List<?>> T timed(String method, long start, T result) {
+        NamesMetrics.query(method, start, result.size());
+        return result;
+    }
+
+    /**
+     * Gets the NameRecords viewing the given rows.
+     * 
+     * @param rows: rows of the matrix
+     * @return an ArrayList of the NameRecords for rows, in the same order.
+     */
+    private ArrayList<NameRecord> toRecords(int[] rows) {
+        ArrayList<NameRecord> result = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            result.add(names.get(row));
+        }
+        return result;
+    }
+
+    /**
+     * Returns an ArrayList of the k NameRecords whose rank curves are most like
+     * the curve of a given name, measured by Euclidean distance between the
+     * popularity of the names in each decade.
+     * 
+     * @param name != null, name to compare with, ignoring case
+     * @param k    >= 0, maximum number of NameRecords to return
+     * @return an ArrayList of up to k NameRecords other than name, most similar
+     *         first. If name is not in this Names object returns an empty list.
+     */
+    public ArrayList<NameRecord> similarTo(String name, int k) {
+        return similarTo(name, k, TrendSimilarity.Distance.EUCLIDEAN);
+    }
+
+    /**
+     * Returns an ArrayList of the k NameRecords whose rank curves are most like
+     * the curve of a given name under the given distance. Most NameRecords are
+     * ruled out by a lower bound on their distance without being compared in
+     * full.
+     * 
+     * @param name     != null, name to compare with, ignoring case
+     * @param k        >= 0, maximum number of NameRecords to return
+     * @param distance != null, how to measure the distance between curves
+     * @return an ArrayList of up to k NameRecords other than name, most similar
+     *         first. NameRecords at the same distance are in sorted order based on
+     *         name. If name is not in this Names object returns an empty list.
+     */
+    public ArrayList<NameRecord> similarTo(String name, int k, TrendSimilarity.Distance distance) {
+        if (name == null || k < 0 || distance == null) {
+            throw new IllegalArgumentException(
+                    "name and distance may not be null and k may not be negative");
+        }
+
+        long start = NamesMetrics.start();
+        int row = nameIndex.find(name);
+        if (row < 0) {
+            return timed("similarTo", start, new ArrayList<>());
+        }
+        return timed("similarTo", start, toRecords(similarity.nearest(row, k, distance)));
+    }
+
     /**
      * Return the NameRecord in this Names object that matches the given String.
      * <br>
@@ -170,13 +1031,9 @@ public class Names {
             throw new IllegalArgumentException("The parameter name cannot be null");
         }
 
-        name = name.toLowerCase();
-        for (NameRecord nameRecord : names) {
-            if (nameRecord.getName().toLowerCase().equals(name)) {
-                return nameRecord;
-            }
-        }
-        return null;
-
+        long start = NamesMetrics.start();
+        int row = nameIndex.find(name);
+        NamesMetrics.query("getName", start, row < 0 ? 0 : 1);
+        return row < 0 ? null : names.get(row);
     }
 }
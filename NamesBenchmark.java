@@ -0,0 +1,330 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Benchmarks loading a data file and every Names query. For each data file and
+ * benchmark it runs a few warmup iterations, then measures throughput
+ * (operations per second) over several timed iterations, along with the
+ * number of bytes allocated per operation. <br>
+ * Usage: <tt>java NamesBenchmark [options] [data files]</tt> <br>
+ * Options: <br>
+ * <tt>-w n</tt> warmup iterations (default 3) <br>
+ * <tt>-i n</tt> measured iterations (default 5) <br>
+ * <tt>-t ms</tt> length of each iteration in milliseconds (default 1000) <br>
+ * <tt>-b regex</tt> only run benchmarks whose names match regex <br>
+ * <tt>-o file</tt> save the results to file <br>
+ * <tt>-c file</tt> compare the results with results saved earlier <br>
+ * <tt>-g n</tt> also run on a file of n names made by NameFileGenerator, may be
+ * given more than once, such as <tt>-g 100000 -g 1000000 -g 10000000</tt> <br>
+ * With no data files names.txt and names4.txt are used. Saving the results
+ * before a change and comparing with them after it shows how much the change
+ * helped or hurt.
+ *
+ * @author Ryan Parappuram
+ */
+public class NamesBenchmark {
+
+    private static final String[] DEFAULT_FILES = { "names.txt", "names4.txt" };
+    // names of the benchmarks, in the order they run
+    private static final String[] BENCHMARKS = { "load.scanner", "load.mapped", "getName",
+        "getMatches.short", "getMatches.long", "rankedEveryDecade", "rankedOnlyOneDecade",
+        "alwaysMorePopular", "alwaysLessPopular", "suddenlyPopular", "NameRecord.bestDecade" };
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+    // a batch of operations is timed as a whole once it takes at least this long
+    private static final long MIN_BATCH_NANOS = 100_000L;
+    private static final int NUM_LOOKUPS = 1024;
+
+    // results are added in here so the JIT cannot drop the work producing them
+    private static volatile long sink;
+
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+    private long iterationNanos = 1000 * NANOS_PER_MILLI;
+    private String filter = ".*";
+    private String saveFile;
+    private String compareFile;
+    private final ArrayList<String> dataFiles = new ArrayList<>();
+    private final ArrayList<Long> generatedSizes = new ArrayList<>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * An operation to measure. Returns a value derived from its result so the
+     * work is not optimized away.
+     */
+    private static interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * Runs the benchmarks given by the command line arguments.
+     *
+     * @param args options and data files, see the class comment
+     */
+    public static void main(String[] args) throws Exception {
+        NamesBenchmark benchmark = new NamesBenchmark();
+        if (!benchmark.parseArguments(args)) {
+            System.out.println("Usage: java NamesBenchmark [-w n] [-i n] [-t ms] [-b regex] "
+                    + "[-o file] [-c file] [data files]");
+            return;
+        }
+        benchmark.runAll();
+    }
+
+    /**
+     * Reads the command line options and data files.
+     *
+     * @return false if the arguments are not valid.
+     */
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-w")) {
+                    warmupIterations = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-i")) {
+                    measuredIterations = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-t")) {
+                    iterationNanos = Long.parseLong(args[++i]) * NANOS_PER_MILLI;
+                } else if (args[i].equals("-b")) {
+                    filter = args[++i];
+                } else if (args[i].equals("-o")) {
+                    saveFile = args[++i];
+                } else if (args[i].equals("-c")) {
+                    compareFile = args[++i];
+                } else if (args[i].equals("-g")) {
+                    generatedSizes.add(Long.parseLong(args[++i]));
+                } else if (args[i].startsWith("-")) {
+                    return false;
+                } else {
+                    dataFiles.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+        if (dataFiles.isEmpty() && generatedSizes.isEmpty()) {
+            dataFiles.addAll(List.of(DEFAULT_FILES));
+        }
+        return warmupIterations >= 0 && measuredIterations > 0 && iterationNanos > 0;
+    }
+
+    /**
+     * Runs every benchmark on every data file, prints the results and saves or
+     * compares them if asked to.
+     */
+    private void runAll() throws Exception {
+        for (long size : generatedSizes) {
+            // the same seed every run, so saved results stay comparable
+            Path generated = Files.createTempFile("names" + size + "-", ".txt");
+            generated.toFile().deleteOnExit();
+            new NameFileGenerator().numNames(size).seed(size).generate(generated);
+            dataFiles.add(generated.toString());
+        }
+        HashMap<String, double[]> baseline = compareFile == null ? new HashMap<>()
+                : readResults(compareFile);
+        ArrayList<String> saved = new ArrayList<>();
+        System.out.printf("%-28s %-16s %14s %12s %14s %10s%n", "Benchmark", "File", "ops/s",
+                "error", "B/op", "vs base");
+        for (String dataFile : dataFiles) {
+            for (String name : BENCHMARKS) {
+                if (!name.matches(filter)) {
+                    continue;
+                }
+                Operation operation = operation(name, dataFile);
+                double[] result = measure(operation);
+                String key = name + "," + fileLabel(dataFile);
+                double[] base = baseline.get(key);
+                String change = base == null ? ""
+                        : String.format("%+.1f%%", 100 * (result[0] - base[0]) / base[0]);
+                System.out.printf("%-28s %-16s %14.1f %12.1f %14.1f %10s%n", name,
+                        fileLabel(dataFile), result[0], result[1], result[2], change);
+                saved.add(key + "," + result[0] + "," + result[2]);
+            }
+        }
+        if (saveFile != null) {
+            Files.write(Paths.get(saveFile), saved);
+        }
+    }
+
+    /**
+     * Gets the name a data file is reported under. Generated files are named by
+     * their number of names rather than their random temporary name.
+     */
+    private static String fileLabel(String dataFile) {
+        String name = new File(dataFile).getName();
+        if (name.matches("names\\d+-.*\\.txt")) {
+            return name.substring(0, name.indexOf('-')) + ".gen";
+        }
+        return name;
+    }
+
+    /**
+     * Builds the operation a benchmark measures. The data file is loaded once,
+     * outside the measurement, for every benchmark except the load ones.
+     */
+    private static Operation operation(String name, String dataFile) throws IOException {
+        if (name.equals("load.scanner")) {
+            return () -> {
+                try (Scanner sc = new Scanner(new File(dataFile))) {
+                    return new Names(sc).rankedEveryDecade().size();
+                }
+            };
+        }
+        if (name.equals("load.mapped")) {
+            return () -> Names.fromPath(Paths.get(dataFile)).rankedEveryDecade().size();
+        }
+
+        Names names;
+        try (Scanner sc = new Scanner(new File(dataFile))) {
+            names = new Names(sc);
+        } catch (FileNotFoundException e) {
+            throw new IOException("cannot open " + dataFile, e);
+        }
+        ArrayList<NameRecord> all = names.recordsAt(names.trendRows(0));
+        if (all.isEmpty()) {
+            throw new IOException(dataFile + " holds no valid records");
+        }
+        // names to look up, every eighth one missing
+        Random random = new Random(42);
+        String[] lookups = new String[NUM_LOOKUPS];
+        String[] longPatterns = new String[NUM_LOOKUPS];
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            String found = all.get(random.nextInt(all.size())).getName();
+            lookups[i] = i % 8 == 0 ? found + "zz" : found;
+            int start = found.length() > 5 ? random.nextInt(found.length() - 4) : 0;
+            longPatterns[i] = found.substring(start, Math.min(found.length(), start + 5));
+        }
+        int[] next = new int[1];
+
+        if (name.equals("getName")) {
+            return () -> names.getName(lookups[next[0]++ & (NUM_LOOKUPS - 1)]) == null ? 0 : 1;
+        } else if (name.equals("getMatches.short")) {
+            return () -> names.getMatches("an").size();
+        } else if (name.equals("getMatches.long")) {
+            return () -> names.getMatches(longPatterns[next[0]++ & (NUM_LOOKUPS - 1)]).size();
+        } else if (name.equals("rankedEveryDecade")) {
+            return () -> names.rankedEveryDecade().size();
+        } else if (name.equals("rankedOnlyOneDecade")) {
+            return () -> names.rankedOnlyOneDecade().size();
+        } else if (name.equals("alwaysMorePopular")) {
+            return () -> names.alwaysMorePopular().size();
+        } else if (name.equals("alwaysLessPopular")) {
+            return () -> names.alwaysLessPopular().size();
+        } else if (name.equals("suddenlyPopular")) {
+            return () -> names.suddenlyPopular(500).size();
+        }
+        // NameRecord.bestDecade over every record
+        return () -> {
+            long total = 0;
+            for (NameRecord record : all) {
+                total += record.bestDecade();
+            }
+            return total;
+        };
+    }
+
+    /**
+     * Warms up and then measures an operation.
+     *
+     * @return the mean operations per second, its standard deviation over the
+     *         iterations, and the mean bytes allocated per operation.
+     */
+    private double[] measure(Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation);
+        }
+        double[] throughput = new double[measuredIterations];
+        double bytesPerOp = 0;
+        for (int i = 0; i < measuredIterations; i++) {
+            double[] iteration = runIteration(operation);
+            throughput[i] = iteration[0];
+            bytesPerOp += iteration[1] / measuredIterations;
+        }
+        double mean = 0;
+        for (double value : throughput) {
+            mean += value / throughput.length;
+        }
+        double variance = 0;
+        for (double value : throughput) {
+            variance += (value - mean) * (value - mean) / throughput.length;
+        }
+        return new double[] { mean, Math.sqrt(variance), bytesPerOp };
+    }
+
+    /**
+     * Runs an operation over and over for one iteration. The clock is read after
+     * each batch of operations, and batches grow until one takes long enough that
+     * reading the clock does not skew the result.
+     *
+     * @return operations per second and bytes allocated per operation, -1 if the
+     *         JVM cannot count allocated bytes.
+     */
+    private double[] runIteration(Operation operation) throws Exception {
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + iterationNanos;
+        long operations = 0;
+        long batch = 1;
+        long now = start;
+        long total = 0;
+        while (now < end) {
+            long batchStart = now;
+            for (long i = 0; i < batch; i++) {
+                total += operation.run();
+            }
+            operations += batch;
+            now = System.nanoTime();
+            if (now - batchStart < MIN_BATCH_NANOS) {
+                batch *= 2;
+            }
+        }
+        long bytes = allocatedBytes() - bytesBefore;
+        sink += total;
+        double seconds = (now - start) / (double) (1000 * NANOS_PER_MILLI);
+        return new double[] { operations / seconds,
+            bytesBefore < 0 ? -1 : bytes / (double) operations };
+    }
+
+    /**
+     * Gets the number of bytes the current thread has allocated, -1 if the JVM
+     * cannot count them.
+     */
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported()
+                    && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads results saved with -o.
+     *
+     * @return the operations per second and bytes per operation of each
+     *         benchmark and file.
+     */
+    private static HashMap<String, double[]> readResults(String file) throws IOException {
+        HashMap<String, double[]> results = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            String[] parts = line.split(",");
+            if (parts.length == 4) {
+                results.put(parts[0] + "," + parts[1], new double[] {
+                    Double.parseDouble(parts[2]), Double.parseDouble(parts[3]) });
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,328 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of query results in front of a Names object. Each query
+ * method has the same parameters as the Names method of the same name, and the
+ * result is kept under the name of the method and its parameters. Repeating a
+ * query returns the kept result without running it again. <br>
+ * Results are returned as unmodifiable Lists, so a caller cannot change what
+ * other callers get back. <br>
+ * The cache holds at most maxEntries results and at most maxElements elements
+ * over all results. When either limit is passed the least recently used results
+ * are dropped first, and a single result larger than maxElements is never kept.
+ * <br>
+ * Names objects never change, so a kept result never goes stale. After
+ * Names.appendDecade() a new NamesCache is needed for the new Names object. <br>
+ * The cache may be used by many threads at once. Queries run outside the lock,
+ * so two threads missing on the same query at the same time may both run it.
+ *
+ * @author Ryan Parappuram
+ */
+public class NamesCache {
+
+    private final Names names;
+    private final int maxEntries;
+    private final long maxElements;
+    // access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<List<Object>, List<?>> results;
+    private long elements;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * Creates a new NamesCache in front of a Names object.
+     *
+     * @param source      != null, Names object the queries run against
+     * @param maxEntries  >= 0, most results to keep
+     * @param maxElements >= 0, most elements to keep over all results
+     */
+    public NamesCache(Names source, int maxEntries, long maxElements) {
+        if (source == null || maxEntries < 0 || maxElements < 0) {
+            throw new IllegalArgumentException(
+                    "source may not be null and the limits may not be negative");
+        }
+
+        names = source;
+        this.maxEntries = maxEntries;
+        this.maxElements = maxElements;
+        results = new LinkedHashMap<>(16, 0.75f, true);
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+    }
+
+    /**
+     * Gets the Names object the queries run against.
+     *
+     * @return the Names object this cache is in front of.
+     */
+    public Names getNames() {
+        return names;
+    }
+
+    /**
+     * Cached Names.getMatches(partialName).
+     *
+     * @param partialName != null, partialName.length() > 0
+     * @return an unmodifiable List of the NameRecords whose names contain
+     *         partialName ignoring case, in sorted order based on name.
+     */
+    public List<NameRecord> getMatches(String partialName) {
+        return get(() -> names.getMatches(partialName), "getMatches", partialName);
+    }
+
+    /**
+     * Cached Names.completions(prefix, limit).
+     *
+     * @param prefix != null
+     * @param limit  >= 0, maximum number of NameRecords to return
+     * @return an unmodifiable List of up to limit NameRecords whose names start
+     *         with prefix, in order of name ignoring case.
+     */
+    public List<NameRecord> completions(String prefix, int limit) {
+        return get(() -> names.completions(prefix, limit), "completions", prefix, limit);
+    }
+
+    /**
+     * Cached Names.popularCompletions(prefix, limit).
+     *
+     * @param prefix != null
+     * @param limit  >= 0, maximum number of NameRecords to return
+     * @return an unmodifiable List of up to limit NameRecords whose names start
+     *         with prefix, best ranked first.
+     */
+    public List<NameRecord> popularCompletions(String prefix, int limit) {
+        return get(() -> names.popularCompletions(prefix, limit), "popularCompletions", prefix,
+                limit);
+    }
+
+    /**
+     * Cached Names.suddenlyPopular(threshold).
+     *
+     * @param threshold worst rank the name may have while ranked
+     * @return an unmodifiable List of the NameRecords that had a one decade
+     *         spike within threshold, in sorted order based on name.
+     */
+    public List<NameRecord> suddenlyPopular(int threshold) {
+        return suddenlyPopular(threshold, 1);
+    }
+
+    /**
+     * Cached Names.suddenlyPopular(threshold, maxWidth).
+     *
+     * @param threshold worst rank the name may have while ranked
+     * @param maxWidth  >= 1, most decades in a row the name may be ranked
+     * @return an unmodifiable List of the NameRecords that had a spike of at most
+     *         maxWidth decades within threshold, in sorted order based on name.
+     */
+    public List<NameRecord> suddenlyPopular(int threshold, int maxWidth) {
+        return get(() -> names.suddenlyPopular(threshold, maxWidth), "suddenlyPopular",
+                threshold, maxWidth);
+    }
+
+    /**
+     * Cached Names.topK(decadeYear, k).
+     *
+     * @param decadeYear first year of a decade in the Names object
+     * @param k          >= 0, maximum number of NameRecords to return
+     * @return an unmodifiable List of up to k NameRecords ranked in decadeYear,
+     *         best rank first.
+     */
+    public List<NameRecord> topK(int decadeYear, int k) {
+        return get(() -> names.topK(decadeYear, k), "topK", decadeYear, k);
+    }
+
+    /**
+     * Cached Names.rankRange(decadeYear, lowRank, highRank).
+     *
+     * @param decadeYear first year of a decade in the Names object
+     * @param lowRank    >= 1, best rank to include
+     * @param highRank   >= lowRank, worst rank to include
+     * @return an unmodifiable List of the NameRecords ranked from lowRank to
+     *         highRank in decadeYear, best rank first.
+     */
+    public List<NameRecord> rankRange(int decadeYear, int lowRank, int highRank) {
+        return get(() -> names.rankRange(decadeYear, lowRank, highRank), "rankRange",
+                decadeYear, lowRank, highRank);
+    }
+
+    /**
+     * Cached Names.nameAtRank(decadeYear, rank).
+     *
+     * @param decadeYear first year of a decade in the Names object
+     * @param rank       >= 1, rank to look up
+     * @return an unmodifiable List of the NameRecords ranked rank in decadeYear,
+     *         in sorted order based on name.
+     */
+    public List<NameRecord> nameAtRank(int decadeYear, int rank) {
+        return get(() -> names.nameAtRank(decadeYear, rank), "nameAtRank", decadeYear, rank);
+    }
+
+    /**
+     * Cached Names.similarTo(name, k, distance).
+     *
+     * @param name     != null, name to compare with, ignoring case
+     * @param k        >= 0, maximum number of NameRecords to return
+     * @param distance != null, how to measure the distance between curves
+     * @return an unmodifiable List of up to k NameRecords, most similar first.
+     */
+    public List<NameRecord> similarTo(String name, int k, TrendSimilarity.Distance distance) {
+        return get(() -> names.similarTo(name, k, distance), "similarTo", name, k, distance);
+    }
+
+    /**
+     * Cached Names.select(query). Queries are kept by their text form, so two
+     * NameQuery objects with the same conditions share a result.
+     *
+     * @param query != null, conditions the NameRecords must pass
+     * @return an unmodifiable List of the matching NameRecords in sorted order
+     *         based on name.
+     */
+    public List<NameRecord> select(NameQuery query) {
+        if (query == null) {
+            throw new IllegalArgumentException("The parameter query cannot be null");
+        }
+
+        return get(() -> names.select(query), "select", query.toString());
+    }
+
+    /**
+     * Cached Names.rankedEveryDecade().
+     *
+     * @return an unmodifiable List of the names ranked in every decade, in sorted
+     *         order.
+     */
+    public List<String> rankedEveryDecade() {
+        return get(() -> names.rankedEveryDecade(), "rankedEveryDecade");
+    }
+
+    /**
+     * Cached Names.rankedOnlyOneDecade().
+     *
+     * @return an unmodifiable List of the names ranked in exactly one decade, in
+     *         sorted order.
+     */
+    public List<String> rankedOnlyOneDecade() {
+        return get(() -> names.rankedOnlyOneDecade(), "rankedOnlyOneDecade");
+    }
+
+    /**
+     * Cached Names.alwaysMorePopular().
+     *
+     * @return an unmodifiable List of the names getting more popular every
+     *         decade, in sorted order.
+     */
+    public List<String> alwaysMorePopular() {
+        return get(() -> names.alwaysMorePopular(), "alwaysMorePopular");
+    }
+
+    /**
+     * Cached Names.alwaysLessPopular().
+     *
+     * @return an unmodifiable List of the names getting less popular every
+     *         decade, in sorted order.
+     */
+    public List<String> alwaysLessPopular() {
+        return get(() -> names.alwaysLessPopular(), "alwaysLessPopular");
+    }
+
+    /**
+     * Gets the number of queries answered from the cache.
+     *
+     * @return number of hits since this cache was created.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of queries that had to run against the Names object.
+     *
+     * @return number of misses since this cache was created.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of results dropped to stay within the limits.
+     *
+     * @return number of evictions since this cache was created.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the number of results kept right now.
+     *
+     * @return number of cached results.
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /**
+     * Drops every kept result. The counters are not reset.
+     */
+    public synchronized void clear() {
+        results.clear();
+        elements = 0;
+    }
+
+    /**
+     * Gets the result kept under a method and its parameters, running query and
+     * keeping its result if there is none. A parameter error is thrown by query
+     * and nothing is kept.
+     *
+     * @param query:      runs the query against the Names object
+     * @param method:     name of the query method
+     * @param parameters: parameters of the query method
+     * @return the unmodifiable result.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> get(Supplier<ArrayList<T>> query, String method, Object... parameters) {
+        Object[] keyParts = new Object[parameters.length + 1];
+        keyParts[0] = method;
+        System.arraycopy(parameters, 0, keyParts, 1, parameters.length);
+        List<Object> key = Arrays.asList(keyParts);
+        synchronized (this) {
+            List<?> kept = results.get(key);
+            if (kept != null) {
+                hits.incrementAndGet();
+                return (List<T>) kept;
+            }
+        }
+
+        misses.incrementAndGet();
+        List<T> result = Collections.unmodifiableList(query.get());
+        if (maxEntries > 0 && result.size() <= maxElements) {
+            put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Keeps a result, then drops the least recently used results until both
+     * limits hold.
+     */
+    private synchronized void put(List<Object> key, List<?> result) {
+        List<?> replaced = results.put(key, result);
+        elements += result.size() - (replaced == null ? 0 : replaced.size());
+        Iterator<Map.Entry<List<Object>, List<?>>> oldest = results.entrySet().iterator();
+        while (results.size() > maxEntries || elements > maxElements) {
+            elements -= oldest.next().getValue().size();
+            oldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load tests a NamesServer by sending requests at a fixed target rate and
+ * reporting the latency percentiles of the responses. <br>
+ * The test is open loop: request i is due at i / qps seconds after the start
+ * whether or not earlier requests have been answered, and its latency is
+ * measured from when it was due rather than from when a connection was free to
+ * send it. A server that falls behind therefore shows the full wait its
+ * clients would see, instead of slowing the test down and hiding it. <br>
+ * Requests cycle through the given paths, and are sent over at most the given
+ * number of connections, which are kept open between requests. Requests sent
+ * during the warmup are not measured. <br>
+ * Usage: <tt>java NamesLoadTest [-u baseUrl] [-q qps] [-d seconds]
+ * [-w warmupSeconds] [-c connections] [paths]</tt> <br>
+ * The defaults are http://localhost:8080, 1000 requests per second, 10 seconds
+ * after 2 seconds of warmup, 64 connections, and one path for each NamesServer
+ * query.
+ *
+ * @author Ryan Parappuram
+ */
+public class NamesLoadTest {
+
+    private static final String[] DEFAULT_PATHS = { "/search?partial=ann", "/name?name=Emma",
+        "/appear-once", "/appear-always", "/more-popular", "/less-popular",
+        "/sudden?threshold=500" };
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private String baseUrl = "http://localhost:8080";
+    private double qps = 1000;
+    private long durationNanos = 10 * NANOS_PER_SECOND;
+    private long warmupNanos = 2 * NANOS_PER_SECOND;
+    private int connections = 64;
+    private final ArrayList<String> paths = new ArrayList<>();
+
+    // latencies of measured requests, overall and for each path
+    private NamesMetrics.Histogram latencies;
+    private NamesMetrics.Histogram[] pathLatencies;
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Runs a load test with the settings given by the command line arguments.
+     *
+     * @param args options and paths, see the class comment
+     */
+    public static void main(String[] args) throws InterruptedException {
+        NamesLoadTest test = new NamesLoadTest();
+        if (!test.parseArguments(args)) {
+            System.out.println("Usage: java NamesLoadTest [-u baseUrl] [-q qps] [-d seconds] "
+                    + "[-w warmupSeconds] [-c connections] [paths]");
+            return;
+        }
+        test.run();
+        test.report();
+    }
+
+    /**
+     * Reads the command line options and paths.
+     *
+     * @return false if the arguments are not valid.
+     */
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-u")) {
+                    baseUrl = args[++i];
+                } else if (args[i].equals("-q")) {
+                    qps = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-d")) {
+                    durationNanos = (long) (Double.parseDouble(args[++i]) * NANOS_PER_SECOND);
+                } else if (args[i].equals("-w")) {
+                    warmupNanos = (long) (Double.parseDouble(args[++i]) * NANOS_PER_SECOND);
+                } else if (args[i].equals("-c")) {
+                    connections = Integer.parseInt(args[++i]);
+                } else if (args[i].startsWith("/")) {
+                    paths.add(args[i]);
+                } else {
+                    return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+        if (paths.isEmpty()) {
+            paths.addAll(List.of(DEFAULT_PATHS));
+        }
+        return qps > 0 && durationNanos > 0 && warmupNanos >= 0 && connections > 0;
+    }
+
+    /**
+     * Sends requests at the target rate for the warmup and the measured
+     * duration, then waits for the last responses.
+     */
+    private void run() throws InterruptedException {
+        latencies = new NamesMetrics.Histogram();
+        pathLatencies = new NamesMetrics.Histogram[paths.size()];
+        HttpRequest[] requests = new HttpRequest[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            pathLatencies[i] = new NamesMetrics.Histogram();
+            requests[i] = HttpRequest.newBuilder(URI.create(baseUrl + paths.get(i)))
+                    .timeout(Duration.ofSeconds(30)).GET().build();
+        }
+        // HTTP/1.1 keeps connections open, and with one worker per connection
+        // no more than connections of them are ever opened
+        ExecutorService workers = Executors.newFixedThreadPool(connections);
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .build();
+
+        long periodNanos = (long) (NANOS_PER_SECOND / qps);
+        long start = System.nanoTime();
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+        for (long i = 0;; i++) {
+            long due = start + i * periodNanos;
+            if (due >= end) {
+                break;
+            }
+            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            int path = (int) (i % requests.length);
+            boolean measured = due >= measureStart;
+            workers.execute(() -> send(client, requests[path], path, due, measured));
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Sends one request and records its latency from when it was due.
+     */
+    private void send(HttpClient client, HttpRequest request, int path, long due,
+            boolean measured) {
+        boolean failed;
+        try {
+            HttpResponse<byte[]> response = client.send(request,
+                    HttpResponse.BodyHandlers.ofByteArray());
+            failed = response.statusCode() != 200;
+        } catch (Exception e) {
+            failed = true;
+        }
+        long latency = System.nanoTime() - due;
+        if (measured) {
+            latencies.record(latency);
+            pathLatencies[path].record(latency);
+            if (failed) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Prints the achieved rate, the error count and the latency percentiles,
+     * overall and for each path.
+     */
+    private void report() {
+        double seconds = (double) durationNanos / NANOS_PER_SECOND;
+        System.out.println(String.format(Locale.ROOT,
+                "target %.0f req/s, sent %.0f req/s over %.1f s, %d errors", qps,
+                latencies.getCount() / seconds, seconds, errors.get()));
+        StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%-28s %8s",
+                "latency (ms)", "count"));
+        for (double percentile : PERCENTILES) {
+            header.append(String.format(Locale.ROOT, " %8s", "p" + trim(percentile)));
+        }
+        System.out.println(header.append(String.format(Locale.ROOT, " %8s", "max")));
+        System.out.println(row("all", latencies));
+        for (int i = 0; i < paths.size(); i++) {
+            System.out.println(row(paths.get(i), pathLatencies[i]));
+        }
+    }
+
+    /**
+     * Formats one line of the report.
+     */
+    private static String row(String label, NamesMetrics.Histogram histogram) {
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-28s %8d", label,
+                histogram.getCount()));
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(Locale.ROOT, " %8.2f",
+                    histogram.getValueAtPercentile(percentile) / NANOS_PER_MILLI));
+        }
+        return line.append(String.format(Locale.ROOT, " %8.2f",
+                histogram.getMax() / NANOS_PER_MILLI)).toString();
+    }
+
+    /**
+     * Writes a percentile without a trailing .0, such as 99 or 99.9.
+     */
+    private static String trim(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile)
+                : String.valueOf(percentile);
+    }
+}
@@ -0,0 +1,545 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Opt-in metrics for loading and querying Names objects. Nothing is recorded
+ * until metrics are turned on with setEnabled(true), with the JMX attribute
+ * Enabled, or by starting the JVM with -Dnames.metrics=true. While they are off
+ * every instrumented point costs one read of a volatile flag. <br>
+ * Three kinds of metrics are kept:
+ * <ul>
+ * <li>The time of each load phase: reading the data source, parsing its lines,
+ * sorting the records by name and building the indexes of the Names object.
+ * For memory mapped files the read phase is the time taken to bring every page
+ * of the file into memory before parsing it, and for files parsed in parallel
+ * the time of every thread is added up.</li>
+ * <li>The number of lines rejected by NameRecord.buildRecord() and the Names
+ * loaders, for each Rejection reason.</li>
+ * <li>For each Names query method, a Histogram of its latency in nanoseconds
+ * and a Histogram of the number of elements it returned.</li>
+ * </ul>
+ * Metrics are global to the JVM. registerMBean() exposes them through JMX and
+ * dump() writes them as text.
+ *
+ * @author Ryan Parappuram
+ */
+public class NamesMetrics {
+
+    /**
+     * Phases of loading a Names object.
+     */
+    public enum LoadPhase {
+        READ, PARSE, SORT, INDEX
+    }
+
+    /**
+     * Reasons a line of a data source is rejected. A line with more than one
+     * problem is counted under the first reason that applies.
+     */
+    public enum Rejection {
+        WRONG_DECADE_COUNT, ALL_ZEROS, RANK_OUT_OF_RANGE
+    }
+
+    /**
+     * Value returned by start() while metrics are off.
+     */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private static final String OBJECT_NAME = "SSANameAnalysis:type=NamesMetrics";
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    private static volatile boolean enabled = Boolean.getBoolean("names.metrics");
+    private static final Histogram[] LOAD_PHASES = new Histogram[LoadPhase.values().length];
+    private static final LongAdder[] REJECTIONS = new LongAdder[Rejection.values().length];
+    private static final ConcurrentHashMap<String, QueryStats> QUERIES = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < LOAD_PHASES.length; i++) {
+            LOAD_PHASES[i] = new Histogram();
+        }
+        for (int i = 0; i < REJECTIONS.length; i++) {
+            REJECTIONS[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Private constructor, NamesMetrics only has static methods.
+     */
+    private NamesMetrics() {
+    }
+
+    /**
+     * Determines if metrics are being recorded.
+     *
+     * @return true if metrics are on, false otherwise.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the recording of metrics on or off. Metrics already recorded are
+     * kept.
+     *
+     * @param on true to record metrics
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Clears every metric recorded so far. Metrics recorded while the reset
+     * runs may be partly kept.
+     */
+    public static void reset() {
+        for (Histogram phase : LOAD_PHASES) {
+            phase.reset();
+        }
+        for (LongAdder rejections : REJECTIONS) {
+            rejections.reset();
+        }
+        QUERIES.clear();
+    }
+
+    /**
+     * Gets the Histogram of the time a load phase took, in nanoseconds.
+     *
+     * @param phase != null, phase to look up
+     * @return Histogram with one value per recorded load.
+     */
+    public static Histogram loadTimes(LoadPhase phase) {
+        if (phase == null) {
+            throw new IllegalArgumentException("The parameter phase cannot be null");
+        }
+
+        return LOAD_PHASES[phase.ordinal()];
+    }
+
+    /**
+     * Gets the number of lines rejected for a reason.
+     *
+     * @param reason != null, reason to look up
+     * @return number of lines rejected for reason while metrics were on.
+     */
+    public static long rejections(Rejection reason) {
+        if (reason == null) {
+            throw new IllegalArgumentException("The parameter reason cannot be null");
+        }
+
+        return REJECTIONS[reason.ordinal()].sum();
+    }
+
+    /**
+     * Gets the Histogram of the latency of a Names method, in nanoseconds.
+     *
+     * @param method name of a Names method, such as "getMatches"
+     * @return Histogram with one value per recorded call, or null if no calls
+     *         were recorded.
+     */
+    public static Histogram queryLatencies(String method) {
+        QueryStats stats = method == null ? null : QUERIES.get(method);
+        return stats == null ? null : stats.latencies;
+    }
+
+    /**
+     * Gets the Histogram of the number of elements a Names method returned.
+     *
+     * @param method name of a Names method, such as "getMatches"
+     * @return Histogram with one value per recorded call, or null if no calls
+     *         were recorded.
+     */
+    public static Histogram resultSizes(String method) {
+        QueryStats stats = method == null ? null : QUERIES.get(method);
+        return stats == null ? null : stats.sizes;
+    }
+
+    /**
+     * Gets the time to pass to the record methods when an operation ends.
+     *
+     * @return System.nanoTime() if metrics are on, otherwise NOT_TIMED.
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Gets the time passed since start.
+     *
+     * @param start: value returned by start()
+     * @return nanoseconds since start, 0 if start is NOT_TIMED.
+     */
+    static long since(long start) {
+        return start == NOT_TIMED ? 0 : System.nanoTime() - start;
+    }
+
+    /**
+     * Records a call of a Names query method that began at start.
+     *
+     * @param method:     name of the method
+     * @param start:      value returned by start() when the call began
+     * @param resultSize: number of elements returned
+     */
+    static void query(String method, long start, int resultSize) {
+        if (start == NOT_TIMED) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        QueryStats stats = QUERIES.computeIfAbsent(method, key -> new QueryStats());
+        stats.latencies.record(elapsed);
+        stats.sizes.record(resultSize);
+    }
+
+    /**
+     * Records a load phase that began at start.
+     *
+     * @param phase: phase that ended
+     * @param start: value returned by start() when the phase began
+     */
+    static void phase(LoadPhase phase, long start) {
+        if (start != NOT_TIMED) {
+            LOAD_PHASES[phase.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the read and parse phases of a load that began at start, while
+     * readNanos of it were spent reading.
+     *
+     * @param start:     value returned by start() when the load began
+     * @param readNanos: part of the load spent reading
+     */
+    static void loaded(long start, long readNanos) {
+        if (start != NOT_TIMED) {
+            loaded(readNanos, Math.max(0, System.nanoTime() - start - readNanos), true);
+        }
+    }
+
+    /**
+     * Records the read and parse phases of a load.
+     *
+     * @param readNanos:  time spent reading
+     * @param parseNanos: time spent parsing
+     * @param timed:      false if metrics were off when the load began, in which
+     *                    case nothing is recorded
+     */
+    static void loaded(long readNanos, long parseNanos, boolean timed) {
+        if (timed) {
+            LOAD_PHASES[LoadPhase.READ.ordinal()].record(readNanos);
+            LOAD_PHASES[LoadPhase.PARSE.ordinal()].record(parseNanos);
+        }
+    }
+
+    /**
+     * Records a rejected line.
+     *
+     * @param reason: why the line was rejected
+     */
+    static void rejected(Rejection reason) {
+        if (enabled) {
+            REJECTIONS[reason.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under
+     * SSANameAnalysis:type=NamesMetrics, so JMX clients such as jconsole can
+     * read them. Registering again does nothing.
+     *
+     * @return the name the metrics are registered under.
+     */
+    public static synchronized ObjectName registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(new Bean(), NamesMetricsMBean.class),
+                        name);
+            }
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Writes every metric as text: one line per load phase, per rejection
+     * reason and per query method, with times in milliseconds for loads and
+     * microseconds for queries.
+     *
+     * @return the metrics as text.
+     */
+    public static String dump() {
+        StringBuilder result = new StringBuilder();
+        result.append("names metrics (").append(enabled ? "enabled" : "disabled").append(")\n");
+        result.append(String.format(Locale.ROOT, "%-22s %10s %10s %10s %10s %10s%n",
+                "load phase (ms)", "count", "mean", "p50", "p99", "max"));
+        for (LoadPhase phase : LoadPhase.values()) {
+            Histogram times = LOAD_PHASES[phase.ordinal()];
+            result.append(String.format(Locale.ROOT, "%-22s %10d %10.2f %10.2f %10.2f %10.2f%n",
+                    phase.name().toLowerCase(Locale.ROOT), times.getCount(),
+                    times.getMean() / NANOS_PER_MILLI,
+                    times.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                    times.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                    times.getMax() / NANOS_PER_MILLI));
+        }
+        result.append(String.format(Locale.ROOT, "%-22s %10s%n", "rejected lines", "count"));
+        for (Rejection reason : Rejection.values()) {
+            result.append(String.format(Locale.ROOT, "%-22s %10d%n",
+                    reason.name().toLowerCase(Locale.ROOT), REJECTIONS[reason.ordinal()].sum()));
+        }
+        result.append(String.format(Locale.ROOT,
+                "%-22s %10s %10s %10s %10s %10s %10s %10s %10s%n", "query (us)", "count", "mean",
+                "p50", "p90", "p99", "max", "mean size", "max size"));
+        for (Map.Entry<String, QueryStats> entry : new TreeMap<>(QUERIES).entrySet()) {
+            Histogram latencies = entry.getValue().latencies;
+            Histogram sizes = entry.getValue().sizes;
+            result.append(String.format(Locale.ROOT,
+                    "%-22s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10d%n", entry.getKey(),
+                    latencies.getCount(), latencies.getMean() / NANOS_PER_MICRO,
+                    latencies.getValueAtPercentile(50) / NANOS_PER_MICRO,
+                    latencies.getValueAtPercentile(90) / NANOS_PER_MICRO,
+                    latencies.getValueAtPercentile(99) / NANOS_PER_MICRO,
+                    latencies.getMax() / NANOS_PER_MICRO, sizes.getMean(), sizes.getMax()));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Latency and result size Histograms of one query method.
+     */
+    private static class QueryStats {
+        private final Histogram latencies = new Histogram();
+        private final Histogram sizes = new Histogram();
+    }
+
+    /**
+     * A histogram of non negative long values in the style of HdrHistogram.
+     * Values below 32 get a bucket each, and every power of two above that is
+     * split into 32 equal buckets, so a value is reported at most about 3% above
+     * its true value while the whole range of long fits in under 2,000 buckets.
+     * Recording is lock free and may be done by many threads at once.
+     */
+    public static class Histogram {
+
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(
+                (Long.SIZE - SUB_BITS) * SUB_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records a value, negative values are recorded as 0.
+         *
+         * @param value value to record
+         */
+        public void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(bucketOf(v));
+            count.increment();
+            sum.add(v);
+            if (v > max.get()) {
+                max.accumulateAndGet(v, Math::max);
+            }
+        }
+
+        /**
+         * Gets the number of values recorded.
+         *
+         * @return number of values.
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Gets the exact mean of the values recorded.
+         *
+         * @return mean value, 0 if there are none.
+         */
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * Gets the exact largest value recorded.
+         *
+         * @return largest value, 0 if there are none.
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Gets the value below which percentile percent of the recorded values
+         * fall, rounded up to the top of its bucket.
+         *
+         * @param percentile 0 <= percentile <= 100
+         * @return value at percentile, 0 if there are none.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (!(percentile >= 0 && percentile <= 100)) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= target) {
+                    return Math.min(highestInBucket(i), max.get());
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Forgets every recorded value.
+         */
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+
+        /**
+         * Finds the bucket of a non negative value. Buckets 0 to 63 hold single
+         * values, after that each group of SUB_COUNT buckets covers one power of
+         * two.
+         */
+        static int bucketOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BITS;
+            return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+        }
+
+        /**
+         * Finds the largest value that falls in a bucket.
+         */
+        static long highestInBucket(int bucket) {
+            int group = bucket / SUB_COUNT;
+            if (group == 0) {
+                return bucket;
+            }
+            int shift = group - 1;
+            long sub = bucket % SUB_COUNT + SUB_COUNT;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * The MBean registered by registerMBean(), reading the static metrics.
+     */
+    private static class Bean implements NamesMetricsMBean {
+
+        @Override
+        public boolean isEnabled() {
+            return NamesMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean on) {
+            NamesMetrics.setEnabled(on);
+        }
+
+        @Override
+        public long getLoadCount() {
+            return LOAD_PHASES[LoadPhase.PARSE.ordinal()].getCount();
+        }
+
+        @Override
+        public double getMeanReadMillis() {
+            return LOAD_PHASES[LoadPhase.READ.ordinal()].getMean() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public double getMeanParseMillis() {
+            return LOAD_PHASES[LoadPhase.PARSE.ordinal()].getMean() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public double getMeanSortMillis() {
+            return LOAD_PHASES[LoadPhase.SORT.ordinal()].getMean() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public double getMeanIndexMillis() {
+            return LOAD_PHASES[LoadPhase.INDEX.ordinal()].getMean() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public long getRejectedWrongDecadeCount() {
+            return rejections(Rejection.WRONG_DECADE_COUNT);
+        }
+
+        @Override
+        public long getRejectedAllZeros() {
+            return rejections(Rejection.ALL_ZEROS);
+        }
+
+        @Override
+        public long getRejectedRankOutOfRange() {
+            return rejections(Rejection.RANK_OUT_OF_RANGE);
+        }
+
+        @Override
+        public String[] getQueryMethods() {
+            return new TreeMap<>(QUERIES).keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public long queryCount(String method) {
+            Histogram latencies = queryLatencies(method);
+            return latencies == null ? 0 : latencies.getCount();
+        }
+
+        @Override
+        public double queryLatencyMicros(String method, double percentile) {
+            Histogram latencies = queryLatencies(method);
+            return latencies == null ? 0
+                    : latencies.getValueAtPercentile(percentile) / NANOS_PER_MICRO;
+        }
+
+        @Override
+        public double meanResultSize(String method) {
+            Histogram sizes = resultSizes(method);
+            return sizes == null ? 0 : sizes.getMean();
+        }
+
+        @Override
+        public String dump() {
+            return NamesMetrics.dump();
+        }
+
+        @Override
+        public void reset() {
+            NamesMetrics.reset();
+        }
+    }
+}
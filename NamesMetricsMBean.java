@@ -0,0 +1,124 @@
+/**
+ * Management interface of NamesMetrics, registered with the platform MBean
+ * server by NamesMetrics.registerMBean(). Times are in milliseconds for loads
+ * and microseconds for queries.
+ *
+ * @author Ryan Parappuram
+ */
+public interface NamesMetricsMBean {
+
+    /**
+     * Determines if metrics are being recorded.
+     *
+     * @return true if metrics are on, false otherwise.
+     */
+    boolean isEnabled();
+
+    /**
+     * Turns the recording of metrics on or off.
+     *
+     * @param enabled true to record metrics
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Gets the number of data sources loaded while metrics were on.
+     *
+     * @return number of loads.
+     */
+    long getLoadCount();
+
+    /**
+     * Gets the mean time a load spent reading its data source.
+     *
+     * @return mean read time in milliseconds.
+     */
+    double getMeanReadMillis();
+
+    /**
+     * Gets the mean time a load spent parsing its data source.
+     *
+     * @return mean parse time in milliseconds.
+     */
+    double getMeanParseMillis();
+
+    /**
+     * Gets the mean time a load spent sorting its records by name.
+     *
+     * @return mean sort time in milliseconds.
+     */
+    double getMeanSortMillis();
+
+    /**
+     * Gets the mean time spent building the indexes of a Names object.
+     *
+     * @return mean index time in milliseconds.
+     */
+    double getMeanIndexMillis();
+
+    /**
+     * Gets the number of lines rejected for not holding one rank per decade.
+     *
+     * @return number of lines rejected for their rank count.
+     */
+    long getRejectedWrongDecadeCount();
+
+    /**
+     * Gets the number of lines rejected for holding only 0 ranks.
+     *
+     * @return number of lines rejected for being unranked.
+     */
+    long getRejectedAllZeros();
+
+    /**
+     * Gets the number of lines rejected for a rank a RankMatrix cannot hold.
+     *
+     * @return number of lines rejected for a rank out of range.
+     */
+    long getRejectedRankOutOfRange();
+
+    /**
+     * Gets the names of the Names methods called while metrics were on.
+     *
+     * @return names of the recorded query methods, sorted.
+     */
+    String[] getQueryMethods();
+
+    /**
+     * Gets the number of recorded calls of a query method.
+     *
+     * @param method name of a Names method
+     * @return number of calls, 0 if none were recorded.
+     */
+    long queryCount(String method);
+
+    /**
+     * Gets a percentile of the latency of a query method.
+     *
+     * @param method     name of a Names method
+     * @param percentile 0 <= percentile <= 100
+     * @return latency at percentile in microseconds, 0 if no calls were
+     *         recorded.
+     */
+    double queryLatencyMicros(String method, double percentile);
+
+    /**
+     * Gets the mean number of elements returned by a query method.
+     *
+     * @param method name of a Names method
+     * @return mean result size, 0 if no calls were recorded.
+     */
+    double meanResultSize(String method);
+
+    /**
+     * Gets every metric as text.
+     *
+     * @return the text NamesMetrics.dump() returns.
+     */
+    String dump();
+
+    /**
+     * Clears every metric recorded so far.
+     */
+    void reset();
+}
@@ -0,0 +1,375 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the queries of the NameSurfer menu over HTTP, answering in JSON, so
+ * other programs can query a Names object without driving the menu. Every
+ * endpoint answers GET requests: <br>
+ * <tt>/search?partial=p</tt> names containing p with their best decade (menu
+ * option 1) <br>
+ * <tt>/name?name=n</tt> the ranks of one name, 404 if it is not ranked in any
+ * decade (option 2) <br>
+ * <tt>/appear-once</tt> names ranked in exactly one decade (option 3) <br>
+ * <tt>/appear-always</tt> names ranked in every decade (option 4) <br>
+ * <tt>/more-popular</tt> names more popular every decade (option 5) <br>
+ * <tt>/less-popular</tt> names less popular every decade (option 6) <br>
+ * <tt>/sudden?threshold=t&amp;maxWidth=w</tt> names with a sudden spike in
+ * popularity, maxWidth defaults to 1 (option 7) <br>
+ * <tt>/metrics</tt> NamesMetrics.dump() as plain text <br>
+ * A bad parameter gets a 400 response whose JSON body holds the error, and
+ * any other failure of a query a 500 response. <br>
+ * A Names object never changes, so every request reads the same one without
+ * locking. Each request runs on its own virtual thread when the JVM has them
+ * (Java 21 and later) and on a pooled platform thread otherwise. Responses
+ * always have a known length, so clients can keep their connections open
+ * between requests. <br>
+ * Usage: <tt>java NamesServer [-p port] [-m] [dataFile]</tt>, where -m turns
+ * on NamesMetrics and registers its MBean. The data file is loaded with
+ * Names.load(), through its snapshot like NameSurfer, and defaults to
+ * names4.txt. The port defaults to 8080.
+ *
+ * @author Ryan Parappuram
+ */
+public class NamesServer {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final String DEFAULT_FILE = "names4.txt";
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+    private static final String TEXT_TYPE = "text/plain; charset=utf-8";
+
+    private final Names names;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * An endpoint, turning the parameters of a request into the body of its
+     * response. Throws IllegalArgumentException for bad parameters and
+     * NoSuchElementException for something that does not exist.
+     */
+    private static interface Endpoint {
+        String answer(Map<String, String> parameters);
+    }
+
+    /**
+     * Creates a new NamesServer for a Names object, bound to address but not
+     * yet accepting requests.
+     *
+     * @param source  != null, Names object the queries run against
+     * @param address != null, address to listen on, port 0 picks a free port
+     * @throws IOException if the address cannot be bound
+     */
+    public NamesServer(Names source, InetSocketAddress address) throws IOException {
+        if (source == null || address == null) {
+            throw new IllegalArgumentException("The parameters cannot be null");
+        }
+
+        names = source;
+        server = HttpServer.create(address, 0);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        add("/search", JSON_TYPE, parameters -> {
+            List<NameRecord> matches = names.getMatches(parameter(parameters, "partial"));
+            StringBuilder json = new StringBuilder("{\"count\":").append(matches.size())
+                    .append(",\"matches\":[");
+            for (int i = 0; i < matches.size(); i++) {
+                NameRecord match = matches.get(i);
+                json.append(i == 0 ? "" : ",").append("{\"name\":");
+                appendString(json, match.getName());
+                json.append(",\"bestDecade\":").append(match.bestDecade()).append('}');
+            }
+            return json.append("]}").toString();
+        });
+        add("/name", JSON_TYPE, parameters -> {
+            String name = parameter(parameters, "name");
+            NameRecord record = names.getName(name);
+            if (record == null) {
+                throw new NoSuchElementException(name + " does not appear in any decade.");
+            }
+            return appendRecord(new StringBuilder(), record).toString();
+        });
+        add("/appear-once", JSON_TYPE, parameters -> nameList(names.rankedOnlyOneDecade()));
+        add("/appear-always", JSON_TYPE, parameters -> nameList(names.rankedEveryDecade()));
+        add("/more-popular", JSON_TYPE, parameters -> nameList(names.alwaysMorePopular()));
+        add("/less-popular", JSON_TYPE, parameters -> nameList(names.alwaysLessPopular()));
+        add("/sudden", JSON_TYPE, parameters -> {
+            int threshold = intParameter(parameters, "threshold");
+            int maxWidth = parameters.containsKey("maxWidth")
+                    ? intParameter(parameters, "maxWidth") : 1;
+            List<NameRecord> spikes = names.suddenlyPopular(threshold, maxWidth);
+            StringBuilder json = new StringBuilder("{\"count\":").append(spikes.size())
+                    .append(",\"names\":[");
+            for (int i = 0; i < spikes.size(); i++) {
+                appendRecord(json.append(i == 0 ? "" : ","), spikes.get(i));
+            }
+            return json.append("]}").toString();
+        });
+        add("/metrics", TEXT_TYPE, parameters -> NamesMetrics.dump());
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waits up to delaySeconds for the requests being
+     * answered to finish, then closes every connection.
+     *
+     * @param delaySeconds >= 0, longest time to wait
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    /**
+     * Gets the port requests are accepted on, useful when the server was
+     * created with port 0.
+     *
+     * @return the bound port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Creates the executor requests run on: a new virtual thread per request
+     * when the JVM has virtual threads, otherwise a pool of platform threads
+     * that grows as needed and reuses idle threads.
+     *
+     * @return executor to hand requests to.
+     */
+    static ExecutorService newRequestExecutor() {
+        try {
+            // looked up by reflection so the code still compiles and runs on
+            // Java versions without virtual threads
+            Method perTask = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) perTask.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Adds an endpoint at path.
+     */
+    private void add(String path, String contentType, Endpoint endpoint) {
+        server.createContext(path, exchange -> respond(exchange, path, contentType, endpoint));
+    }
+
+    /**
+     * Answers one request with the response of endpoint, or with an error.
+     *
+     * @param exchange:    request and response
+     * @param path:        path of the endpoint, a context also receives longer
+     *                     paths starting with it, which are answered with 404
+     * @param contentType: type of the body endpoint answers with
+     * @param endpoint:    endpoint for path
+     */
+    private static void respond(HttpExchange exchange, String path, String contentType,
+            Endpoint endpoint) throws IOException {
+        try {
+            int status = 200;
+            String body;
+            String type = contentType;
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                status = 405;
+                body = error("only GET is supported");
+                type = JSON_TYPE;
+            } else if (!exchange.getRequestURI().getPath().equals(path)) {
+                status = 404;
+                body = error("no endpoint at " + exchange.getRequestURI().getPath());
+                type = JSON_TYPE;
+            } else {
+                try {
+                    body = endpoint.answer(parseQuery(exchange.getRequestURI().getRawQuery()));
+                } catch (IllegalArgumentException e) {
+                    status = 400;
+                    body = error(e.getMessage());
+                    type = JSON_TYPE;
+                } catch (NoSuchElementException e) {
+                    status = 404;
+                    body = error(e.getMessage());
+                    type = JSON_TYPE;
+                } catch (RuntimeException e) {
+                    // still answer, so the client sees a status instead of a
+                    // dropped connection
+                    status = 500;
+                    body = error("internal error: " + e);
+                    type = JSON_TYPE;
+                }
+            }
+
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", type);
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Splits the raw query of a URI into decoded parameters. A parameter given
+     * more than once keeps its last value.
+     *
+     * @param rawQuery: query part of a URI, null if there is none
+     * @return map from parameter name to value.
+     */
+    static Map<String, String> parseQuery(String rawQuery) {
+        HashMap<String, String> result = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return result;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            result.put(URLDecoder.decode(key, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    /**
+     * Gets a parameter that must be present.
+     */
+    private static String parameter(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("missing parameter " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Gets a parameter that must be present and an int.
+     */
+    private static int intParameter(Map<String, String> parameters, String name) {
+        String value = parameter(parameters, name);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("parameter " + name + " must be an int, not "
+                    + value);
+        }
+    }
+
+    /**
+     * Writes a list of names as a JSON object with a count and the names.
+     */
+    private static String nameList(List<String> list) {
+        StringBuilder json = new StringBuilder(list.size() * 12 + 32);
+        json.append("{\"count\":").append(list.size()).append(",\"names\":[");
+        for (int i = 0; i < list.size(); i++) {
+            appendString(json.append(i == 0 ? "" : ","), list.get(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Writes a NameRecord as a JSON object with its name, base decade, best
+     * decade and the rank of every decade.
+     */
+    static StringBuilder appendRecord(StringBuilder json, NameRecord record) {
+        json.append("{\"name\":");
+        appendString(json, record.getName());
+        json.append(",\"baseDecade\":").append(record.getBaseDecade());
+        json.append(",\"bestDecade\":").append(record.bestDecade()).append(",\"ranks\":[");
+        for (int decade = 0; decade < record.getNumDecades(); decade++) {
+            json.append(decade == 0 ? "" : ",").append(record.getRank(decade));
+        }
+        return json.append("]}");
+    }
+
+    /**
+     * Writes the body of an error response.
+     */
+    private static String error(String message) {
+        return appendString(new StringBuilder("{\"error\":"), message).append('}').toString();
+    }
+
+    /**
+     * Writes a String as a JSON string, escaping the characters JSON requires.
+     *
+     * @param json:  where the string is written
+     * @param value: String to write
+     * @return json.
+     */
+    static StringBuilder appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Loads a data file and serves it until the JVM is stopped.
+     *
+     * @param args options and data file, see the class comment
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        String dataFile = DEFAULT_FILE;
+        boolean metrics = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-p")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-m")) {
+                    metrics = true;
+                } else if (!args[i].startsWith("-")) {
+                    dataFile = args[i];
+                } else {
+                    throw new IllegalArgumentException("unexpected argument " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.out.println("Usage: java NamesServer [-p port] [-m] [dataFile]");
+            return;
+        }
+
+        // the built in server writes the headers and body of a response
+        // separately, and with Nagle's algorithm on a kept alive connection
+        // waits for the client's delayed ACK before sending the body
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        if (metrics) {
+            NamesMetrics.setEnabled(true);
+            NamesMetrics.registerMBean();
+        }
+        Names names = Names.load(Paths.get(dataFile));
+        NamesServer server = new NamesServer(names, new InetSocketAddress(port));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+        server.start();
+        System.out.println("serving " + dataFile + " on http://localhost:" + server.getPort()
+                + "/");
+    }
+}
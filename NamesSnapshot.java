@@ -0,0 +1,192 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the binary snapshot format for Names objects. A snapshot
+ * holds the sorted RankMatrix and the prebuilt name and trigram indexes, so
+ * loading one is a few bulk reads of primitive arrays instead of a full text
+ * parse. The DecadeRankIndex is not saved, it is rebuilt on load with one
+ * counting sort per decade. <br>
+ * Layout (big-endian): the magic number and format version, the size and last
+ * modified time of the text file the snapshot was made from (0 if unknown), the
+ * RankMatrix, the NameIndex, the NgramIndex, and finally a CRC32 of every byte
+ * before it. A snapshot with the wrong magic number, version or checksum is
+ * rejected with an IOException. <br>
+ * A snapshot is mapped as one buffer, so it may be at most MAX_SIZE bytes.
+ * Larger snapshots are neither written nor read.
+ *
+ * @author Ryan Parappuram
+ */
+public class NamesSnapshot {
+
+    private static final int MAGIC = 0x5353414E; // "SSAN"
+    private static final int VERSION = 1;
+    // magic, version, source size and source modified time
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int TRAILER_SIZE = Long.BYTES;
+
+    /** Largest snapshot in bytes, the most one buffer can map. */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Private constructor, NamesSnapshot only has static methods.
+     */
+    private NamesSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the given parts of a Names object. The snapshot is
+     * written to a new temporary file next to path that then replaces path, so
+     * readers never see a partly written snapshot. The temporary file is deleted
+     * if writing fails. Nothing is written if the snapshot would be larger than
+     * MAX_SIZE.
+     *
+     * @param path:           path to write the snapshot to
+     * @param matrix:         sorted matrix of the Names object
+     * @param nameIndex:      name index of the Names object
+     * @param ngramIndex:     trigram index of the Names object
+     * @param sourceSize:     size of the text file the Names object was loaded
+     *                        from, 0 if unknown
+     * @param sourceModified: last modified time in milliseconds of the text file
+     *                        the Names object was loaded from, 0 if unknown
+     * @throws IOException if writing fails or the snapshot would be larger than
+     *                     MAX_SIZE
+     */
+    static void write(Path path, RankMatrix matrix, NameIndex nameIndex, NgramIndex ngramIndex,
+            long sourceSize, long sourceModified) throws IOException {
+        long size = size(matrix, nameIndex, ngramIndex);
+        if (size > MAX_SIZE) {
+            throw new IOException("Names snapshot of " + size + " bytes would be larger than "
+                    + MAX_SIZE + " bytes: " + path);
+        }
+
+        // a unique temporary file, so two writers of the same snapshot do not
+        // write into each other's file
+        Path absolute = path.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".",
+                ".tmp");
+        boolean moved = false;
+        try {
+            CRC32 checksum = new CRC32();
+            try (OutputStream file = Files.newOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new CheckedOutputStream(file, checksum)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(sourceSize);
+                out.writeLong(sourceModified);
+                matrix.writeTo(out);
+                nameIndex.writeTo(out);
+                ngramIndex.writeTo(out);
+                out.flush();
+                new DataOutputStream(file).writeLong(checksum.getValue());
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes write() writes for the given parts of a Names
+     * object.
+     *
+     * @param matrix:     sorted matrix of the Names object
+     * @param nameIndex:  name index of the Names object
+     * @param ngramIndex: trigram index of the Names object
+     * @return size of the snapshot in bytes.
+     */
+    static long size(RankMatrix matrix, NameIndex nameIndex, NgramIndex ngramIndex) {
+        return HEADER_SIZE + matrix.binarySize() + nameIndex.binarySize()
+                + ngramIndex.binarySize() + TRAILER_SIZE;
+    }
+
+    /**
+     * Reads a snapshot written by write().
+     *
+     * @param path:           path of the snapshot
+     * @param sourceSize:     size the text file must have had when the snapshot
+     *                        was written, or -1 to accept any
+     * @param sourceModified: last modified time the text file must have had when
+     *                        the snapshot was written, or -1 to accept any
+     * @return a new Names object holding the data of the snapshot.
+     * @throws IOException if the snapshot cannot be read, is corrupt, has another
+     *                     version, was made from a different text file, or is
+     *                     larger than MAX_SIZE
+     */
+    static Names read(Path path, long sourceSize, long sourceModified) throws IOException {
+        long start = NamesMetrics.start();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_SIZE) {
+                throw new IOException("Names snapshot larger than " + MAX_SIZE + " bytes: "
+                        + path);
+            }
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("not a Names snapshot: " + path);
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int bodySize = (int) size - TRAILER_SIZE;
+            CRC32 checksum = new CRC32();
+            // checking the whole file reads every page of it
+            checksum.update(in.duplicate().limit(bodySize));
+            long readNanos = NamesMetrics.since(start);
+            if (in.getLong(bodySize) != checksum.getValue()) {
+                throw new IOException("corrupt Names snapshot: " + path);
+            }
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("not a version " + VERSION + " Names snapshot: " + path);
+            }
+            long snapshotSourceSize = in.getLong();
+            long snapshotSourceModified = in.getLong();
+            if ((sourceSize != -1 && sourceSize != snapshotSourceSize)
+                    || (sourceModified != -1 && sourceModified != snapshotSourceModified)) {
+                throw new IOException("stale Names snapshot: " + path);
+            }
+            return decode(in.limit(bodySize), path, readNanos);
+        }
+    }
+
+    /**
+     * Decodes the matrix and indexes that follow the header.
+     *
+     * @param in:        buffer positioned just after the header, limited to the end
+     *                   of the indexes
+     * @param path:      path of the snapshot, for error messages
+     * @param readNanos: time spent reading the snapshot, for NamesMetrics
+     * @return a new Names object holding the decoded data.
+     * @throws IOException if the data does not decode cleanly
+     */
+    private static Names decode(ByteBuffer in, Path path, long readNanos) throws IOException {
+        long start = NamesMetrics.start();
+        try {
+            RankMatrix matrix = RankMatrix.readFrom(in);
+            NameIndex nameIndex = NameIndex.readFrom(in, matrix);
+            NgramIndex ngramIndex = NgramIndex.readFrom(in, matrix);
+            if (in.hasRemaining()) {
+                throw new IOException("unexpected data at the end of Names snapshot: " + path);
+            }
+            NamesMetrics.loaded(readNanos, NamesMetrics.since(start),
+                    start != NamesMetrics.NOT_TIMED);
+            return new Names(matrix, nameIndex, ngramIndex, null);
+        } catch (RuntimeException e) {
+            // sizes that do not fit the data show up as buffer or array errors
+            throw new IOException("malformed Names snapshot: " + path, e);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A trigram inverted index over the names stored in a RankMatrix, used to find
+ * every name containing a substring without scanning all of them. <br>
+ * Each distinct trigram (three consecutive characters, case folded) of a name
+ * maps to a posting list of the rows whose names contain it. A substring query
+ * intersects the posting lists of its own trigrams and then verifies the
+ * remaining candidates. Posting lists are in ascending row order, so results
+ * come back in the same order as the rows of the matrix. <br>
+ * Queries shorter than a trigram fall back to a scan over every name.
+ *
+ * @author Ryan Parappuram
+ */
+public class NgramIndex {
+
+    /** Number of characters in each indexed gram. */
+    public static final int GRAM_LENGTH = 3;
+
+    private final RankMatrix matrix;
+    private final HashMap<Long, int[]> postings;
+
+    /**
+     * Builds a new NgramIndex over every row of matrix.
+     *
+     * @param rankMatrix: matrix whose names are indexed, rankMatrix != null
+     */
+    public NgramIndex(RankMatrix rankMatrix) {
+        matrix = rankMatrix;
+        HashMap<Long, PostingList> building = new HashMap<>();
+        for (int row = 0; row < matrix.size(); row++) {
+            String name = matrix.getName(row);
+            for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+                building.computeIfAbsent(gramKey(name, i), k -> new PostingList()).add(row);
+            }
+        }
+        postings = new HashMap<>(building.size() * 2);
+        building.forEach((key, list) -> postings.put(key, list.toArray()));
+    }
+
+    /**
+     * Creates an NgramIndex over rankMatrix from posting lists built earlier.
+     *
+     * @param rankMatrix:    matrix whose names are indexed
+     * @param postingsByKey: posting list of every gram key
+     */
+    private NgramIndex(RankMatrix rankMatrix, HashMap<Long, int[]> postingsByKey) {
+        matrix = rankMatrix;
+        postings = postingsByKey;
+    }
+
+    /**
+     * Creates an NgramIndex over a matrix that holds every row of this index's
+     * matrix, moved to new rows, plus some added rows. Existing posting lists are
+     * remapped instead of rebuilt, and only the names of the added rows are
+     * split into grams.
+     *
+     * @param newMatrix: matrix the new index is over
+     * @param oldToNew:  row in newMatrix of each row of the current matrix, in
+     *                   ascending order
+     * @param addedRows: rows of newMatrix that are not in the current matrix, in
+     *                   ascending order
+     * @return NgramIndex over newMatrix.
+     */
+    NgramIndex remap(RankMatrix newMatrix, int[] oldToNew, int[] addedRows) {
+        HashMap<Long, PostingList> additions = new HashMap<>();
+        for (int row : addedRows) {
+            String name = newMatrix.getName(row);
+            for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+                additions.computeIfAbsent(gramKey(name, i), k -> new PostingList()).add(row);
+            }
+        }
+
+        HashMap<Long, int[]> newPostings = new HashMap<>((postings.size() + additions.size()) * 2);
+        for (Map.Entry<Long, int[]> entry : postings.entrySet()) {
+            int[] list = entry.getValue();
+            PostingList extra = additions.remove(entry.getKey());
+            int[] extraRows = extra == null ? new int[0] : extra.toArray();
+            int[] merged = new int[list.length + extraRows.length];
+            // both lists ascend because oldToNew preserves order
+            int i = 0;
+            int j = 0;
+            for (int out = 0; out < merged.length; out++) {
+                if (j == extraRows.length
+                        || (i < list.length && oldToNew[list[i]] < extraRows[j])) {
+                    merged[out] = oldToNew[list[i++]];
+                } else {
+                    merged[out] = extraRows[j++];
+                }
+            }
+            newPostings.put(entry.getKey(), merged);
+        }
+        additions.forEach((key, list) -> newPostings.put(key, list.toArray()));
+        return new NgramIndex(newMatrix, newPostings);
+    }
+
+    /**
+     * Gets the number of bytes writeTo() writes for this NgramIndex.
+     *
+     * @return size of the binary form of this NgramIndex in bytes.
+     */
+    long binarySize() {
+        long result = Integer.BYTES;
+        for (int[] rows : postings.values()) {
+            result += Long.BYTES + Integer.BYTES + (long) rows.length * Integer.BYTES;
+        }
+        return result;
+    }
+
+    /**
+     * Writes this NgramIndex in the binary form readFrom() reads.
+     *
+     * @param out: stream to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(postings.size());
+        for (Map.Entry<Long, int[]> entry : postings.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            for (int row : entry.getValue()) {
+                out.writeInt(row);
+            }
+        }
+    }
+
+    /**
+     * Reads an NgramIndex written by writeTo(), leaving in positioned after it.
+     *
+     * @param in:         buffer positioned at the start of the index
+     * @param rankMatrix: matrix the index was built over
+     * @return the NgramIndex read.
+     */
+    static NgramIndex readFrom(ByteBuffer in, RankMatrix rankMatrix) {
+        int numKeys = in.getInt();
+        HashMap<Long, int[]> postingsByKey = new HashMap<>(numKeys * 2);
+        for (int i = 0; i < numKeys; i++) {
+            long key = in.getLong();
+            int[] rows = new int[in.getInt()];
+            in.asIntBuffer().get(rows);
+            in.position(in.position() + rows.length * Integer.BYTES);
+            postingsByKey.put(key, rows);
+        }
+        return new NgramIndex(rankMatrix, postingsByKey);
+    }
+
+    /**
+     * Finds every row whose name contains partialName, ignoring case.
+     *
+     * Pre: partialName != null, partialName.length() > 0
+     *
+     * @param partialName: substring to search for
+     * @return rows whose names contain partialName in ascending order. Returns an
+     *         empty array if there are none.
+     */
+    public int[] matches(String partialName) {
+        if (partialName.length() < GRAM_LENGTH) {
+            return scan(partialName, 0, matrix.size());
+        }
+
+        // gather the posting list of each trigram in the query, a missing one
+        // means no name can contain the query
+        ArrayList<int[]> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM_LENGTH <= partialName.length(); i++) {
+            int[] list = postings.get(gramKey(partialName, i));
+            if (list == null) {
+                return new int[0];
+            }
+            lists.add(list);
+        }
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+
+        // intersect, starting with the shortest list, then verify candidates
+        int[] candidates = lists.size() == 1 ? lists.get(0) : lists.get(0).clone();
+        int count = candidates.length;
+        for (int i = 1; i < lists.size() && count > 0; i++) {
+            count = intersect(candidates, count, lists.get(i));
+        }
+        int[] result = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (containsIgnoreCase(matrix.getName(candidates[i]), partialName)) {
+                result[found++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(result, found);
+    }
+
+    /**
+     * Gets an upper bound on the number of rows matches() returns without
+     * running it, the length of the shortest posting list of the query's
+     * trigrams.
+     *
+     * Pre: partialName != null, partialName.length() > 0
+     *
+     * @param partialName: substring to search for
+     * @return at least the number of rows whose names contain partialName, the
+     *         number of rows if partialName is too short to use the index.
+     */
+    public int estimate(String partialName) {
+        if (partialName.length() < GRAM_LENGTH) {
+            return matrix.size();
+        }
+        int shortest = matrix.size();
+        for (int i = 0; i + GRAM_LENGTH <= partialName.length(); i++) {
+            int[] list = postings.get(gramKey(partialName, i));
+            shortest = Math.min(shortest, list == null ? 0 : list.length);
+        }
+        return shortest;
+    }
+
+    /**
+     * Scans rows low (inclusive) to high (exclusive) for names containing
+     * partialName, ignoring case.
+     *
+     * @param partialName: substring to search for, length > 0
+     * @param low:         first row to scan
+     * @param high:        one past the last row to scan
+     * @return rows whose names contain partialName in ascending order.
+     */
+    public int[] scan(String partialName, int low, int high) {
+        int[] result = new int[16];
+        int found = 0;
+        for (int row = low; row < high; row++) {
+            if (containsIgnoreCase(matrix.getName(row), partialName)) {
+                if (found == result.length) {
+                    result = Arrays.copyOf(result, found * 2);
+                }
+                result[found++] = row;
+            }
+        }
+        return Arrays.copyOf(result, found);
+    }
+
+    /**
+     * Determines if name contains partialName, comparing characters the same way
+     * String.regionMatches(true, ...) does.
+     *
+     * @param name:        String to search in
+     * @param partialName: String to search for
+     * @return true if partialName occurs in name ignoring case, false otherwise.
+     */
+    public static boolean containsIgnoreCase(String name, String partialName) {
+        int last = name.length() - partialName.length();
+        for (int i = 0; i <= last; i++) {
+            if (name.regionMatches(true, i, partialName, 0, partialName.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the first count elements of candidates that also appear in list.
+     * Both arrays are in ascending order.
+     *
+     * @param candidates: array whose first count elements are intersected in
+     *                    place
+     * @param count:      number of elements of candidates in use
+     * @param list:       posting list to intersect with
+     * @return number of elements of candidates left in use.
+     */
+    private static int intersect(int[] candidates, int count, int[] list) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < list.length; i++) {
+            while (j < list.length && list[j] < candidates[i]) {
+                j++;
+            }
+            if (j < list.length && list[j] == candidates[i]) {
+                candidates[kept++] = candidates[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Packs the case folded gram starting at index start of str into a key.
+     *
+     * @param str:   String holding the gram
+     * @param start: index of the first character of the gram
+     * @return key identifying the gram regardless of case.
+     */
+    private static Long gramKey(String str, int start) {
+        long key = 0;
+        for (int i = start; i < start + GRAM_LENGTH; i++) {
+            key = (key << Character.SIZE) | fold(str.charAt(i));
+        }
+        return key;
+    }
+
+    /**
+     * Folds the case of a character so that characters regionMatches() treats as
+     * equal ignoring case fold to the same value.
+     *
+     * @param c: character to fold
+     * @return case folded character.
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * A growable list of rows used while the index is built. Skips a row that is
+     * already its last element so names that repeat a gram are listed once.
+     */
+    private static class PostingList {
+        private int[] rows = new int[4];
+        private int size;
+
+        private void add(int row) {
+            if (size > 0 && rows[size - 1] == row) {
+                return;
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(rows, size);
+        }
+    }
+}
@@ -0,0 +1,635 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Columnar storage for the ranks of many names. Holds every rank in one flat
+ * short[] laid out row by row (one row per name, one column per decade) along
+ * with a parallel array of names, so that scans over the ranks walk contiguous
+ * primitive memory instead of boxed Integers. <br>
+ * Ranks are at most 1000 in the SSA data, so a short is wide enough for every
+ * valid rank. <br>
+ * The trend flags of each row (see NameRecord.RANKED_EVERY_DECADE and the
+ * related constants) are computed once when the row is added.
+ *
+ * A RankMatrix is filled by addRow() while a data source is loaded and is not
+ * modified once it has been handed to a Names object. Every other method only
+ * reads the matrix, so a filled RankMatrix is safe to read from many threads.
+ *
+ * @author Ryan Parappuram
+ */
+public class RankMatrix {
+
+    /** Largest rank that fits in the matrix's storage. */
+    public static final int MAX_RANK = Short.MAX_VALUE;
+
+    private static final int DEFAULT_CAPACITY = 16;
+    // runs of rows sortRows() sorts by insertion instead of by merging
+    private static final int INSERTION_SORT_ROWS = 32;
+    // fewest rows sortRows() splits between ForkJoinPool threads
+    private static final int PARALLEL_SORT_ROWS = 1 << 13;
+
+    private final int baseDecade;
+    private final int numDecades;
+    private short[] ranks;
+    private String[] names;
+    private byte[] flags;
+    private int size;
+
+    /**
+     * Creates an empty RankMatrix with room for initialCapacity names before it
+     * needs to grow.
+     *
+     * @param firstDecade:     base decade of every row
+     * @param decades:         number of ranks in every row, decades >= 0
+     * @param initialCapacity: number of rows to reserve space for, >= 0
+     */
+    public RankMatrix(int firstDecade, int decades, int initialCapacity) {
+        if (decades < 0 || initialCapacity < 0) {
+            throw new IllegalArgumentException(
+                    "decades and initialCapacity parameters may not be negative");
+        }
+
+        baseDecade = firstDecade;
+        numDecades = decades;
+        int capacity = Math.max(initialCapacity, 1);
+        ranks = new short[capacity * decades];
+        names = new String[capacity];
+        flags = new byte[capacity];
+    }
+
+    /**
+     * Appends a new row to this RankMatrix.
+     *
+     * Pre: name != null, rowRanks.length >= numDecades, 0 <= each rank <= MAX_RANK
+     *
+     * @param name:     name for the new row
+     * @param rowRanks: ranks for the new row, only the first numDecades are used
+     * @return index of the new row.
+     */
+    public int addRow(String name, int[] rowRanks) {
+        if (name == null || rowRanks == null || rowRanks.length < numDecades) {
+            throw new IllegalArgumentException(
+                    "name may not be null and rowRanks must hold a rank for every decade");
+        }
+
+        ensureCapacity(size + 1);
+        storeRanks(size, rowRanks);
+        names[size] = name;
+        return size++;
+    }
+
+    /**
+     * Replaces the ranks of an existing row. Only used while a RankMatrix is
+     * being loaded, for example when several data sources are merged.
+     *
+     * Pre: 0 <= row < size(), rowRanks.length >= numDecades, 0 <= each rank <=
+     * MAX_RANK
+     *
+     * @param row:      row whose ranks are replaced
+     * @param rowRanks: new ranks for the row, only the first numDecades are used
+     */
+    void setRow(int row, int[] rowRanks) {
+        if (row < 0 || row >= size || rowRanks == null || rowRanks.length < numDecades) {
+            throw new IllegalArgumentException(
+                    "row must exist and rowRanks must hold a rank for every decade");
+        }
+
+        storeRanks(row, rowRanks);
+    }
+
+    /**
+     * Removes every row, keeping the storage so the matrix can be filled again.
+     * Only used while loading, for example to parse lines one at a time into the
+     * same one row matrix.
+     */
+    void clear() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Gets the number of rows in this RankMatrix.
+     *
+     * @return number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the base decade (decade of the first column) of this RankMatrix.
+     *
+     * @return base decade.
+     */
+    public int getBaseDecade() {
+        return baseDecade;
+    }
+
+    /**
+     * Gets the number of decades (columns) of this RankMatrix.
+     *
+     * @return number of decades.
+     */
+    public int getNumDecades() {
+        return numDecades;
+    }
+
+    /**
+     * Gets the name stored in a row.
+     *
+     * @param row: 0 <= row < size()
+     * @return name stored in the given row.
+     */
+    public String getName(int row) {
+        return names[row];
+    }
+
+    /**
+     * Gets the rank of a row for a given decade.
+     *
+     * @param row:    0 <= row < size()
+     * @param decade: 0 <= decade < getNumDecades()
+     * @return rank stored for the given row and decade, 0 if unranked.
+     */
+    public int getRank(int row, int decade) {
+        return ranks[row * numDecades + decade];
+    }
+
+    /**
+     * Gets the trend flags of a row.
+     *
+     * @param row: 0 <= row < size()
+     * @return bit mask of the NameRecord trend flags that hold for the row.
+     */
+    public int getFlags(int row) {
+        return flags[row];
+    }
+
+    /**
+     * Gets the index of the decade a row was most popular.
+     *
+     * @param row: 0 <= row < size()
+     * @return index of the decade with the best (lowest non zero) rank, the most
+     *         recent decade in the event of a tie. Returns the last decade if the
+     *         row was never ranked.
+     */
+    public int bestDecadeIndex(int row) {
+        int offset = row * numDecades;
+        int best = numDecades - 1;
+        int bestRank = Integer.MAX_VALUE;
+        for (int i = 0; i < numDecades; i++) {
+            int rank = ranks[offset + i];
+            if (rank != 0 && rank <= bestRank) {
+                bestRank = rank;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Gets the number of decades a row has been ranked.
+     *
+     * @param row: 0 <= row < size()
+     * @return number of non zero ranks in the given row.
+     */
+    public int numDecadesRanked(int row) {
+        int offset = row * numDecades;
+        int count = 0;
+        for (int i = 0; i < numDecades; i++) {
+            if (ranks[offset + i] > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Determines if the ranks of a row get better (closer to 1) every decade. An
+     * unranked decade counts as the worst possible rank, so it may only appear
+     * once, as the first decade.
+     *
+     * @param row: 0 <= row < size()
+     * @return true if every rank is better than the rank of the previous decade.
+     */
+    public boolean morePopularEachDecade(int row) {
+        int offset = row * numDecades;
+        int last = Integer.MAX_VALUE;
+        for (int i = 0; i < numDecades; i++) {
+            int current = effectiveRank(ranks[offset + i]);
+            if (i > 0 && current >= last) {
+                return false;
+            }
+            last = current;
+        }
+        return true;
+    }
+
+    /**
+     * Determines if the ranks of a row get worse (farther from 1) every decade. An
+     * unranked decade counts as the worst possible rank, so it may only appear
+     * once, as the last decade.
+     *
+     * @param row: 0 <= row < size()
+     * @return true if every rank is worse than the rank of the previous decade.
+     */
+    public boolean lessPopularEachDecade(int row) {
+        int offset = row * numDecades;
+        int last = 0;
+        for (int i = 0; i < numDecades; i++) {
+            int current = effectiveRank(ranks[offset + i]);
+            if (i > 0 && current <= last) {
+                return false;
+            }
+            last = current;
+        }
+        return true;
+    }
+
+    /**
+     * Determines if a row was ranked within threshold for between 1 and maxWidth
+     * decades in a row, with an unranked decade right before and right after
+     * them.
+     *
+     * @param row:       0 <= row < size()
+     * @param threshold: worst rank allowed while ranked
+     * @param maxWidth:  maxWidth >= 1, most decades in a row that may be ranked
+     * @return true if such a run of ranked decades is found, false otherwise.
+     */
+    public boolean suddenPopularity(int row, int threshold, int maxWidth) {
+        int offset = row * numDecades;
+        int start = -1;
+        boolean withinThreshold = true;
+        for (int i = 1; i < numDecades; i++) {
+            int rank = ranks[offset + i];
+            if (rank != 0 && ranks[offset + i - 1] == 0) {
+                start = i;
+                withinThreshold = true;
+            }
+            if (rank != 0) {
+                withinThreshold &= rank <= threshold;
+            } else if (start >= 0) {
+                if (withinThreshold && i - start <= maxWidth) {
+                    return true;
+                }
+                start = -1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a copy of this RankMatrix with its rows sorted by name. Rows with
+     * equal names keep their relative order. Large matrices are sorted on the
+     * common ForkJoinPool.
+     *
+     * @return new RankMatrix holding the same rows in ascending order of name.
+     */
+    public RankMatrix sortedByName() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sortRows(order, (a, b) -> names[a].compareTo(names[b]));
+
+        RankMatrix sorted = new RankMatrix(baseDecade, numDecades, size);
+        for (int i = 0; i < size; i++) {
+            int row = order[i];
+            System.arraycopy(ranks, row * numDecades, sorted.ranks, i * numDecades, numDecades);
+            sorted.names[i] = names[row];
+            sorted.flags[i] = flags[row];
+        }
+        sorted.size = size;
+        return sorted;
+    }
+
+    /**
+     * Sorts row numbers with a stable merge sort that works on the int[] itself,
+     * so no row is boxed. Large arrays are sorted on the common ForkJoinPool.
+     *
+     * @param rows:    row numbers to sort, != null
+     * @param compare: compares two rows like a Comparator, != null
+     */
+    static void sortRows(int[] rows, IntBinaryOperator compare) {
+        RowSort sort = new RowSort(rows.clone(), rows, 0, rows.length, compare);
+        if (rows.length < PARALLEL_SORT_ROWS) {
+            sort.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(sort);
+        }
+    }
+
+    /**
+     * Creates a copy of this RankMatrix with one more decade after its last one,
+     * and with new names merged in. This RankMatrix must be sorted by name, and
+     * the copy is too. The trend flags of the existing rows are updated from
+     * their old flags and their last two ranks instead of being recomputed from
+     * every rank.
+     *
+     * Pre: this RankMatrix is sorted by name, column.length == size(), addedNames
+     * is sorted and holds no name already in this RankMatrix, every rank is
+     * between 0 and MAX_RANK and every added rank is non zero
+     *
+     * @param column:     rank in the new decade of every existing row
+     * @param addedNames: names to add, ranked only in the new decade
+     * @param addedRanks: rank in the new decade of each added name
+     * @param oldToNew:   array of length size() filled with the new row of each
+     *                    existing row
+     * @param addedToNew: array of length addedNames.length filled with the new
+     *                    row of each added name
+     * @return new RankMatrix sorted by name with one more decade.
+     */
+    RankMatrix appendDecade(int[] column, String[] addedNames, int[] addedRanks,
+            int[] oldToNew, int[] addedToNew) {
+        int width = numDecades + 1;
+        RankMatrix result = new RankMatrix(baseDecade, width, size + addedNames.length);
+        int existing = 0;
+        int added = 0;
+        for (int out = 0; out < size + addedNames.length; out++) {
+            if (added == addedNames.length
+                    || (existing < size && names[existing].compareTo(addedNames[added]) < 0)) {
+                System.arraycopy(ranks, existing * numDecades, result.ranks, out * width,
+                        numDecades);
+                result.ranks[out * width + numDecades] = (short) column[existing];
+                result.names[out] = names[existing];
+                result.flags[out] = appendFlags(existing, column[existing]);
+                oldToNew[existing++] = out;
+            } else {
+                result.ranks[out * width + numDecades] = (short) addedRanks[added];
+                result.names[out] = addedNames[added];
+                result.flags[out] = result.computeFlags(out);
+                addedToNew[added++] = out;
+            }
+        }
+        result.size = size + addedNames.length;
+        return result;
+    }
+
+    /**
+     * Works out the trend flags a row has once a rank for a new decade is added
+     * after its last decade.
+     *
+     * @param row:     0 <= row < size(), row ranked in at least one decade
+     * @param newRank: rank of the row in the new decade
+     * @return bit mask of the NameRecord trend flags that hold for the longer row.
+     */
+    private byte appendFlags(int row, int newRank) {
+        int old = flags[row];
+        int last = effectiveRank(ranks[row * numDecades + numDecades - 1]);
+        int current = effectiveRank(newRank);
+        int result = 0;
+        if ((old & NameRecord.RANKED_EVERY_DECADE) != 0 && newRank != 0) {
+            result |= NameRecord.RANKED_EVERY_DECADE;
+        }
+        if ((old & NameRecord.RANKED_ONE_DECADE) != 0 && newRank == 0) {
+            result |= NameRecord.RANKED_ONE_DECADE;
+        }
+        if ((old & NameRecord.MORE_POPULAR_EACH_DECADE) != 0 && current < last) {
+            result |= NameRecord.MORE_POPULAR_EACH_DECADE;
+        }
+        if ((old & NameRecord.LESS_POPULAR_EACH_DECADE) != 0 && current > last) {
+            result |= NameRecord.LESS_POPULAR_EACH_DECADE;
+        }
+        return (byte) result;
+    }
+
+    /**
+     * Gets the number of bytes writeTo() writes for this RankMatrix.
+     *
+     * @return size of the binary form of this RankMatrix in bytes.
+     */
+    long binarySize() {
+        long result = 3L * Integer.BYTES + (long) size * Integer.BYTES
+                + (long) size * numDecades * Short.BYTES + size;
+        for (int i = 0; i < size; i++) {
+            result += names[i].getBytes(StandardCharsets.UTF_8).length;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the rows of this RankMatrix in the binary form readFrom() reads.
+     *
+     * @param out: stream to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(baseDecade);
+        out.writeInt(numDecades);
+        out.writeInt(size);
+        // names as one block of UTF-8 bytes plus the offset where each one ends
+        byte[][] encoded = new byte[size][];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            total += encoded[i].length;
+            out.writeInt(total);
+        }
+        for (byte[] name : encoded) {
+            out.write(name);
+        }
+        for (int i = 0; i < size * numDecades; i++) {
+            out.writeShort(ranks[i]);
+        }
+        out.write(flags, 0, size);
+    }
+
+    /**
+     * Reads a RankMatrix written by writeTo(), leaving in positioned after it.
+     *
+     * @param in: buffer positioned at the start of the matrix
+     * @return the RankMatrix read.
+     */
+    static RankMatrix readFrom(ByteBuffer in) {
+        int firstDecade = in.getInt();
+        int decades = in.getInt();
+        int rows = in.getInt();
+        RankMatrix result = new RankMatrix(firstDecade, decades, rows);
+        int[] ends = new int[rows];
+        in.asIntBuffer().get(ends);
+        in.position(in.position() + rows * Integer.BYTES);
+        byte[] encoded = new byte[rows == 0 ? 0 : ends[rows - 1]];
+        in.get(encoded);
+        int start = 0;
+        for (int i = 0; i < rows; i++) {
+            result.names[i] = new String(encoded, start, ends[i] - start, StandardCharsets.UTF_8);
+            start = ends[i];
+        }
+        in.asShortBuffer().get(result.ranks, 0, rows * decades);
+        in.position(in.position() + rows * decades * Short.BYTES);
+        in.get(result.flags, 0, rows);
+        result.size = rows;
+        return result;
+    }
+
+    /**
+     * Creates a new RankMatrix holding the rows of every part, in order.
+     *
+     * Pre: parts.length > 0 and every part has the same base decade and number of
+     * decades
+     *
+     * @param parts: matrices to join
+     * @return new RankMatrix holding the rows of parts[0], then parts[1], and so
+     *         on.
+     */
+    public static RankMatrix concat(RankMatrix[] parts) {
+        if (parts == null || parts.length == 0) {
+            throw new IllegalArgumentException("parts may not be null or empty");
+        }
+
+        int total = 0;
+        for (RankMatrix part : parts) {
+            if (part.baseDecade != parts[0].baseDecade || part.numDecades != parts[0].numDecades) {
+                throw new IllegalArgumentException("every part must have the same decades");
+            }
+            total += part.size;
+        }
+        RankMatrix result = new RankMatrix(parts[0].baseDecade, parts[0].numDecades, total);
+        for (RankMatrix part : parts) {
+            System.arraycopy(part.ranks, 0, result.ranks, result.size * result.numDecades,
+                    part.size * part.numDecades);
+            System.arraycopy(part.names, 0, result.names, result.size, part.size);
+            System.arraycopy(part.flags, 0, result.flags, result.size, part.size);
+            result.size += part.size;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the trend flags of a row from its ranks.
+     *
+     * @param row: 0 <= row < size
+     * @return bit mask of the NameRecord trend flags that hold for the row.
+     */
+    private byte computeFlags(int row) {
+        int ranked = numDecadesRanked(row);
+        int result = 0;
+        if (ranked == numDecades) {
+            result |= NameRecord.RANKED_EVERY_DECADE;
+        }
+        if (ranked == 1) {
+            result |= NameRecord.RANKED_ONE_DECADE;
+        }
+        if (morePopularEachDecade(row)) {
+            result |= NameRecord.MORE_POPULAR_EACH_DECADE;
+        }
+        if (lessPopularEachDecade(row)) {
+            result |= NameRecord.LESS_POPULAR_EACH_DECADE;
+        }
+        return (byte) result;
+    }
+
+    /**
+     * Checks and stores the ranks of a row, then computes its trend flags.
+     *
+     * @param row:      row the ranks are stored in, row < capacity
+     * @param rowRanks: ranks to store, rowRanks.length >= numDecades
+     */
+    private void storeRanks(int row, int[] rowRanks) {
+        for (int i = 0; i < numDecades; i++) {
+            if (rowRanks[i] < 0 || rowRanks[i] > MAX_RANK) {
+                throw new IllegalArgumentException("rank must be between 0 and " + MAX_RANK);
+            }
+        }
+        int offset = row * numDecades;
+        for (int i = 0; i < numDecades; i++) {
+            ranks[offset + i] = (short) rowRanks[i];
+        }
+        flags[row] = computeFlags(row);
+    }
+
+    /**
+     * Treats an unranked decade as worse than any ranked decade.
+     *
+     * @param rank: stored rank
+     * @return rank, or Integer.MAX_VALUE if rank is 0.
+     */
+    private static int effectiveRank(int rank) {
+        return rank == 0 ? Integer.MAX_VALUE : rank;
+    }
+
+    /**
+     * Grows the backing arrays so they can hold at least minRows rows.
+     *
+     * @param minRows: number of rows the arrays must be able to hold
+     */
+    private void ensureCapacity(int minRows) {
+        if (minRows > names.length) {
+            int capacity = Math.max(minRows, Math.max(DEFAULT_CAPACITY, names.length * 2));
+            names = Arrays.copyOf(names, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            ranks = Arrays.copyOf(ranks, capacity * numDecades);
+        }
+    }
+
+    /**
+     * One step of sortRows(): sorts source[from, to) into target[from, to). Both
+     * arrays hold the same rows in that range when the step starts, so each half
+     * is sorted into source and then merged back into target.
+     */
+    private static class RowSort extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] source;
+        private final int[] target;
+        private final int from;
+        private final int to;
+        private final IntBinaryOperator compare;
+
+        private RowSort(int[] sourceRows, int[] targetRows, int fromIndex, int toIndex,
+                IntBinaryOperator rowCompare) {
+            source = sourceRows;
+            target = targetRows;
+            from = fromIndex;
+            to = toIndex;
+            compare = rowCompare;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= INSERTION_SORT_ROWS) {
+                insertionSort();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            RowSort lower = new RowSort(target, source, from, mid, compare);
+            RowSort upper = new RowSort(target, source, mid, to, compare);
+            if (to - from < PARALLEL_SORT_ROWS) {
+                lower.compute();
+                upper.compute();
+            } else {
+                invokeAll(lower, upper);
+            }
+
+            int i = from;
+            int j = mid;
+            for (int out = from; out < to; out++) {
+                // ties take the lower half first, which keeps the sort stable
+                if (j == to || (i < mid && compare.applyAsInt(source[i], source[j]) <= 0)) {
+                    target[out] = source[i++];
+                } else {
+                    target[out] = source[j++];
+                }
+            }
+        }
+
+        private void insertionSort() {
+            for (int i = from + 1; i < to; i++) {
+                int row = target[i];
+                int j = i - 1;
+                while (j >= from && compare.applyAsInt(target[j], row) > 0) {
+                    target[j + 1] = target[j];
+                    j--;
+                }
+                target[j + 1] = row;
+            }
+        }
+    }
+}
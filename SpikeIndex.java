@@ -0,0 +1,159 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Indexes the isolated spikes of every row of a RankMatrix. A spike is a run of
+ * consecutive ranked decades with an unranked decade right before it and right
+ * after it, so a spike never touches the first or last decade. Its width is the
+ * number of ranked decades in the run and its peak is the worst (largest) rank
+ * in the run, so a spike whose peak is within a threshold stayed within that
+ * threshold the whole time it was ranked. <br>
+ * For every maximum width W the index holds the rows that have a spike of width
+ * W or less, sorted by the smallest peak of those spikes. Finding the rows with
+ * such a spike within a threshold is then a binary search for the end of a
+ * prefix of that array.
+ *
+ * @author Ryan Parappuram
+ */
+public class SpikeIndex {
+
+    // rows[w - 1] and peaks[w - 1] describe the spikes of width w or less,
+    // sorted by ascending peak
+    private final int[][] rows;
+    private final int[][] peaks;
+    private final int numRows;
+
+    /**
+     * Builds a new SpikeIndex over every row of matrix.
+     *
+     * @param matrix: matrix whose spikes are indexed, matrix != null
+     */
+    public SpikeIndex(RankMatrix matrix) {
+        numRows = matrix.size();
+        int maxWidth = Math.max(0, matrix.getNumDecades() - 2);
+        // sort keys of each width, peak in the high half and row in the low half
+        long[][] keys = new long[maxWidth][];
+        int[] counts = new int[maxWidth];
+        for (int w = 0; w < maxWidth; w++) {
+            keys[w] = new long[16];
+        }
+        int[] bestByWidth = new int[maxWidth + 1];
+        for (int row = 0; row < numRows; row++) {
+            if (!bestSpikes(matrix, row, bestByWidth)) {
+                continue;
+            }
+            int best = Integer.MAX_VALUE;
+            for (int width = 1; width <= maxWidth; width++) {
+                best = Math.min(best, bestByWidth[width]);
+                if (best != Integer.MAX_VALUE) {
+                    int w = width - 1;
+                    if (counts[w] == keys[w].length) {
+                        keys[w] = Arrays.copyOf(keys[w], keys[w].length * 2);
+                    }
+                    keys[w][counts[w]++] = ((long) best << Integer.SIZE) | row;
+                }
+            }
+        }
+
+        rows = new int[maxWidth][];
+        peaks = new int[maxWidth][];
+        for (int w = 0; w < maxWidth; w++) {
+            Arrays.sort(keys[w], 0, counts[w]);
+            rows[w] = new int[counts[w]];
+            peaks[w] = new int[counts[w]];
+            for (int i = 0; i < counts[w]; i++) {
+                rows[w][i] = (int) keys[w][i];
+                peaks[w][i] = (int) (keys[w][i] >>> Integer.SIZE);
+            }
+        }
+    }
+
+    /**
+     * Finds the rows with a spike of at most maxWidth decades whose peak is
+     * within threshold.
+     *
+     * @param threshold: worst rank a spike may reach
+     * @param maxWidth:  maxWidth >= 1, widest spike to accept
+     * @return a BitSet of the matching rows.
+     */
+    public BitSet rowsWithin(int threshold, int maxWidth) {
+        BitSet result = new BitSet(numRows);
+        if (rows.length == 0) {
+            return result;
+        }
+        int w = Math.min(maxWidth, rows.length) - 1;
+        int end = upperBound(peaks[w], threshold);
+        for (int i = 0; i < end; i++) {
+            result.set(rows[w][i]);
+        }
+        return result;
+    }
+
+    /**
+     * Counts the rows rowsWithin() returns without building the BitSet.
+     *
+     * @param threshold: worst rank a spike may reach
+     * @param maxWidth:  maxWidth >= 1, widest spike to accept
+     * @return number of rows with a spike of at most maxWidth decades whose
+     *         peak is within threshold.
+     */
+    public int countWithin(int threshold, int maxWidth) {
+        if (rows.length == 0) {
+            return 0;
+        }
+        return upperBound(peaks[Math.min(maxWidth, rows.length) - 1], threshold);
+    }
+
+    /**
+     * Finds the first index of a sorted array holding a value greater than key.
+     */
+    private static int upperBound(int[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the smallest peak of the spikes of each width in a row.
+     *
+     * @param matrix:      matrix holding row
+     * @param row:         row to look at
+     * @param bestByWidth: filled with the smallest peak of the spikes of each
+     *                     width, Integer.MAX_VALUE for widths without a spike.
+     *                     Index 0 is unused.
+     * @return true if the row has at least one spike.
+     */
+    private static boolean bestSpikes(RankMatrix matrix, int row, int[] bestByWidth) {
+        Arrays.fill(bestByWidth, Integer.MAX_VALUE);
+        boolean found = false;
+        int numDecades = matrix.getNumDecades();
+        int decade = 1;
+        while (decade < numDecades - 1) {
+            if (matrix.getRank(row, decade) == 0 || matrix.getRank(row, decade - 1) != 0) {
+                decade++;
+                continue;
+            }
+            int start = decade;
+            int peak = 0;
+            while (decade < numDecades && matrix.getRank(row, decade) != 0) {
+                peak = Math.max(peak, matrix.getRank(row, decade));
+                decade++;
+            }
+            // the run must end before the last decade to be followed by a 0
+            if (decade < numDecades) {
+                int width = decade - start;
+                bestByWidth[width] = Math.min(bestByWidth[width], peak);
+                found = true;
+            }
+        }
+        return found;
+    }
+}
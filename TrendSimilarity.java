@@ -0,0 +1,408 @@
+import java.util.Arrays;
+
+/**
+ * Finds the rows of a RankMatrix whose rank curves look most like the curve of
+ * a given row. Each row is turned into a series of popularity values, one per
+ * decade: an unranked decade is 0 and rank r is (worst + 1 - r) / worst, where
+ * worst is the worst rank anywhere in the matrix, so rank 1 is close to 1. <br>
+ * The series of every row are kept in one flat float array, and the distances
+ * are plain loops over primitive arrays. <br>
+ * Most rows are never fully compared. The series are also summarized as the
+ * averages of a few segments of decades (piecewise aggregate approximation),
+ * and the Euclidean distance between two summaries never exceeds the distance
+ * between the series, so rows whose summary is already too far away are
+ * skipped. Rows are visited in order of their first segment's average,
+ * starting next to the query, and the search stops once that segment alone
+ * rules out every remaining row. DTW uses the envelope of the query instead
+ * (LB_Keogh) to skip rows. <br>
+ * The series are built the first time a distance needs them, so a Names object
+ * that is never searched does not pay for them. Building them more than once
+ * when several threads race is harmless, as every build gives the same result.
+ *
+ * @author Ryan Parappuram
+ */
+public class TrendSimilarity {
+
+    /**
+     * How the distance between two rank curves is measured.
+     */
+    public static enum Distance {
+        /** Euclidean distance between the popularity series. */
+        EUCLIDEAN,
+        /**
+         * Euclidean distance between the popularity series after scaling each
+         * to mean 0 and standard deviation 1. It orders rows the same as
+         * 1 - Pearson correlation, so only the shape of a curve matters.
+         */
+        CORRELATION,
+        /**
+         * Dynamic time warping between the popularity series, matching decades
+         * at most DTW_WINDOW decades apart, so a curve shifted by a decade or
+         * two still counts as close.
+         */
+        DTW
+    }
+
+    /** Most decades apart that DTW may match. */
+    public static final int DTW_WINDOW = 2;
+
+    private static final int SEGMENTS = 4;
+    // allows for rounding when comparing a lower bound with a distance
+    private static final double SLACK = 1e-4;
+
+    private final RankMatrix matrix;
+    private final int numDecades;
+    // decades of segment s are [segmentStarts[s], segmentStarts[s + 1])
+    private final int[] segmentStarts;
+    private volatile Series popularity;
+    private volatile Series shape;
+
+    /**
+     * Creates a new TrendSimilarity over every row of matrix. No series are built
+     * until the first search.
+     *
+     * @param rankMatrix: matrix whose rows are compared, rankMatrix != null
+     */
+    public TrendSimilarity(RankMatrix rankMatrix) {
+        matrix = rankMatrix;
+        numDecades = matrix.getNumDecades();
+        int segments = Math.max(1, Math.min(SEGMENTS, numDecades));
+        segmentStarts = new int[segments + 1];
+        for (int s = 0; s <= segments; s++) {
+            segmentStarts[s] = s * numDecades / segments;
+        }
+    }
+
+    /**
+     * Finds the k rows nearest to a row.
+     *
+     * @param queryRow: row whose curve is searched for
+     * @param k:        k >= 0, maximum number of rows to return
+     * @param distance: how to measure the distance between curves, != null
+     * @return up to k rows other than queryRow, nearest first. Rows at the same
+     *         distance are in row order.
+     */
+    public int[] nearest(int queryRow, int k, Distance distance) {
+        if (k == 0 || matrix.size() < 2) {
+            return new int[0];
+        }
+        Nearest best = new Nearest(Math.min(k, matrix.size() - 1));
+        if (distance == Distance.DTW) {
+            searchDtw(popularity(), queryRow, best);
+        } else {
+            searchEuclidean(distance == Distance.CORRELATION ? shape() : popularity(),
+                    queryRow, best);
+        }
+        return best.rows();
+    }
+
+    /**
+     * Visits rows in order of how close their first segment average is to the
+     * query's, stopping once no remaining row can beat the current k nearest.
+     */
+    private void searchEuclidean(Series series, int queryRow, Nearest best) {
+        int segments = segmentStarts.length - 1;
+        double firstLength = segmentStarts[1];
+        float queryKey = series.summaries[queryRow * segments];
+        int high = lowerBound(series.orderKeys, queryKey);
+        int low = high - 1;
+        while (low >= 0 || high < series.order.length) {
+            double lowGap = low >= 0 ? queryKey - series.orderKeys[low] : Double.MAX_VALUE;
+            double highGap = high < series.order.length ? series.orderKeys[high] - queryKey
+                    : Double.MAX_VALUE;
+            double gap = Math.min(lowGap, highGap);
+            if (best.isFull() && firstLength * gap * gap - SLACK > best.worst()) {
+                return;
+            }
+            int row = lowGap <= highGap ? series.order[low--] : series.order[high++];
+            if (row == queryRow || (best.isFull()
+                    && summaryDistance(series, queryRow, row) - SLACK > best.worst())) {
+                continue;
+            }
+            double distance = euclidean(series.values, queryRow, row, best.worst());
+            best.offer(distance, row);
+        }
+    }
+
+    /**
+     * Compares the query with every row, skipping rows whose distance from the
+     * query's envelope already rules them out.
+     */
+    private void searchDtw(Series series, int queryRow, Nearest best) {
+        float[] values = series.values;
+        int queryStart = queryRow * numDecades;
+        double[] upper = new double[numDecades];
+        double[] lower = new double[numDecades];
+        for (int i = 0; i < numDecades; i++) {
+            upper[i] = Double.NEGATIVE_INFINITY;
+            lower[i] = Double.POSITIVE_INFINITY;
+            int last = Math.min(numDecades - 1, i + DTW_WINDOW);
+            for (int j = Math.max(0, i - DTW_WINDOW); j <= last; j++) {
+                upper[i] = Math.max(upper[i], values[queryStart + j]);
+                lower[i] = Math.min(lower[i], values[queryStart + j]);
+            }
+        }
+        double[] previous = new double[numDecades + 1];
+        double[] current = new double[numDecades + 1];
+        for (int row = 0; row < matrix.size(); row++) {
+            if (row == queryRow) {
+                continue;
+            }
+            int start = row * numDecades;
+            if (best.isFull()) {
+                double bound = 0;
+                for (int i = 0; i < numDecades; i++) {
+                    double value = values[start + i];
+                    double outside = value > upper[i] ? value - upper[i]
+                            : value < lower[i] ? lower[i] - value : 0;
+                    bound += outside * outside;
+                }
+                if (bound - SLACK > best.worst()) {
+                    continue;
+                }
+            }
+            double distance = dtw(values, queryStart, start, best.worst(), previous, current);
+            best.offer(distance, row);
+        }
+    }
+
+    /**
+     * Gets the squared Euclidean distance between two rows, giving up once it
+     * is known to exceed limit.
+     *
+     * @return the squared distance, or a value greater than limit.
+     */
+    private double euclidean(float[] values, int first, int second, double limit) {
+        int a = first * numDecades;
+        int b = second * numDecades;
+        double sum = 0;
+        for (int i = 0; i < numDecades; i++) {
+            double difference = values[a + i] - values[b + i];
+            sum += difference * difference;
+            if (sum > limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Gets the squared Euclidean distance between the summaries of two rows,
+     * each segment weighted by its number of decades. It is never more than
+     * the squared distance between the rows.
+     */
+    private double summaryDistance(Series series, int first, int second) {
+        int segments = segmentStarts.length - 1;
+        int a = first * segments;
+        int b = second * segments;
+        double sum = 0;
+        for (int s = 0; s < segments; s++) {
+            double difference = series.summaries[a + s] - series.summaries[b + s];
+            sum += (segmentStarts[s + 1] - segmentStarts[s]) * difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * Gets the dynamic time warping distance between two rows with squared
+     * costs, matching decades at most DTW_WINDOW apart and giving up once every
+     * path is known to cost more than limit.
+     *
+     * @return the distance, or a value greater than limit.
+     */
+    private double dtw(float[] values, int queryStart, int start, double limit,
+            double[] previous, double[] current) {
+        Arrays.fill(previous, Double.POSITIVE_INFINITY);
+        previous[0] = 0;
+        for (int i = 1; i <= numDecades; i++) {
+            Arrays.fill(current, Double.POSITIVE_INFINITY);
+            double rowMinimum = Double.POSITIVE_INFINITY;
+            double value = values[queryStart + i - 1];
+            int last = Math.min(numDecades, i + DTW_WINDOW);
+            for (int j = Math.max(1, i - DTW_WINDOW); j <= last; j++) {
+                double difference = value - values[start + j - 1];
+                double cost = difference * difference
+                        + Math.min(previous[j - 1], Math.min(previous[j], current[j - 1]));
+                current[j] = cost;
+                rowMinimum = Math.min(rowMinimum, cost);
+            }
+            if (rowMinimum > limit) {
+                return rowMinimum;
+            }
+            double[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[numDecades];
+    }
+
+    /**
+     * Gets the popularity series, building them on first use.
+     */
+    private Series popularity() {
+        Series result = popularity;
+        if (result == null) {
+            result = new Series(popularityValues());
+            popularity = result;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the popularity series scaled to mean 0 and standard deviation 1,
+     * building them on first use. A flat series becomes all 0.
+     */
+    private Series shape() {
+        Series result = shape;
+        if (result == null) {
+            float[] values = popularityValues();
+            for (int row = 0; row < matrix.size(); row++) {
+                int start = row * numDecades;
+                double mean = 0;
+                for (int i = 0; i < numDecades; i++) {
+                    mean += values[start + i];
+                }
+                mean /= numDecades;
+                double variance = 0;
+                for (int i = 0; i < numDecades; i++) {
+                    variance += (values[start + i] - mean) * (values[start + i] - mean);
+                }
+                double deviation = Math.sqrt(variance / numDecades);
+                for (int i = 0; i < numDecades; i++) {
+                    values[start + i] = deviation == 0 ? 0
+                            : (float) ((values[start + i] - mean) / deviation);
+                }
+            }
+            result = new Series(values);
+            shape = result;
+        }
+        return result;
+    }
+
+    /**
+     * Converts every rank of the matrix into a popularity value.
+     */
+    private float[] popularityValues() {
+        int worst = 1;
+        for (int row = 0; row < matrix.size(); row++) {
+            for (int i = 0; i < numDecades; i++) {
+                worst = Math.max(worst, matrix.getRank(row, i));
+            }
+        }
+        float[] values = new float[matrix.size() * numDecades];
+        for (int row = 0; row < matrix.size(); row++) {
+            for (int i = 0; i < numDecades; i++) {
+                int rank = matrix.getRank(row, i);
+                values[row * numDecades + i] = rank == 0 ? 0 : (float) (worst + 1 - rank) / worst;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Finds the first index of a sorted array holding a value of at least key.
+     */
+    private static int lowerBound(float[] sorted, float key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The series of every row with their segment summaries, and the rows sorted
+     * by the average of their first segment.
+     */
+    private class Series {
+
+        private final float[] values;
+        private final float[] summaries;
+        private final int[] order;
+        private final float[] orderKeys;
+
+        private Series(float[] seriesValues) {
+            values = seriesValues;
+            int segments = segmentStarts.length - 1;
+            int size = matrix.size();
+            summaries = new float[size * segments];
+            for (int row = 0; row < size; row++) {
+                for (int s = 0; s < segments; s++) {
+                    double sum = 0;
+                    for (int i = segmentStarts[s]; i < segmentStarts[s + 1]; i++) {
+                        sum += values[row * numDecades + i];
+                    }
+                    summaries[row * segments + s] =
+                            (float) (sum / (segmentStarts[s + 1] - segmentStarts[s]));
+                }
+            }
+            // sort by first segment average, the bits of a non negative float
+            // sort like the float, and negative ones are flipped to match
+            long[] keys = new long[size];
+            for (int row = 0; row < size; row++) {
+                int bits = Float.floatToIntBits(summaries[row * segments]);
+                bits = bits < 0 ? bits ^ Integer.MAX_VALUE : bits;
+                keys[row] = ((long) bits << Integer.SIZE) | row;
+            }
+            Arrays.sort(keys);
+            order = new int[size];
+            orderKeys = new float[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = (int) keys[i];
+                orderKeys[i] = summaries[order[i] * segments];
+            }
+        }
+    }
+
+    /**
+     * Keeps the k nearest rows offered so far, sorted by distance and then row.
+     */
+    private static class Nearest {
+
+        private final double[] distances;
+        private final int[] rows;
+        private int size;
+
+        private Nearest(int k) {
+            distances = new double[k];
+            rows = new int[k];
+        }
+
+        private boolean isFull() {
+            return size == rows.length;
+        }
+
+        /**
+         * Gets the distance a row must not exceed to be kept.
+         */
+        private double worst() {
+            return isFull() ? distances[size - 1] : Double.POSITIVE_INFINITY;
+        }
+
+        private void offer(double distance, int row) {
+            if (isFull() && (distance > distances[size - 1]
+                    || (distance == distances[size - 1] && row > rows[size - 1]))) {
+                return;
+            }
+            int i = isFull() ? size - 1 : size++;
+            while (i > 0 && (distances[i - 1] > distance
+                    || (distances[i - 1] == distance && rows[i - 1] > row))) {
+                distances[i] = distances[i - 1];
+                rows[i] = rows[i - 1];
+                i--;
+            }
+            distances[i] = distance;
+            rows[i] = row;
+        }
+
+        private int[] rows() {
+            return Arrays.copyOf(rows, size);
+        }
+    }
+}